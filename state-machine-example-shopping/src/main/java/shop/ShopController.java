@@ -11,11 +11,13 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import com.github.davidmoten.fsm.example.shop.catalog.immutable.Catalog;
 import com.github.davidmoten.fsm.example.shop.catalogproduct.immutable.CatalogProduct;
 import com.github.davidmoten.fsm.example.shop.product.immutable.ChangeDetails;
 import com.github.davidmoten.fsm.example.shop.product.immutable.Product;
+import com.github.davidmoten.fsm.persistence.Page;
 import com.github.davidmoten.fsm.persistence.Property;
 
 @Controller
@@ -73,10 +75,15 @@ public class ShopController {
     public String catalogProductsRange(@PathVariable("catalogId") String catalogId, @RequestParam("name") String name,
             @RequestParam("value") String value, @RequestParam("rangeName") List<String> rangeNames,
             @RequestParam("start") int start, @RequestParam("end") int end, @RequestParam("limit") int limit,
-            @RequestParam Optional<String> lastId, Model model) {
-        model.addAttribute("catalogProducts", persistence.get() //
-                .get(CatalogProduct.class, name, value, Property.combineNames(rangeNames), start, true, end, false,
-                        limit, lastId));
+            @RequestParam Optional<String> after, Model model) {
+        Page<CatalogProduct> page = persistence.get() //
+                .getPage(CatalogProduct.class, name, value, Property.combineNames(rangeNames), start, true, end,
+                        false, limit, after);
+        model.addAttribute("catalogProducts", page.items());
+        if (page.next().isPresent()) {
+            model.addAttribute("nextUrl", ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("after", page.next().get()).toUriString());
+        }
         return "catalogProducts";
     }
 
@@ -1,19 +1,24 @@
 package shop;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
@@ -23,6 +28,8 @@ import com.github.davidmoten.fsm.example.shop.catalogproduct.immutable.CatalogPr
 import com.github.davidmoten.fsm.persistence.Persistence.EntityWithId;
 import com.github.davidmoten.fsm.persistence.Property;
 
+import io.reactivex.rxjava3.core.Flowable;
+
 @RestController
 public class ShopRestController {
 
@@ -35,9 +42,11 @@ public class ShopRestController {
     // from the REST API!
     ///////////////////////////////////////////////////////////
 
+    private final ObjectMapper mapper = createObjectMapper();
+
     @RequestMapping(value = "/api/catalog/{catalogId}/products", method = RequestMethod.GET)
-    public Set<EntityWithId<CatalogProduct>> products(@PathVariable("catalogId") String catalogId) {
-        return p.get().getOr(CatalogProduct.class, Property.list("catalogId", catalogId));
+    public ResponseEntity<StreamingResponseBody> products(@PathVariable("catalogId") String catalogId) {
+        return jsonArray(p.get().stream(CatalogProduct.class, "catalogId", catalogId));
     }
 
     @RequestMapping(value = "/api/products/tagged", method = RequestMethod.GET)
@@ -45,14 +54,39 @@ public class ShopRestController {
         return p.get().getOr(CatalogProduct.class, Property.list("tag", tags));
     }
 
+    @RequestMapping(value = "/api/products/tags", method = RequestMethod.GET)
+    public Map<String, Long> productTagCounts() {
+        return p.get().countByPropertyValue(CatalogProduct.class, "tag");
+    }
+
     @RequestMapping(value = "/api/catalog", method = RequestMethod.GET)
-    public List<EntityWithId<Catalog>> catalogs() {
-        return p.get().get(Catalog.class);
+    public ResponseEntity<StreamingResponseBody> catalogs() {
+        return jsonArray(p.get().stream(Catalog.class));
+    }
+
+    /**
+     * Writes the items to the response as a JSON array as they are read from
+     * the database cursor rather than collecting them in memory first.
+     */
+    private ResponseEntity<StreamingResponseBody> jsonArray(Flowable<?> items) {
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator g = mapper.getFactory().createGenerator(out)) {
+                g.writeStartArray();
+                // cancels the query if writing fails (e.g. client went away)
+                items.blockingForEach(g::writeObject);
+                g.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
     }
 
     @Bean
     @Primary
     public ObjectMapper objectMapper() {
+        return createObjectMapper();
+    }
+
+    private static ObjectMapper createObjectMapper() {
         return new ObjectMapper() //
                 .setVisibility(PropertyAccessor.FIELD, Visibility.PUBLIC_ONLY)
                 .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS) //
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
@@ -22,6 +23,7 @@ import com.github.davidmoten.fsm.example.shop.product.immutable.Product;
 import com.github.davidmoten.fsm.persistence.IntProperty;
 import com.github.davidmoten.fsm.persistence.Persistence;
 import com.github.davidmoten.fsm.persistence.Property;
+import com.github.davidmoten.fsm.runtime.Signal;
 
 import shop.behaviour.CatalogBehaviour;
 import shop.behaviour.CatalogProductBehaviour;
@@ -61,9 +63,11 @@ public final class StateMachine {
             e.printStackTrace();
         }
         p.initialize();
-        p.signal(Catalog.class, MAIN_CATALOG_ID, com.github.davidmoten.fsm.example.shop.catalog.immutable.Create //
+        // send the signals in one batch rather than a transaction per signal
+        List<Signal<?, String>> signals = new ArrayList<>();
+        signals.add(Signal.create(Catalog.class, MAIN_CATALOG_ID, com.github.davidmoten.fsm.example.shop.catalog.immutable.Create //
                 .createWithCatalogId(MAIN_CATALOG_ID) //
-                .name("Online bike shop"));
+                .name("Online bike shop")));
         try (InputStreamReader in = new InputStreamReader(StateMachine.class.getResourceAsStream("/products.txt"))) {
             for (CSVRecord record : CSVFormat.DEFAULT.parse(in)) {
                 String productId = record.get(0).trim();
@@ -73,19 +77,20 @@ public final class StateMachine {
                         .collect(Collectors.toList());
                 BigDecimal price = new BigDecimal(record.get(4).trim());
                 int quantity = Integer.parseInt(record.get(5).trim());
-                p.signal(Product.class, //
+                signals.add(Signal.create(Product.class, //
                         productId, //
                         Create //
                                 .createWithProductId(productId) //
                                 .name(name) //
                                 .description(description) //
-                                .tags(tags));
-                p.signal(Catalog.class, //
+                                .tags(tags)));
+                signals.add(Signal.create(Catalog.class, //
                         MAIN_CATALOG_ID, Change //
                                 .createWithProductId(productId) //
                                 .quantityDelta(quantity) //
-                                .price(price));
+                                .price(price)));
             }
+            p.signalAll(signals);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -10,7 +10,6 @@ import com.github.davidmoten.fsm.example.shop.product.immutable.ChangeDetails;
 import com.github.davidmoten.fsm.example.shop.product.immutable.Create;
 import com.github.davidmoten.fsm.example.shop.product.immutable.Product;
 import com.github.davidmoten.fsm.persistence.Entities;
-import com.github.davidmoten.fsm.persistence.Persistence.EntityWithId;
 import com.github.davidmoten.fsm.persistence.Property;
 import com.github.davidmoten.fsm.runtime.Signaller;
 
@@ -34,14 +33,14 @@ public final class ProductBehaviour extends ProductBehaviourBase<String> {
     public Product onEntry_Changed(Signaller<Product, String> signaller, Product product, String id,
             ChangeDetails event, boolean replaying) {
         // do an index-based search (using entity properties set by
-        // propertiesFactory)
-        Set<EntityWithId<CatalogProduct>> set = Entities.get() //
-                .getOr(CatalogProduct.class, //
+        // propertiesFactory), only the ids are needed so the catalog products
+        // are not read
+        Set<String> ids = Entities.get() //
+                .getIdsOr(CatalogProduct.class, //
                         Property.list("productId", product.productId()));
-        System.out.println(set);
-        for (EntityWithId<CatalogProduct> cp : set) {
+        for (String catalogProductId : ids) {
             signaller.signal(CatalogProduct.class, //
-                    cp.id, //
+                    catalogProductId, //
                     ChangeProductDetails //
                             .createWithProductName(event.name()) //
                             .productDescription(event.description()) //
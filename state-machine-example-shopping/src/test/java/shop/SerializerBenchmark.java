@@ -0,0 +1,101 @@
+package shop;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.davidmoten.fsm.example.shop.basket.immutable.Basket;
+import com.github.davidmoten.fsm.example.shop.basket.immutable.BasketProduct;
+import com.github.davidmoten.fsm.example.shop.catalogproduct.immutable.CatalogProduct;
+import com.github.davidmoten.fsm.persistence.Serializer;
+
+/**
+ * Compares the generated binary codecs ({@link Serializer#BINARY}) with
+ * {@link Serializer#JSON} for shop entities. Run {@link #main(String[])} to
+ * report the allocation per operation ({@code gc.alloc.rate.norm}) as well as
+ * throughput. The serialized sizes are printed at setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+    @Param({ "json", "binary" })
+    public String format;
+
+    private Serializer serializer;
+    private CatalogProduct catalogProduct;
+    private Basket basket;
+    private byte[] catalogProductBytes;
+    private byte[] basketBytes;
+
+    @Setup
+    public void setup() {
+        serializer = format.equals("json") ? Serializer.JSON : Serializer.BINARY;
+        catalogProduct = CatalogProduct.createWithCatalogId("main") //
+                .productId("road-bike-2000") //
+                .name("Road Bike 2000") //
+                .description("Lightweight carbon road bike with 22 speed groupset") //
+                .quantity(12) //
+                .price(new BigDecimal("2499.95")) //
+                .tags(Arrays.asList("bike", "road", "carbon"));
+        List<BasketProduct> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(BasketProduct.createWithBasketId("basket-1").productId("product-" + i).quantity(i + 1));
+        }
+        basket = Basket.createWithId("basket-1").items(items);
+        catalogProductBytes = serializer.serialize(catalogProduct);
+        basketBytes = serializer.serialize(basket);
+        System.out.println(format + ": CatalogProduct=" + catalogProductBytes.length + " bytes, Basket="
+                + basketBytes.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] serializeCatalogProduct() {
+        return serializer.serialize(catalogProduct);
+    }
+
+    @Benchmark
+    public CatalogProduct deserializeCatalogProduct() {
+        return serializer.deserialize(CatalogProduct.class, catalogProductBytes);
+    }
+
+    @Benchmark
+    public byte[] serializeBasket() {
+        return serializer.serialize(basket);
+    }
+
+    @Benchmark
+    public Basket deserializeBasket() {
+        return serializer.deserialize(Basket.class, basketBytes);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder() //
+                .include(SerializerBenchmark.class.getSimpleName()) //
+                .addProfiler(GCProfiler.class) //
+                .build()).run();
+    }
+
+}
@@ -1,7 +1,11 @@
 package shop;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
@@ -39,6 +43,25 @@ public class ShopTest {
         Serializer.JSON.deserialize(Product.class, s);
     }
 
+    @Test
+    public void testSerializeCatalogProductBinary() {
+        CatalogProduct p = CatalogProduct.createWithCatalogId("1").productId("a").name("name")
+                .description("description").quantity(3).price(new BigDecimal("12.34"))
+                .tags(Lists.newArrayList("bike", null));
+        byte[] bytes = Serializer.BINARY.serialize(p);
+        assertEquals(p, Serializer.BINARY.deserialize(CatalogProduct.class, bytes));
+        assertTrue(bytes.length < Serializer.JSON.serialize(p).length);
+        // values written as json before switching are still read
+        assertEquals(p, Serializer.BINARY.deserialize(CatalogProduct.class, Serializer.JSON.serialize(p)));
+        // streaming
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Serializer.BINARY.serialize(p, out);
+        assertArrayEquals(bytes, out.toByteArray());
+        assertEquals(p, Serializer.BINARY.deserialize(CatalogProduct.class, new ByteArrayInputStream(bytes)));
+        assertEquals(p, Serializer.BINARY.deserialize(CatalogProduct.class,
+                new ByteArrayInputStream(Serializer.JSON.serialize(p))));
+    }
+
     @SuppressWarnings("unchecked")
     @Test(timeout = 30000)
     public void testPersistence() throws IOException, InterruptedException {
@@ -93,6 +116,11 @@ public class ShopTest {
             Set<EntityWithId<Product>> list = p.get(Product.class, "tag", "Clothing");
             assertEquals(1, list.size());
         }
+        // counted in the database without reading any entity
+        assertEquals(Long.valueOf(1), p.countByPropertyValue(Product.class, "tag").get("Clothing"));
+        assertEquals(5, p.countByPropertyValue(Product.class, "tag").size());
+        assertEquals(Long.valueOf(1),
+                p.countByState(Product.class).values().stream().reduce(0L, Long::sum));
 
     }
 
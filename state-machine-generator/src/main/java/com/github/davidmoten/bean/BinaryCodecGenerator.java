@@ -0,0 +1,292 @@
+package com.github.davidmoten.bean;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.type.PrimitiveType;
+import com.github.javaparser.ast.type.Type;
+
+/**
+ * Writes static {@code writeBinary} and {@code readBinary} methods into a
+ * generated immutable class that encode its fields in declaration order using
+ * {@link DataOutput} and {@link DataInput}. The encoding starts with the number
+ * of fields so that fields can be appended to a class and values written before
+ * the change can still be read (the appended fields get their default values).
+ *
+ * <p>
+ * Supported field types are primitives and their boxed types, {@code String},
+ * {@code BigDecimal}, other {@code @GenerateImmutable} classes of the same
+ * package that have a codec and {@code List}s of those. Reference values are
+ * preceded by a presence byte so nulls are supported.
+ */
+final class BinaryCodecGenerator {
+
+    private static final Set<String> JAVA_LANG = new HashSet<>(Arrays.asList("String", "Integer", "Long",
+            "Boolean", "Double", "Float", "Short", "Byte", "Character"));
+
+    private final Map<String, String> imports;
+    private final String pkg;
+    private final Set<String> codecClasses;
+    private final String indent;
+    private final StringBuilder s = new StringBuilder();
+    private int counter;
+
+    /**
+     * Constructor.
+     *
+     * @param imports
+     *            simple name to class name of the source imports
+     * @param pkg
+     *            package of the source class
+     * @param codecClasses
+     *            source class names that get a codec
+     * @param indent
+     *            indent unit
+     */
+    BinaryCodecGenerator(Map<String, String> imports, String pkg, Set<String> codecClasses, String indent) {
+        this.imports = imports;
+        this.pkg = pkg;
+        this.codecClasses = codecClasses;
+        this.indent = indent;
+    }
+
+    boolean supports(List<VariableDeclarator> vars) {
+        return vars.stream().allMatch(v -> supports(v.getType()));
+    }
+
+    private boolean supports(Type type) {
+        if (type instanceof PrimitiveType) {
+            return true;
+        } else if (!(type instanceof ClassOrInterfaceType)) {
+            return false;
+        }
+        ClassOrInterfaceType t = (ClassOrInterfaceType) type;
+        String name = className(t);
+        if (name.equals(List.class.getName())) {
+            return t.getTypeArguments().map(args -> args.size() == 1 && supports(args.get(0))).orElse(false);
+        } else {
+            return !t.getTypeArguments().isPresent()
+                    && ((name.startsWith("java.lang.") && JAVA_LANG.contains(simpleName(name)))
+                            || name.equals(BigDecimal.class.getName()) || isBean(t));
+        }
+    }
+
+    private boolean isBean(ClassOrInterfaceType t) {
+        // only classes of the same package refer to the generated class
+        String name = t.getNameWithScope();
+        return !name.contains(".") && !imports.containsKey(name) && codecClasses.contains(qualified(name));
+    }
+
+    private String className(ClassOrInterfaceType t) {
+        String name = t.getNameWithScope();
+        if (name.contains(".")) {
+            return name;
+        } else if (imports.containsKey(name)) {
+            return imports.get(name);
+        } else if (JAVA_LANG.contains(name)) {
+            return "java.lang." + name;
+        } else {
+            return qualified(name);
+        }
+    }
+
+    private String qualified(String simpleName) {
+        return pkg.isEmpty() ? simpleName : pkg + "." + simpleName;
+    }
+
+    String generate(String className, List<VariableDeclarator> vars) {
+        String dataOutput = ImmutableBeanGenerator.resolve(imports, DataOutput.class);
+        String dataInput = ImmutableBeanGenerator.resolve(imports, DataInput.class);
+        String ioException = ImmutableBeanGenerator.resolve(imports, IOException.class);
+
+        // writeBinary
+        s.append(String.format("\n\n%s// Binary codec. Fields are written in declaration order after the", indent));
+        s.append(String.format("\n%s// number of fields. Only append fields to the source class so that", indent));
+        s.append(String.format("\n%s// values already written can still be read.", indent));
+        s.append(String.format("\n\n%spublic static void writeBinary(%s _value, %s _out) throws %s {", indent,
+                className, dataOutput, ioException));
+        s.append(String.format("\n%s%s_out.writeShort(%s);", indent, indent, vars.size()));
+        for (VariableDeclarator v : vars) {
+            write(v.getType(), "_value." + v.getName(), indent + indent);
+        }
+        s.append(String.format("\n%s}", indent));
+
+        // readBinary
+        s.append(String.format("\n\n%spublic static %s readBinary(%s _in) throws %s {", indent, className,
+                dataInput, ioException));
+        String ind = indent + indent;
+        s.append(String.format("\n%sint _fields = _in.readUnsignedShort();", ind));
+        s.append(String.format("\n%sif (_fields > %s) {", ind, vars.size()));
+        s.append(String.format(
+                "\n%s%sthrow new %s(\"%s was written with \" + _fields + \" fields but only %s are known\");", ind,
+                indent, ioException, className, vars.size()));
+        s.append(String.format("\n%s}", ind));
+        for (VariableDeclarator v : vars) {
+            s.append(String.format("\n%s%s %s = %s;", ind, v.getType(), v.getName(), defaultValue(v.getType())));
+        }
+        int i = 0;
+        for (VariableDeclarator v : vars) {
+            s.append(String.format("\n%sif (_fields > %s) {", ind, i));
+            read(v.getType(), v.getName().toString(), ind + indent);
+            s.append(String.format("\n%s}", ind));
+            i++;
+        }
+        s.append(String.format("\n%sreturn new %s(%s);", ind, className,
+                String.join(", ", vars.stream().map(v -> v.getName().toString()).toArray(String[]::new))));
+        s.append(String.format("\n%s}", indent));
+        return s.toString();
+    }
+
+    private void write(Type type, String expr, String ind) {
+        if (type instanceof PrimitiveType) {
+            line(ind, "_out.%s(%s);", writeMethod(type.asString()), expr);
+            return;
+        }
+        line(ind, "if (%s == null) {", expr);
+        line(ind + indent, "_out.writeBoolean(false);");
+        line(ind, "} else {");
+        String in = ind + indent;
+        line(in, "_out.writeBoolean(true);");
+        ClassOrInterfaceType t = (ClassOrInterfaceType) type;
+        String name = className(t);
+        if (name.equals(String.class.getName())) {
+            String b = var("_b");
+            line(in, "byte[] %s = %s.getBytes(%s.UTF_8);", b, expr,
+                    ImmutableBeanGenerator.resolve(imports, StandardCharsets.class));
+            line(in, "_out.writeInt(%s.length);", b);
+            line(in, "_out.write(%s);", b);
+        } else if (name.equals(BigDecimal.class.getName())) {
+            String b = var("_b");
+            line(in, "byte[] %s = %s.unscaledValue().toByteArray();", b, expr);
+            line(in, "_out.writeInt(%s.scale());", expr);
+            line(in, "_out.writeInt(%s.length);", b);
+            line(in, "_out.write(%s);", b);
+        } else if (name.equals(List.class.getName())) {
+            Type elementType = t.getTypeArguments().get().get(0);
+            String e = var("_e");
+            line(in, "_out.writeInt(%s.size());", expr);
+            line(in, "for (%s %s : %s) {", elementType, e, expr);
+            write(elementType, e, in + indent);
+            line(in, "}");
+        } else if (isBean(t)) {
+            line(in, "%s.writeBinary(%s, _out);", t.getNameWithScope(), expr);
+        } else {
+            // boxed primitive
+            line(in, "_out.%s(%s);", writeMethod(unboxed(name)), expr);
+        }
+        line(ind, "}");
+    }
+
+    private void read(Type type, String target, String ind) {
+        if (type instanceof PrimitiveType) {
+            line(ind, "%s = _in.%s();", target, readMethod(type.asString()));
+            return;
+        }
+        line(ind, "if (_in.readBoolean()) {");
+        String in = ind + indent;
+        ClassOrInterfaceType t = (ClassOrInterfaceType) type;
+        String name = className(t);
+        if (name.equals(String.class.getName())) {
+            String b = var("_b");
+            line(in, "byte[] %s = new byte[_in.readInt()];", b);
+            line(in, "_in.readFully(%s);", b);
+            line(in, "%s = new String(%s, %s.UTF_8);", target, b,
+                    ImmutableBeanGenerator.resolve(imports, StandardCharsets.class));
+        } else if (name.equals(BigDecimal.class.getName())) {
+            String scale = var("_scale");
+            String b = var("_b");
+            line(in, "int %s = _in.readInt();", scale);
+            line(in, "byte[] %s = new byte[_in.readInt()];", b);
+            line(in, "_in.readFully(%s);", b);
+            line(in, "%s = new %s(new %s(%s), %s);", target, t.getNameWithScope(),
+                    ImmutableBeanGenerator.resolve(imports, BigInteger.class), b, scale);
+        } else if (name.equals(List.class.getName())) {
+            Type elementType = t.getTypeArguments().get().get(0);
+            String n = var("_n");
+            String list = var("_list");
+            String i = var("_i");
+            String e = var("_e");
+            line(in, "int %s = _in.readInt();", n);
+            line(in, "%s %s = new %s<>(%s);", type, list, ImmutableBeanGenerator.resolve(imports, ArrayList.class),
+                    n);
+            line(in, "for (int %s = 0; %s < %s; %s++) {", i, i, n, i);
+            line(in + indent, "%s %s;", elementType, e);
+            read(elementType, e, in + indent);
+            line(in + indent, "%s.add(%s);", list, e);
+            line(in, "}");
+            line(in, "%s = %s;", target, list);
+        } else if (isBean(t)) {
+            line(in, "%s = %s.readBinary(_in);", target, t.getNameWithScope());
+        } else {
+            // boxed primitive
+            line(in, "%s = _in.%s();", target, readMethod(unboxed(name)));
+        }
+        line(ind, "} else {");
+        line(in, "%s = null;", target);
+        line(ind, "}");
+    }
+
+    private void line(String ind, String format, Object... args) {
+        s.append("\n").append(ind).append(String.format(format, args));
+    }
+
+    private String var(String prefix) {
+        return prefix + (++counter);
+    }
+
+    private static String defaultValue(Type type) {
+        if (type instanceof PrimitiveType) {
+            String name = type.asString();
+            if (name.equals("boolean")) {
+                return "false";
+            } else if (name.equals("char")) {
+                return "'\\0'";
+            } else {
+                return "0";
+            }
+        } else {
+            return "null";
+        }
+    }
+
+    private static String unboxed(String className) {
+        switch (simpleName(className)) {
+        case "Integer":
+            return "int";
+        case "Character":
+            return "char";
+        default:
+            return simpleName(className).toLowerCase();
+        }
+    }
+
+    private static String writeMethod(String primitive) {
+        return "write" + capFirst(primitive);
+    }
+
+    private static String readMethod(String primitive) {
+        return "read" + capFirst(primitive);
+    }
+
+    private static String capFirst(String s) {
+        return s.substring(0, 1).toUpperCase() + s.substring(1);
+    }
+
+    private static String simpleName(String s) {
+        int i = s.lastIndexOf('.');
+        return i == -1 ? s : s.substring(i + 1);
+    }
+
+}
@@ -8,13 +8,17 @@ import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
@@ -40,7 +44,11 @@ public final class ImmutableBeanGenerator {
     private static final boolean GENERATE_CREATE_METHOD = false;
 
     public static void generate(String code, File generatedSource) {
-        Generated g = generate(code);
+        generate(code, generatedSource, Collections.emptySet());
+    }
+
+    private static void generate(String code, File generatedSource, Set<String> codecClasses) {
+        Generated g = generate(code, codecClasses);
         File file = new File(generatedSource, g.className().replace(".", File.separator) + ".java");
         file.getParentFile().mkdirs();
         try (FileOutputStream fos = new FileOutputStream(file)) {
@@ -78,29 +86,31 @@ public final class ImmutableBeanGenerator {
     }
 
     public static Generated generate(String code) {
-        ParseResult<CompilationUnit> pr = new JavaParser().parse(code);
-        CompilationUnit cu = pr.getResult().get();
+        return generate(code, Collections.emptySet());
+    }
+
+    /**
+     * Generates the immutable class for the source code. If the class name is
+     * in {@code codecClasses} then static {@code writeBinary} and
+     * {@code readBinary} methods are generated as well (see
+     * {@link #codecClasses(Collection)}).
+     * 
+     * @param code
+     *            source of the class annotated with {@link GenerateImmutable}
+     * @param codecClasses
+     *            names of the source classes that get a binary codec
+     * @return generated code
+     */
+    public static Generated generate(String code, Set<String> codecClasses) {
+        CompilationUnit cu = parse(code);
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         PrintStream s = new PrintStream(bytes);
 
-        String newPkg = cu //
-                .getPackageDeclaration() //
-                .map(p -> p.getName().toString()) //
-                .orElse("") + ".immutable";
+        String pkg = pkg(cu);
+        String newPkg = pkg + ".immutable";
         s.format("package %s;\n\n", newPkg);
         s.format("<IMPORTS>\n");
-        Map<String, String> imports;
-        {
-            NodeList<ImportDeclaration> n = cu.getImports();
-            if (n != null) {
-                imports = new HashMap<>(n.stream() //
-                        .filter(x -> !x.getName().toString().equals(GenerateImmutable.class.getName())) //
-                        .collect(Collectors.<ImportDeclaration, String, String>toMap(
-                                x -> simpleName(x.getName().toString()), x -> x.getName().toString())));
-            } else {
-                imports = new HashMap<>();
-            }
-        }
+        Map<String, String> imports = imports(cu);
         String indent = "    ";
 
         s.format("\n/////////////////////////////////////////////////////\n" + //
@@ -147,6 +157,12 @@ public final class ImmutableBeanGenerator {
                     // toString
                     writeToString(s, imports, indent, c, vars);
 
+                    // binary codec
+                    if (codecClasses.contains(qualified(pkg, c.getNameAsString()))) {
+                        s.append(new BinaryCodecGenerator(imports, pkg, codecClasses, indent)
+                                .generate(c.getNameAsString(), vars));
+                    }
+
                     s.append("\n}");
 
                     // imports
@@ -157,6 +173,73 @@ public final class ImmutableBeanGenerator {
         throw new RuntimeException("expected class structure not found");
     }
 
+    private static CompilationUnit parse(String code) {
+        ParseResult<CompilationUnit> pr = new JavaParser().parse(code);
+        return pr.getResult().get();
+    }
+
+    private static String pkg(CompilationUnit cu) {
+        return cu //
+                .getPackageDeclaration() //
+                .map(p -> p.getName().toString()) //
+                .orElse("");
+    }
+
+    private static String qualified(String pkg, String simpleName) {
+        return pkg.isEmpty() ? simpleName : pkg + "." + simpleName;
+    }
+
+    private static Map<String, String> imports(CompilationUnit cu) {
+        NodeList<ImportDeclaration> n = cu.getImports();
+        if (n != null) {
+            return new HashMap<>(n.stream() //
+                    .filter(x -> !x.getName().toString().equals(GenerateImmutable.class.getName())) //
+                    .collect(Collectors.<ImportDeclaration, String, String>toMap(
+                            x -> simpleName(x.getName().toString()), x -> x.getName().toString())));
+        } else {
+            return new HashMap<>();
+        }
+    }
+
+    private static Optional<ClassOrInterfaceDeclaration> classDeclaration(CompilationUnit cu) {
+        return cu.getChildNodes() //
+                .stream() //
+                .filter(x -> x instanceof ClassOrInterfaceDeclaration) //
+                .map(x -> (ClassOrInterfaceDeclaration) x) //
+                .findFirst();
+    }
+
+    /**
+     * Returns the names of the given {@link GenerateImmutable} source classes
+     * whose field types are all supported by the binary codec. A field of
+     * another class in the same package is supported if that class has a
+     * codec.
+     * 
+     * @param codes
+     *            source code of classes annotated with
+     *            {@link GenerateImmutable}
+     * @return names of the source classes that can have a binary codec
+     */
+    public static Set<String> codecClasses(Collection<String> codes) {
+        Map<String, CompilationUnit> units = new HashMap<>();
+        for (String code : codes) {
+            CompilationUnit cu = parse(code);
+            classDeclaration(cu).ifPresent(c -> units.put(qualified(pkg(cu), c.getNameAsString()), cu));
+        }
+        Set<String> set = new HashSet<>(units.keySet());
+        // remove classes that refer to classes without a codec until none
+        // are removed
+        boolean removed;
+        do {
+            removed = set.removeIf(name -> {
+                CompilationUnit cu = units.get(name);
+                List<VariableDeclarator> vars = getVars(getFields(classDeclaration(cu).get()));
+                return !new BinaryCodecGenerator(imports(cu), pkg(cu), set, "").supports(vars);
+            });
+        } while (removed);
+        return set;
+    }
+
     private static List<VariableDeclarator> getVars(List<FieldDeclaration> fields) {
         List<VariableDeclarator> vars = fields.stream() //
                 .map(x -> variableDeclarator(x)) //
@@ -395,7 +478,7 @@ public final class ImmutableBeanGenerator {
         Preconditions.checkArgument(c.getExtendedTypes().size() == 0);
     }
 
-    private static String resolve(Map<String, String> imports, Class<?> cls) {
+    static String resolve(Map<String, String> imports, Class<?> cls) {
         return resolve(imports, cls.getName());
     }
 
@@ -445,14 +528,40 @@ public final class ImmutableBeanGenerator {
     }
 
     public static void scanAndGenerate(File directory, File generatedSourceDirectory) {
+        scanAndGenerate(directory, generatedSourceDirectory, false);
+    }
+
+    /**
+     * Generates immutable classes for the classes annotated with
+     * {@link GenerateImmutable} under the directory.
+     * 
+     * @param directory
+     *            source directory
+     * @param generatedSourceDirectory
+     *            directory to write the generated classes to
+     * @param generateBinaryCodecs
+     *            if true then classes with supported field types also get
+     *            static {@code writeBinary} and {@code readBinary} methods
+     */
+    public static void scanAndGenerate(File directory, File generatedSourceDirectory,
+            boolean generateBinaryCodecs) {
+        List<String> codes = new ArrayList<>();
+        scan(directory, codes);
+        Set<String> codecClasses = generateBinaryCodecs ? codecClasses(codes) : Collections.emptySet();
+        for (String code : codes) {
+            generate(code, generatedSourceDirectory, codecClasses);
+        }
+    }
+
+    private static void scan(File directory, List<String> codes) {
         for (File file : directory.listFiles()) {
             if (file.isDirectory()) {
-                scanAndGenerate(file, generatedSourceDirectory);
+                scan(file, codes);
             } else if (file.getName().endsWith(".java")) {
                 try {
                     String code = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
                     if (code.contains(GenerateImmutable.class.getName())) {
-                        generate(code, generatedSourceDirectory);
+                        codes.add(code);
                     }
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -5,8 +5,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -609,6 +611,14 @@ public final class Generator<T> {
             out.format("%s}\n", indent.left());
             out.println();
 
+            // Map<T, R> getAll()
+            out.format("%s@%s\n", indent, imports.add(Override.class));
+            out.format("%spublic <R> %s<T, R> getAll(%s<R> cls, %s<T> ids) {\n", indent, imports.add(Map.class),
+                    imports.add(Class.class), imports.add(Collection.class));
+            out.format("%sreturn search.getAll(cls, ids);\n", indent.right());
+            out.format("%s}\n", indent.left());
+            out.println();
+
             // Optional<State> previousState()
             out.format("%s@%s\n", indent, imports.add(Override.class));
             out.format("%spublic %s<State> previousState() {\n", indent, imports.add(Optional.class));
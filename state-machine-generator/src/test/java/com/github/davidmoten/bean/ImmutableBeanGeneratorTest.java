@@ -1,11 +1,16 @@
 package com.github.davidmoten.bean;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -30,6 +35,37 @@ public final class ImmutableBeanGeneratorTest {
         System.out.println(ImmutableBeanGenerator.generate(code).generatedCode());
     }
 
+    @Test
+    public void testBinaryCodec() {
+        String item = "package a;\n" //
+                + "import com.github.davidmoten.bean.annotation.GenerateImmutable;\n" //
+                + "@GenerateImmutable\n" //
+                + "public class Item {\n" //
+                + "    String name;\n" //
+                + "    int quantity;\n" //
+                + "}";
+        String basket = "package a;\n" //
+                + "import java.util.List;\n" //
+                + "import com.github.davidmoten.bean.annotation.GenerateImmutable;\n" //
+                + "@GenerateImmutable\n" //
+                + "public class Basket {\n" //
+                + "    List<Item> items;\n" //
+                + "}";
+        String example = "package a;\n" //
+                + "import java.util.Date;\n" //
+                + "import com.github.davidmoten.bean.annotation.GenerateImmutable;\n" //
+                + "@GenerateImmutable\n" //
+                + "public class Example {\n" //
+                + "    Date date;\n" //
+                + "}";
+        Set<String> codecClasses = ImmutableBeanGenerator.codecClasses(Arrays.asList(item, basket, example));
+        assertEquals(new HashSet<>(Arrays.asList("a.Item", "a.Basket")), codecClasses);
+        String code = ImmutableBeanGenerator.generate(basket, codecClasses).generatedCode();
+        assertTrue(code.contains("Item.writeBinary(_e"));
+        assertTrue(code.contains("public static Basket readBinary(DataInput _in)"));
+        assertFalse(ImmutableBeanGenerator.generate(example, codecClasses).generatedCode().contains("writeBinary"));
+    }
+
     @Test
     public void testScanAndGenerate() {
         ImmutableBeanGenerator.scanAndGenerate(new File("src/test/java"), new File("target/gen"));
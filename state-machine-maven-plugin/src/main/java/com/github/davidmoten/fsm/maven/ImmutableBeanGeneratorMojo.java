@@ -21,9 +21,12 @@ public class ImmutableBeanGeneratorMojo extends AbstractMojo {
     @Parameter(name = "generatedSourceDirectory", required = true)
     File generatedSourceDirectory;
 
+    @Parameter(name = "generateBinaryCodecs", defaultValue = "false")
+    boolean generateBinaryCodecs;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
-        ImmutableBeanGenerator.scanAndGenerate(sourceDirectory, generatedSourceDirectory);
+        ImmutableBeanGenerator.scanAndGenerate(sourceDirectory, generatedSourceDirectory, generateBinaryCodecs);
     }
 
 }
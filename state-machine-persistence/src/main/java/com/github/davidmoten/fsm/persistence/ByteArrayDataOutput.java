@@ -0,0 +1,155 @@
+package com.github.davidmoten.fsm.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An unsynchronized {@link OutputStream} and {@link DataOutput} that writes to
+ * a growing byte array and can be {@link #reset()} for reuse.
+ * {@link DataOutputStream} over a {@link ByteArrayOutputStream} synchronizes
+ * on every byte written.
+ */
+final class ByteArrayDataOutput extends OutputStream implements DataOutput {
+
+    private byte[] buffer;
+    private int size;
+
+    ByteArrayDataOutput(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    /**
+     * Appends the remaining bytes of {@code in} (without closing it).
+     *
+     * @param in
+     *            stream to read
+     * @return this
+     * @throws IOException
+     *             if reading fails
+     */
+    ByteArrayDataOutput readFrom(InputStream in) throws IOException {
+        while (true) {
+            ensureCapacity(1);
+            int count = in.read(buffer, size, buffer.length - size);
+            if (count == -1) {
+                return this;
+            }
+            size += count;
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (size + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + n));
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, size, len);
+        size += len;
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        ensureCapacity(2);
+        buffer[size++] = (byte) (v >>> 8);
+        buffer[size++] = (byte) v;
+    }
+
+    @Override
+    public void writeChar(int v) {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        buffer[size++] = (byte) (v >>> 24);
+        buffer[size++] = (byte) (v >>> 16);
+        buffer[size++] = (byte) (v >>> 8);
+        buffer[size++] = (byte) v;
+    }
+
+    @Override
+    public void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        // rarely used so let DataOutputStream do the modified UTF-8 encoding
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        write(bytes.toByteArray());
+    }
+
+}
@@ -0,0 +1,307 @@
+package com.github.davidmoten.fsm.persistence;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.davidmoten.fsm.persistence.exceptions.SQLRuntimeException;
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A fixed size pool of long-lived connections obtained from a connection
+ * factory. Connections are created as they are needed up to the size of the
+ * pool. Closing a connection from the pool rolls back any uncommitted work and
+ * returns it to the pool.
+ *
+ * <p>
+ * Each connection caches its prepared statements by SQL (the least recently
+ * used is evicted when the cache is full and closed once it is no longer in
+ * use). Closing a cached statement clears its parameters and batch, resets its
+ * fetch size and leaves it open for the next time the same SQL is prepared on
+ * the connection. If the cached statement is still in use (the same SQL
+ * prepared again before the statement was closed) an uncached statement is
+ * returned instead.
+ *
+ * <p>
+ * {@link #acquire()} fails if no connection is returned within the timeout
+ * rather than waiting forever, which would be a deadlock if the waiting thread
+ * already holds the connections of the pool.
+ */
+final class ConnectionPool {
+
+    private final Callable<Connection> connectionFactory;
+    private final int statementCacheSize;
+    private final int size;
+    private final long timeoutMs;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger created = new AtomicInteger();
+
+    ConnectionPool(Callable<Connection> connectionFactory, int size, int statementCacheSize, long timeoutMs) {
+        Preconditions.checkArgument(size >= 1, "size must be at least 1");
+        Preconditions.checkArgument(statementCacheSize >= 0, "statementCacheSize cannot be negative");
+        Preconditions.checkArgument(timeoutMs > 0, "timeoutMs must be positive");
+        this.connectionFactory = connectionFactory;
+        this.size = size;
+        this.statementCacheSize = statementCacheSize;
+        this.timeoutMs = timeoutMs;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns an idle connection, creating one if the pool is not full, or
+     * waits up to the timeout for a connection to be returned.
+     *
+     * @return connection that is returned to the pool when closed
+     * @throws IllegalStateException
+     *             if no connection was returned within the timeout
+     */
+    Connection acquire() {
+        PooledConnection con = idle.poll();
+        if (con != null) {
+            return con.acquired();
+        }
+        while (true) {
+            int n = created.get();
+            if (n >= size) {
+                break;
+            } else if (created.compareAndSet(n, n + 1)) {
+                try {
+                    return create();
+                } catch (RuntimeException e) {
+                    created.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+        try {
+            con = idle.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (con == null) {
+                throw new IllegalStateException("no pooled connection was returned within " + timeoutMs
+                        + "ms, all " + size
+                        + " are in use (is a thread that holds a connection waiting for another?)");
+            }
+            return con.acquired();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Connection create() {
+        Connection con;
+        try {
+            con = connectionFactory.call();
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return new PooledConnection(con).acquired();
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private final class PooledConnection implements InvocationHandler {
+
+        private final Connection con;
+        private final Connection proxy;
+        private boolean released;
+
+        // evicted from the cache while in use, closed when closed by the user
+        // or when the connection is released
+        private final List<CachedStatement> evicted = new ArrayList<>();
+
+        // key is the sql and the auto-generated keys flag
+        private final Map<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 6390931390633613389L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    CachedStatement s = eldest.getValue();
+                    if (s.inUse) {
+                        // don't close a statement (or open cursor) under its
+                        // user
+                        s.evicted = true;
+                        evicted.add(s);
+                    } else {
+                        s.closeQuietly();
+                    }
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+
+        PooledConnection(Connection con) {
+            this.con = con;
+            this.proxy = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, this);
+        }
+
+        Connection acquired() {
+            released = false;
+            return proxy;
+        }
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close") && method.getParameterCount() == 0) {
+                release();
+                return null;
+            } else if (name.equals("prepareStatement") && statementCacheSize > 0 && args.length <= 2
+                    && (args.length == 1 || method.getParameterTypes()[1] == int.class)) {
+                String sql = (String) args[0];
+                int autoGeneratedKeys = args.length == 1 ? Statement.NO_GENERATED_KEYS : (Integer) args[1];
+                String key = autoGeneratedKeys + ":" + sql;
+                CachedStatement s = statements.get(key);
+                if (s != null && s.broken) {
+                    // could not be reset when last closed
+                    statements.remove(key);
+                    s.closeQuietly();
+                    s = null;
+                }
+                if (s == null) {
+                    s = new CachedStatement((PreparedStatement) ConnectionPool.invoke(con, method, args));
+                    statements.put(key, s);
+                } else if (s.inUse) {
+                    // the same sql is being used concurrently on this
+                    // connection
+                    return ConnectionPool.invoke(con, method, args);
+                }
+                s.inUse = true;
+                return s.proxy;
+            } else {
+                return ConnectionPool.invoke(con, method, args);
+            }
+        }
+
+        private void release() {
+            if (released) {
+                // closing more than once has no effect
+                return;
+            }
+            released = true;
+            boolean ok;
+            try {
+                if (!con.getAutoCommit()) {
+                    con.rollback();
+                }
+                ok = !con.isClosed();
+            } catch (SQLException e) {
+                ok = false;
+            }
+            for (CachedStatement s : statements.values()) {
+                if (s.inUse) {
+                    // not closed by the user
+                    s.reset();
+                }
+            }
+            for (CachedStatement s : evicted) {
+                s.closeQuietly();
+            }
+            evicted.clear();
+            if (!ok) {
+                // discard the broken connection so a new one is created
+                for (CachedStatement s : statements.values()) {
+                    s.closeQuietly();
+                }
+                statements.clear();
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    // ignore
+                }
+                created.decrementAndGet();
+            } else {
+                idle.offer(this);
+            }
+        }
+
+    }
+
+    private static final class CachedStatement implements InvocationHandler {
+
+        private final PreparedStatement ps;
+        private final int fetchSize;
+        final PreparedStatement proxy;
+        boolean inUse;
+        boolean evicted;
+        boolean broken;
+
+        CachedStatement(PreparedStatement ps) throws SQLException {
+            this.ps = ps;
+            this.fetchSize = ps.getFetchSize();
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("close") && method.getParameterCount() == 0) {
+                if (evicted) {
+                    closeQuietly();
+                } else if (inUse) {
+                    // keep open for reuse
+                    reset();
+                }
+                return null;
+            } else {
+                return ConnectionPool.invoke(ps, method, args);
+            }
+        }
+
+        /**
+         * Returns the statement to the state it was prepared in so that nothing
+         * from its last use (like the rows of a batch that was never executed)
+         * carries over to the next.
+         */
+        void reset() {
+            inUse = false;
+            try {
+                ps.clearBatch();
+                ps.clearParameters();
+                ps.setFetchSize(fetchSize);
+            } catch (SQLException e) {
+                broken = true;
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+
+    }
+
+}
@@ -1,19 +1,51 @@
 package com.github.davidmoten.fsm.persistence;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import com.github.davidmoten.fsm.persistence.Persistence.EntityAndState;
 import com.github.davidmoten.fsm.persistence.Persistence.EntityWithId;
 import com.github.davidmoten.fsm.persistence.exceptions.EntitiesNotSetException;
 
+import io.reactivex.rxjava3.core.Flowable;
+
 public interface Entities {
 
     <T> Optional<EntityAndState<T>> getWithState(Class<T> cls, String id);
 
     <T> Optional<T> get(Class<T> cls, String id);
 
+    /**
+     * Returns the entities of class {@code cls} with the given ids that exist,
+     * keyed by id in the order of {@code ids}. The entities are read with one
+     * query per batch of ids rather than one per id. The default
+     * implementation reads each entity with {@link #get(Class, String)}.
+     * 
+     * @param cls
+     *            entity class
+     * @param ids
+     *            entity ids
+     * @param <T>
+     *            entity type
+     * @return existing entities by id
+     */
+    default <T> Map<String, T> getAll(Class<T> cls, Collection<String> ids) {
+        Map<String, T> map = new LinkedHashMap<>();
+        for (String id : ids) {
+            if (!map.containsKey(id)) {
+                get(cls, id).ifPresent(x -> map.put(id, x));
+            }
+        }
+        return map;
+    }
+
     <T> List<EntityWithId<T>> get(Class<T> cls);
 
     <T> Set<EntityWithId<T>> get(Class<T> cls, String name, String value);
@@ -22,9 +54,277 @@ public interface Entities {
 
     <T> Set<EntityWithId<T>> getAnd(Class<T> cls, Iterable<Property> properties);
 
+    /**
+     * Returns the ids of the entities of class {@code cls} without reading or
+     * deserializing the entities. The default implementation reads the
+     * entities with {@link #get(Class)}.
+     * 
+     * @param cls
+     *            entity class
+     * @return ids
+     */
+    default List<String> getIds(Class<?> cls) {
+        return get(cls).stream().map(x -> x.id).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the ids of the entities that have any of the properties. Only the
+     * property index is read so no entity is deserialized. The default
+     * implementation reads the entities with {@link #getOr}.
+     * 
+     * @param cls
+     *            entity class
+     * @param properties
+     *            properties to match
+     * @return ids
+     */
+    default Set<String> getIdsOr(Class<?> cls, Iterable<Property> properties) {
+        return getOr(cls, properties).stream().map(x -> x.id).collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Returns the ids of the entities that have all of the properties. Only the
+     * property index is read so no entity is deserialized. The default
+     * implementation reads the entities with {@link #getAnd}.
+     * 
+     * @param cls
+     *            entity class
+     * @param properties
+     *            properties to match
+     * @return ids
+     */
+    default Set<String> getIdsAnd(Class<?> cls, Iterable<Property> properties) {
+        return getAnd(cls, properties).stream().map(x -> x.id).collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Returns the indexed properties (from the {@code propertiesFactory}) by id
+     * of the entities that have any of the properties, without deserializing
+     * the entities. The default implementation throws
+     * {@link UnsupportedOperationException} because it needs the property
+     * index.
+     * 
+     * @param cls
+     *            entity class
+     * @param properties
+     *            properties to match
+     * @return indexed properties of each matching entity by id
+     */
+    default Map<String, Set<Property>> getPropertiesOr(Class<?> cls, Iterable<Property> properties) {
+        throw new UnsupportedOperationException("getPropertiesOr needs the property index");
+    }
+
+    /**
+     * Returns the indexed properties (from the {@code propertiesFactory}) by id
+     * of the entities that have all of the properties, without deserializing
+     * the entities. The default implementation throws
+     * {@link UnsupportedOperationException} because it needs the property
+     * index.
+     * 
+     * @param cls
+     *            entity class
+     * @param properties
+     *            properties to match
+     * @return indexed properties of each matching entity by id
+     */
+    default Map<String, Set<Property>> getPropertiesAnd(Class<?> cls, Iterable<Property> properties) {
+        throw new UnsupportedOperationException("getPropertiesAnd needs the property index");
+    }
+
+    /**
+     * Returns the number of entities of class {@code cls} in each state,
+     * counted in the database using the index on {@code entity(cls, state)}.
+     * The default implementation reads every entity with its state.
+     * 
+     * @param cls
+     *            entity class
+     * @return number of entities by state name, ordered by state name
+     */
+    default Map<String, Long> countByState(Class<?> cls) {
+        Map<String, Long> map = new TreeMap<>();
+        for (EntityWithId<?> e : get(cls)) {
+            getWithState(cls, e.id).ifPresent(x -> map.merge(x.state.toString(), 1L, Long::sum));
+        }
+        return map;
+    }
+
+    /**
+     * Returns the number of entities of class {@code cls} with each value of
+     * the indexed property {@code name}, counted in the database from the
+     * property index. The default implementation throws
+     * {@link UnsupportedOperationException} because it needs the property
+     * index.
+     * 
+     * @param cls
+     *            entity class
+     * @param name
+     *            property name
+     * @return number of entities by property value, ordered by value
+     */
+    default Map<String, Long> countByPropertyValue(Class<?> cls, String name) {
+        throw new UnsupportedOperationException("countByPropertyValue needs the property index");
+    }
+
+    /**
+     * Returns the count, minimum, maximum and sum of the range metric
+     * {@code rangeName} of the entities with the property {@code name=value},
+     * computed in the database from the range index. The default
+     * implementation throws {@link UnsupportedOperationException} because it
+     * needs the range index.
+     * 
+     * @param cls
+     *            entity class
+     * @param name
+     *            property name
+     * @param value
+     *            property value
+     * @param rangeName
+     *            name of the range metric
+     * @return range statistics
+     */
+    default RangeStats rangeStats(Class<?> cls, String name, String value, String rangeName) {
+        throw new UnsupportedOperationException("rangeStats needs the range index");
+    }
+
+    /**
+     * Returns up to {@code limit} entities with the property {@code name=value}
+     * and range metric in the given range ordered by range value and id,
+     * following the entity {@code lastId} if present. If {@code lastId} is no
+     * longer in the range index an empty list is returned. Prefer
+     * {@link #getPage} which does not need {@code lastId} to still be
+     * indexed.
+     * 
+     * @param <T>
+     *            entity type
+     * @param cls
+     *            entity class
+     * @param name
+     *            property name
+     * @param value
+     *            property value
+     * @param rangeName
+     *            name of the range metric
+     * @param rangeStart
+     *            start of the range
+     * @param startInclusive
+     *            true if the range start is inclusive
+     * @param rangeEnd
+     *            end of the range
+     * @param endInclusive
+     *            true if the range end is inclusive
+     * @param limit
+     *            maximum number of entities returned
+     * @param lastId
+     *            id of the last entity of the previous page
+     * @return entities
+     */
     <T> List<EntityWithId<T>> get(Class<T> cls, String name, String value, String rangeName, long rangeStart,
             boolean startInclusive, long rangeEnd, boolean endInclusive, int limit, Optional<String> lastId);
 
+    /**
+     * Returns up to {@code limit} entities with the property {@code name=value}
+     * whose range metric {@code rangeName} is in the given range, ordered by
+     * range value then id. Pass the {@link Page#next()} token of a page as
+     * {@code after} to read the following page. Each page is one seek on the
+     * range index however deep it is, and rows are neither skipped nor repeated
+     * between pages. The default implementation pages with
+     * {@link #get(Class, String, String, String, long, boolean, long, boolean, int, Optional)}
+     * using the id of the last entity of a page as the token.
+     * 
+     * @param cls
+     *            entity class
+     * @param name
+     *            property name
+     * @param value
+     *            property value
+     * @param rangeName
+     *            name of the range metric
+     * @param rangeStart
+     *            start of the range
+     * @param startInclusive
+     *            true if the start is inclusive
+     * @param rangeEnd
+     *            end of the range
+     * @param endInclusive
+     *            true if the end is inclusive
+     * @param limit
+     *            maximum number of entities in the page
+     * @param after
+     *            token of the previous page, empty for the first page
+     * @param <T>
+     *            entity type
+     * @return page of entities
+     */
+    default <T> Page<T> getPage(Class<T> cls, String name, String value, String rangeName, long rangeStart,
+            boolean startInclusive, long rangeEnd, boolean endInclusive, int limit, Optional<String> after) {
+        List<EntityWithId<T>> items = get(cls, name, value, rangeName, rangeStart, startInclusive, rangeEnd,
+                endInclusive, limit, after);
+        Optional<String> next = items.size() < limit ? Optional.empty()
+                : Optional.of(items.get(items.size() - 1).id);
+        return new Page<T>(items, next);
+    }
+
+    /**
+     * Returns the entities of class {@code cls} read from a database cursor as
+     * they are requested, so the whole table is never held in memory.
+     * Subscribing runs the query and the cursor is closed when the stream
+     * completes or is cancelled. Inside a behaviour the stream uses the
+     * transaction's connection and must be consumed before the behaviour
+     * returns. The default implementation emits the entities read with
+     * {@link #get(Class)} when subscribed.
+     * 
+     * @param cls
+     *            entity class
+     * @param fetchSize
+     *            number of rows fetched from the database at a time
+     * @param parallelism
+     *            if greater than 1 then up to this many entities are
+     *            deserialized concurrently on the common fork-join pool (in
+     *            order), otherwise each entity is deserialized on the
+     *            consuming thread as it is requested
+     * @param <T>
+     *            entity type
+     * @return stream of entities
+     */
+    default <T> Flowable<EntityWithId<T>> stream(Class<T> cls, int fetchSize, int parallelism) {
+        return Flowable.defer(() -> Flowable.fromIterable(get(cls)));
+    }
+
+    /**
+     * Returns the entities of class {@code cls} that have the property
+     * {@code name=value}, read from a database cursor as they are requested.
+     * See {@link #stream(Class, int, int)}. The default implementation emits the
+     * entities read with {@link #get(Class, String, String)} when subscribed.
+     * 
+     * @param cls
+     *            entity class
+     * @param name
+     *            property name
+     * @param value
+     *            property value
+     * @param fetchSize
+     *            number of rows fetched from the database at a time
+     * @param parallelism
+     *            maximum number of entities deserialized concurrently
+     * @param <T>
+     *            entity type
+     * @return stream of entities
+     */
+    default <T> Flowable<EntityWithId<T>> stream(Class<T> cls, String name, String value, int fetchSize,
+            int parallelism) {
+        return Flowable.defer(() -> Flowable.fromIterable(get(cls, name, value)));
+    }
+
+    default <T> Flowable<EntityWithId<T>> stream(Class<T> cls) {
+        return stream(cls, DEFAULT_FETCH_SIZE, 1);
+    }
+
+    default <T> Flowable<EntityWithId<T>> stream(Class<T> cls, String name, String value) {
+        return stream(cls, name, value, DEFAULT_FETCH_SIZE, 1);
+    }
+
+    static final int DEFAULT_FETCH_SIZE = 256;
+
     static final ThreadLocal<Entities> current = new ThreadLocal<Entities>();
 
     public static void set(Entities entities) {
@@ -0,0 +1,75 @@
+package com.github.davidmoten.fsm.persistence;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.davidmoten.fsm.persistence.Persistence.EntityAndState;
+import com.github.davidmoten.fsm.runtime.rx.ClassId;
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A bounded least recently used cache of deserialized entities and their
+ * states as last committed. Entries are only added by the processing of
+ * signals once their transaction has committed so a reader never puts a stale
+ * entity into the cache.
+ */
+final class EntityCache {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // guarded by this
+    private final Map<ClassId<?, String>, EntityAndState<?>> map;
+
+    EntityCache(int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+        this.map = new LinkedHashMap<ClassId<?, String>, EntityAndState<?>>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3722315489270458498L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ClassId<?, String>, EntityAndState<?>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> Optional<EntityAndState<T>> get(Class<T> cls, String id) {
+        EntityAndState<T> value;
+        synchronized (this) {
+            value = (EntityAndState<T>) map.get(ClassId.create(cls, id));
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        } else {
+            hits.incrementAndGet();
+            return Optional.of(value);
+        }
+    }
+
+    synchronized void putAll(Map<ClassId<?, String>, EntityAndState<?>> entities) {
+        map.putAll(entities);
+    }
+
+    synchronized void removeAll(Iterable<ClassId<?, String>> keys) {
+        for (ClassId<?, String> key : keys) {
+            map.remove(key);
+        }
+    }
+
+    synchronized void clear() {
+        map.clear();
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+}
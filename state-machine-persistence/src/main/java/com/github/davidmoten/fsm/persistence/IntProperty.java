@@ -14,4 +14,35 @@ public final class IntProperty {
         return new IntProperty(name,value);
     }
 
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((name == null) ? 0 : name.hashCode());
+        result = prime * result + value;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        IntProperty other = (IntProperty) obj;
+        if (name == null) {
+            if (other.name != null)
+                return false;
+        } else if (!name.equals(other.name))
+            return false;
+        return value == other.value;
+    }
+
+    @Override
+    public String toString() {
+        return "IntProperty [name=" + name + ", value=" + value + "]";
+    }
+
 }
@@ -0,0 +1,43 @@
+package com.github.davidmoten.fsm.persistence;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.github.davidmoten.fsm.persistence.Persistence.EntityWithId;
+
+/**
+ * A page of entities from a range query together with the token to pass as
+ * {@code after} to read the next page.
+ *
+ * @param <T>
+ *            entity type
+ */
+public final class Page<T> {
+
+    private final List<EntityWithId<T>> items;
+    private final Optional<String> next;
+
+    public Page(List<EntityWithId<T>> items, Optional<String> next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    public List<EntityWithId<T>> items() {
+        return items;
+    }
+
+    /**
+     * Returns the token for the next page, empty if this is the last page.
+     *
+     * @return token for the next page
+     */
+    public Optional<String> next() {
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return "Page [items=" + items + ", next=" + next + "]";
+    }
+
+}
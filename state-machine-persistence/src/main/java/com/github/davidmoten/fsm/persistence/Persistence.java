@@ -1,11 +1,9 @@
 package com.github.davidmoten.fsm.persistence;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -14,19 +12,28 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -45,31 +52,72 @@ import com.github.davidmoten.fsm.runtime.EntityState;
 import com.github.davidmoten.fsm.runtime.EntityStateMachine;
 import com.github.davidmoten.fsm.runtime.Event;
 import com.github.davidmoten.fsm.runtime.Signal;
+import com.github.davidmoten.fsm.runtime.rx.ClassId;
 import com.github.davidmoten.guavamini.Preconditions;
 
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
 public final class Persistence implements Entities {
 
+    private static final int SIGNAL_ALL_BATCH_SIZE = 256;
+
+    private static final Create CREATE = new Create();
+
+    // signal_store rows hold every event applied to an entity including
+    // Create and signals to self. Rows of format 0 hold only the signals
+    // received by the entity.
+    private static final int SIGNAL_STORE_FORMAT = 1;
+    private static final int SIGNAL_STORE_FORMAT_LEGACY = 0;
+
+    // rows fetched at a time when streaming events from signal_store
+    private static final int REPLAY_FETCH_SIZE = 256;
+
+    // maximum number of ids bound in one getAll query
+    private static final int MAX_IDS_PER_QUERY = 256;
+
+    // used when a stream of entities is deserialized in parallel
+    private static final Scheduler DESERIALIZE_SCHEDULER = Schedulers.from(ForkJoinPool.commonPool());
+
+    // entities and events are serialized into a reusable buffer per thread
+    // that is dropped if it grows beyond this size
+    private static final int SERIALIZE_BUFFER_MAX_RETAINED = 64 * 1024;
+
+    private static final ThreadLocal<ByteArrayDataOutput> SERIALIZE_BUFFER = ThreadLocal
+            .withInitial(() -> new ByteArrayDataOutput(1024));
+
     private final ScheduledExecutorService executor;
     private final Clock clock;
     private final Serializer entitySerializer;
     private final Serializer eventSerializer;
     private final Sql sql;
     private final Callable<Connection> connectionFactory;
+    private final ConnectionPool pool; // nullable
+    private final boolean optimizeRoundTrips;
+    private final EntityCache entityCache; // nullable
+    private final int snapshotInterval;
+    // events stored per entity since its last snapshot, read from the
+    // database when absent and removed when a snapshot is saved
+    private final Map<ClassId<?, String>, Long> eventsSinceSnapshot = new ConcurrentHashMap<>();
     private final Function<Class<?>, EntityBehaviour<?, String>> behaviourFactory;
-    private final Queue<NumberedSignal<?, ?>> queue = new LinkedList<>();
-    private final AtomicInteger wip = new AtomicInteger();
+    private final List<Lane> lanes;
     private final boolean storeSignals;
     private final Consumer<Throwable> errorHandler;
     private final long retryIntervalMs;
     // enables indexed searches
     private final Function<Object, Iterable<Property>> propertiesFactory;
     private final Function<Object, Optional<IntProperty>> rangeMetricFactory;
+    private final int groupCommitMaxSignals;
+    private final long groupCommitWindowMs;
 
     private Persistence(ScheduledExecutorService executor, Clock clock, Serializer entitySerializer,
             Serializer eventSerializer, Function<Class<?>, EntityBehaviour<?, String>> behaviourFactory, Sql sql,
             Callable<Connection> connectionFactory, boolean storeSignals, Consumer<Throwable> errorHandler,
             long retryIntervalMs, Function<Object, Iterable<Property>> propertiesFactory,
-            Function<Object, Optional<IntProperty>> rangeMetricFactory) {
+            Function<Object, Optional<IntProperty>> rangeMetricFactory, int groupCommitMaxSignals,
+            long groupCommitWindowMs, int lanes, int connectionPoolSize, long connectionPoolTimeoutMs,
+            int statementCacheSize, boolean optimizeRoundTrips, int entityCacheSize, int snapshotInterval) {
         this.executor = executor;
         this.clock = clock;
         this.entitySerializer = entitySerializer;
@@ -77,11 +125,23 @@ public final class Persistence implements Entities {
         this.behaviourFactory = behaviourFactory;
         this.sql = sql;
         this.connectionFactory = connectionFactory;
+        this.pool = connectionPoolSize == 0 ? null
+                : new ConnectionPool(connectionFactory, connectionPoolSize, statementCacheSize,
+                        connectionPoolTimeoutMs);
+        this.optimizeRoundTrips = optimizeRoundTrips;
+        this.entityCache = entityCacheSize == 0 ? null : new EntityCache(entityCacheSize);
+        this.snapshotInterval = snapshotInterval;
         this.storeSignals = storeSignals;
         this.errorHandler = errorHandler;
         this.retryIntervalMs = retryIntervalMs;
         this.propertiesFactory = propertiesFactory;
         this.rangeMetricFactory = rangeMetricFactory;
+        this.groupCommitMaxSignals = groupCommitMaxSignals;
+        this.groupCommitWindowMs = groupCommitWindowMs;
+        this.lanes = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            this.lanes.add(new Lane());
+        }
     }
 
     public static Builder connectionFactory(Callable<Connection> connectionFactory) {
@@ -92,6 +152,8 @@ public final class Persistence implements Entities {
 
         public static final int DEFAULT_RETRY_INTERVAL_MS = 30000;
 
+        public static final long DEFAULT_CONNECTION_POOL_TIMEOUT_MS = 30000;
+
         private static final Consumer<Throwable> PRINT_STACK_TRACE_AND_THROW = t -> {
             t.printStackTrace();
             throw new RuntimeException(t);
@@ -101,7 +163,7 @@ public final class Persistence implements Entities {
             t.printStackTrace();
         };
 
-        private ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+        private ScheduledExecutorService executor; // nullable
         private Clock clock = ClockDefault.instance();
         private Serializer entitySerializer = Serializer.JSON;
         private Serializer eventSerializer = Serializer.JSON;
@@ -117,6 +179,15 @@ public final class Persistence implements Entities {
         private Function<Object, Optional<IntProperty>> rangeMetricFactory;
 
         private final Map<Class<?>, Function<Object, Optional<IntProperty>>> rangeMetrics = new HashMap<>();
+        private int groupCommitMaxSignals = 1;
+        private long groupCommitWindowMs;
+        private int lanes = 1;
+        private int connectionPoolSize; // 0 means no pool
+        private long connectionPoolTimeoutMs = DEFAULT_CONNECTION_POOL_TIMEOUT_MS;
+        private int statementCacheSize = 32;
+        private boolean optimizeRoundTrips;
+        private int entityCacheSize; // 0 means no cache
+        private int snapshotInterval; // 0 means no snapshots
 
         private Builder() {
             // do nothing
@@ -218,7 +289,161 @@ public final class Persistence implements Entities {
             return this;
         }
 
+        /**
+         * Processes up to {@code maxSignals} queued signals in one transaction
+         * (group commit) so that the cost of a commit is shared between them.
+         * If fewer signals are queued the drain loop waits up to
+         * {@code window} for more to arrive before processing the batch. If a
+         * signal in the batch fails the batch is rolled back and its signals
+         * processed one transaction each.
+         * 
+         * @param maxSignals
+         *            maximum number of signals per transaction, 1 to disable
+         *            group commit
+         * @param window
+         *            how long to wait for a batch to fill, 0 to not wait
+         * @param unit
+         *            the window unit
+         * @return this
+         */
+        public Builder groupCommit(int maxSignals, long window, TimeUnit unit) {
+            Preconditions.checkArgument(maxSignals >= 1, "maxSignals must be at least 1");
+            Preconditions.checkArgument(window >= 0, "window cannot be negative");
+            this.groupCommitMaxSignals = maxSignals;
+            this.groupCommitWindowMs = unit.toMillis(window);
+            return this;
+        }
+
+        /**
+         * Sets the number of lanes that signals are processed in. Signals are
+         * assigned to a lane by the hash of the class and id of their target
+         * entity so signals to an entity are processed in order while signals
+         * to unrelated entities are processed concurrently, each lane using its
+         * own connection. Without a connection pool each lane keeps one
+         * connection open for its lifetime (replaced if a transaction fails),
+         * with a pool it takes a pooled connection for each transaction. If an
+         * executor is not specified one is created with a thread per lane.
+         * 
+         * @param lanes
+         *            number of lanes
+         * @return this
+         */
+        public Builder lanes(int lanes) {
+            Preconditions.checkArgument(lanes >= 1, "lanes must be at least 1");
+            this.lanes = lanes;
+            return this;
+        }
+
+        /**
+         * Keeps up to {@code size} connections from the connection factory open
+         * and reuses them rather than calling the factory for every
+         * transaction and query. Pooled connections cache their prepared
+         * statements (see {@link #statementCacheSize(int)}). A size of 0 (the
+         * default) disables the pool. Use at least as many connections as
+         * lanes.
+         * 
+         * @param size
+         *            maximum number of pooled connections
+         * @return this
+         */
+        public Builder connectionPoolSize(int size) {
+            Preconditions.checkArgument(size >= 0, "size cannot be negative");
+            this.connectionPoolSize = size;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait for a pooled connection to be returned when all
+         * are in use before failing with an {@link IllegalStateException}. The
+         * default is {@value #DEFAULT_CONNECTION_POOL_TIMEOUT_MS}ms.
+         * 
+         * @param timeout
+         *            maximum time to wait for a connection
+         * @param unit
+         *            unit of the timeout
+         * @return this
+         */
+        public Builder connectionPoolTimeout(long timeout, TimeUnit unit) {
+            Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+            this.connectionPoolTimeoutMs = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of prepared statements cached per pooled
+         * connection (keyed by SQL). Only applies when a connection pool is
+         * used. 0 disables the cache.
+         * 
+         * @param size
+         *            maximum number of cached statements per connection
+         * @return this
+         */
+        public Builder statementCacheSize(int size) {
+            Preconditions.checkArgument(size >= 0, "size cannot be negative");
+            this.statementCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Reduces the number of database round trips made when processing a
+         * signal. The signal is deleted from its queue up front (a delete count
+         * of zero means it has already been processed) rather than checked for
+         * existence and deleted later, the entity is written with a single
+         * merge (see {@link Sql#mergeEntity()}) and signals and properties are
+         * inserted with JDBC batches. The database must support returning
+         * generated keys from batch inserts.
+         * 
+         * @param optimizeRoundTrips
+         *            whether to reduce round trips
+         * @return this
+         */
+        public Builder optimizeRoundTrips(boolean optimizeRoundTrips) {
+            this.optimizeRoundTrips = optimizeRoundTrips;
+            return this;
+        }
+
+        /**
+         * Keeps up to {@code size} deserialized entities (with their states) as
+         * last committed in memory so that processing a signal and calls to
+         * {@code get} and {@code getWithState} don't have to read and
+         * deserialize them. The cache is written through when a transaction
+         * commits and its entities are invalidated when it is rolled back so
+         * the database must not be updated other than by this
+         * {@code Persistence}. Cached entities are shared so should be
+         * immutable. A size of 0 (the default) disables the cache.
+         * 
+         * @param size
+         *            maximum number of cached entities
+         * @return this
+         */
+        public Builder entityCacheSize(int size) {
+            Preconditions.checkArgument(size >= 0, "size cannot be negative");
+            this.entityCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Saves a snapshot of an entity and its state to the
+         * {@code entity_snapshot} table once {@code events} events have been
+         * stored in {@code signal_store} for it since its last snapshot.
+         * Replaying an entity then only applies the events stored after its
+         * latest snapshot. Snapshots are only saved when signals are stored. A
+         * value of 0 (the default) disables snapshots.
+         * 
+         * @param events
+         *            number of events between snapshots of an entity
+         * @return this
+         */
+        public Builder snapshotInterval(int events) {
+            Preconditions.checkArgument(events >= 0, "events cannot be negative");
+            this.snapshotInterval = events;
+            return this;
+        }
+
         public Persistence build() {
+            if (executor == null) {
+                executor = Executors.newScheduledThreadPool(lanes);
+            }
             if (behaviourFactory == null) {
                 behaviourFactory = new Function<Class<?>, EntityBehaviour<?, String>>() {
                     @Override
@@ -263,7 +488,9 @@ public final class Persistence implements Entities {
             }
             return new Persistence(executor, clock, entitySerializer, eventSerializer, behaviourFactory, sql,
                     connectionFactory, storeSignals, errorHandler, retryIntervalMs, propertiesFactory,
-                    rangeMetricFactory);
+                    rangeMetricFactory, groupCommitMaxSignals, groupCommitWindowMs, lanes, connectionPoolSize,
+                    connectionPoolTimeoutMs, statementCacheSize, optimizeRoundTrips, entityCacheSize,
+                    snapshotInterval);
         }
 
         public Builder errorHandlerPrintStackTrace() {
@@ -296,33 +523,81 @@ public final class Persistence implements Entities {
         signal(Signal.create(cls, id, event));
     }
 
+    /**
+     * Adds the signal to the signal queue and queues it for processing (see
+     * {@link #signalAll(Iterable)}).
+     * 
+     * @param signal
+     *            signal to add
+     * @throws IllegalArgumentException
+     *             if the signal is delayed (has a time)
+     */
     public void signal(Signal<?, String> signal) {
+        signalAll(Collections.singletonList(signal));
+    }
 
-        if (!signal.time().isPresent()) {
-            try ( //
-                    Connection con = createConnection();
-                    PreparedStatement ps = con.prepareStatement(sql.addToSignalQueue(), Statement.RETURN_GENERATED_KEYS)) {
+    /**
+     * Adds the signals to the signal queue in one transaction using a JDBC batch
+     * insert and then queues them for processing together. Delayed signals are
+     * not supported, only an entity can send a delayed signal (from its
+     * behaviour).
+     * 
+     * @param signals
+     *            signals to add
+     * @throws IllegalArgumentException
+     *             if any signal is delayed (has a time), in which case none of
+     *             the signals are added
+     */
+    @SuppressWarnings("unchecked")
+    public void signalAll(Iterable<? extends Signal<?, String>> signals) {
+        List<Signal<?, String>> list = new ArrayList<>();
+        for (Signal<?, String> signal : signals) {
+            if (signal.time().isPresent()) {
+                throw new IllegalArgumentException("delayed signals are not supported by signalAll");
+            }
+            list.add(signal);
+        }
+        if (list.isEmpty()) {
+            return;
+        }
+        List<NumberedSignal<?, ?>> numbered = new ArrayList<>(list.size());
+        try ( //
+                Connection con = createConnection();
+                PreparedStatement ps = con.prepareStatement(sql.addToSignalQueue(), Statement.RETURN_GENERATED_KEYS)) {
+            for (Signal<?, String> signal : list) {
                 ps.setString(1, signal.cls().getName());
                 ps.setString(2, signal.id());
                 ps.setString(3, signal.event().getClass().getName());
-                ps.setBlob(4, new ByteArrayInputStream(eventSerializer.serialize(signal.event())));
-                ps.executeUpdate();
-                List<Long> numbers = new ArrayList<Long>();
-                try (ResultSet rs = ps.getGeneratedKeys()) {
-                    rs.next();
-                    long number = rs.getLong(1);
-                    numbers.add(number);
-                }
-                con.commit();
-                for (long number : numbers) {
-                    offer(new NumberedSignal<>(signal, number));
+                setBytes(ps, 4, eventSerializer, signal.event());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            // the generated keys are returned in insertion order
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                for (Signal<?, String> signal : list) {
+                    if (!rs.next()) {
+                        throw new SQLException("generated keys not returned for all signals in batch");
+                    }
+                    numbered.add(new NumberedSignal<Object, String>((Signal<Object, String>) signal, rs.getLong(1)));
                 }
-            } catch (SQLException e) {
-                throw new SQLRuntimeException(e);
             }
-        } else {
-            throw new UnsupportedOperationException();
+            con.commit();
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
         }
+        offerAll(numbered);
+    }
+
+    /**
+     * Adds the signals emitted by the given flowable in batches of up to
+     * {@value #SIGNAL_ALL_BATCH_SIZE} (see {@link #signalAll(Iterable)}). Blocks
+     * until the flowable completes.
+     * 
+     * @param signals
+     *            signals to add
+     */
+    public void signalAll(Flowable<? extends Signal<?, String>> signals) {
+        signals.buffer(SIGNAL_ALL_BATCH_SIZE).blockingForEach(this::signalAll);
     }
 
     @SuppressWarnings("unchecked")
@@ -336,10 +611,9 @@ public final class Persistence implements Entities {
                     long number = rs.getLong("seq_num");
                     String className = rs.getString("cls");
                     String id = rs.getString("id");
-                    byte[] eventBytes = readAll(rs.getBlob("event_bytes").getBinaryStream());
                     String eventClsName = rs.getString("event_cls");
                     Class<?> eventClass = Class.forName(eventClsName);
-                    Object event = eventSerializer.deserialize(eventClass, eventBytes);
+                    Object event = eventSerializer.deserialize(eventClass, rs.getBinaryStream("event_bytes"));
                     Class<?> cls = Class.forName(className);
                     long time = rs.getTimestamp("times").getTime();
                     Signal<Object, String> signal = Signal.create((Class<Object>) cls, id, (Event<Object>) event,
@@ -379,105 +653,155 @@ public final class Persistence implements Entities {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private boolean process(NumberedSignal<?, String> signal) {
-        List<NumberedSignal<?, ?>> numberedSignalsToOther;
-        List<NumberedSignal<?, ?>> delayedNumberedSignalsToOther;
-        try (Connection con = createConnection()) {
-
-            // if signal does not exist in queue anymore then ignore
-            if (!signalExists(con, signal)) {
-                return true;
+    /**
+     * Signals to others created by processing, sent once the transaction has
+     * been committed.
+     */
+    private final class Outputs {
+        final List<NumberedSignal<?, ?>> signalsToOther = new ArrayList<>();
+        final List<NumberedSignal<?, ?>> delayedSignalsToOther = new ArrayList<>();
+        // entities written by the transaction
+        final Map<ClassId<?, String>, EntityAndState<?>> entities = new HashMap<>();
+
+        void rolledBack() {
+            if (entityCache != null) {
+                entityCache.removeAll(entities.keySet());
             }
+        }
 
-            // if is cancellation then remove signal from delayed queue and
-            // return
-            if (handleCancellationSignal(con, signal)) {
-                return true;
+        void send() {
+            if (entityCache != null) {
+                entityCache.putAll(entities);
             }
+            if (!signalsToOther.isEmpty()) {
+                offerAll(signalsToOther);
+            }
+            for (NumberedSignal<?, ?> signalToOther : delayedSignalsToOther) {
+                schedule(signalToOther);
+            }
+        }
+    }
 
-            // get behaviour
-            EntityBehaviour<Object, String> behaviour = (EntityBehaviour<Object, String>) behaviourFactory
-                    .apply(signal.signal.cls());
-
+    @SuppressWarnings("unchecked")
+    private void process(Connection con, NumberedSignal<?, String> signal,
+            Map<ClassId<?, String>, EntityStateMachine<?, String>> machines, Outputs outputs) throws SQLException {
+
+        if (optimizeRoundTrips) {
+            // removing the signal from the queue up front replaces the exists
+            // check, if it is not there anymore then ignore
+            if (!removeSignal(con, signal)) {
+                return;
+            }
+        } else if (!signalExists(con, signal)) {
+            // if signal does not exist in queue anymore then ignore
+            return;
+        }
+
+        // if is cancellation then remove signal from delayed queue and
+        // return
+        if (handleCancellationSignal(con, signal)) {
+            return;
+        }
+
+        // get behaviour
+        EntityBehaviour<Object, String> behaviour = (EntityBehaviour<Object, String>) behaviourFactory
+                .apply(signal.signal.cls());
+
+        // initialize state machine from earlier in the batch or by reading the
+        // entity
+        ClassId<?, String> key = ClassId.create(signal.signal.cls(), signal.signal.id());
+        EntityStateMachine<?, String> esm = machines == null ? null : machines.get(key);
+
+        // the entity as last saved, the property index was written from it
+        Optional<Object> saved;
+        // the events applied to the entity, to be appended to signal_store
+        List<Event<?>> applied = storeSignals ? new ArrayList<>() : null;
+        Optional<EntityAndState<Object>> cached = esm != null || entityCache == null ? Optional.empty()
+                : entityCache.get((Class<Object>) signal.signal.cls(), signal.signal.id());
+        if (esm != null) {
+            saved = (Optional<Object>) esm.get();
+        } else if (cached.isPresent()) {
+            // the entity as last committed
+            esm = behaviour.create(signal.signal.id(), cached.get().entity, cached.get().state);
+            saved = Optional.of(cached.get().entity);
+        } else {
             // read entity
-            ReadResult<Object> readResult = readEntity(con, (Class<Object>) signal.signal.cls(), signal.signal.id(),
-                    (EntityBehaviour<Object, String>) behaviour);
-
-            // initialize state machine
-            final EntityStateMachine<?, String> esm;
+            ReadResult<Object> readResult = readEntity(con, (Class<Object>) signal.signal.cls(),
+                    signal.signal.id(), (EntityBehaviour<Object, String>) behaviour);
 
+            Optional<EntityAndState<Object>> entityState;
             if (!readResult.replayRequired) {
-                esm = getStateMachine(signal, behaviour, readResult.entityState);
+                entityState = readResult.entityState;
+                saved = readResult.entityState.map(x -> x.entity);
             } else {
-                // TODO write replay code
-                throw new UnsupportedOperationException("unexpected");
+                // the entity bytes are missing so rebuild the entity from its
+                // latest snapshot and the events stored since
+                EntityStateMachine<Object, String> replayed = rebuild(con, (Class<Object>) signal.signal.cls(),
+                        signal.signal.id(), behaviour);
+                entityState = replayed.get().map(x -> EntityAndState.create(x, replayed.state()));
+                // the property index is written again from scratch
+                deleteEntityProperties(con, signal.signal.cls(), signal.signal.id());
+                saved = Optional.empty();
             }
-
-            // append signal to signal_store (optional)
-            if (storeSignals) {
-                insertIntoSignalStore(con, esm, signal.signal.event(), eventSerializer);
+            esm = getStateMachine(signal, behaviour, entityState);
+            if (!entityState.isPresent() && applied != null) {
+                // replay applies the creation event too
+                applied.add(CREATE);
             }
+        }
 
-            Signals<String> signals = new Signals<String>();
-            signals.signalsToSelf.offerFirst(signal.signal.event());
+        Signals<String> signals = new Signals<String>();
+        signals.signalsToSelf.offerFirst(signal.signal.event());
 
-            // set the ThreadLocal connection so the behaviour classes can call
-            // Persistence methods
+        // set the ThreadLocal connection so the behaviour classes can call
+        // Persistence methods
 
-            Entities entities = createEntities(con);
-            Entities.set(entities);
+        Entities entities = createEntities(con);
+        Entities.set(entities);
 
-            EntityStateMachine<?, String> esm2;
-            try {
-                // push signal through state machine which will immediately
-                // process
-                // non-delayed signals to self and accumulate signals to others
-                esm2 = pushSignalThroughStateMachine(esm, signals);
-            } finally {
-                Entities.clear();
+        EntityStateMachine<?, String> esm2;
+        try {
+            // push signal through state machine which will immediately
+            // process
+            // non-delayed signals to self and accumulate signals to others
+            esm2 = pushSignalThroughStateMachine(esm, signals, applied);
+        } finally {
+            Entities.clear();
+        }
+
+        // append the applied events to signal_store (optional)
+        if (storeSignals) {
+            insertIntoSignalStore(con, esm2.cls(), esm2.id(), applied);
+            if (snapshotInterval > 0 && esm2.get().isPresent()) {
+                saveSnapshotIfDue(con, esm2, applied.size());
             }
+        }
 
-            Deque<Signal<?, String>> signalsToOther = signals.signalsToOther;
+        Deque<Signal<?, String>> signalsToOther = signals.signalsToOther;
 
-            // add signals to others to signal_queue
-            numberedSignalsToOther = insertSignalsToOther(con, eventSerializer, signalsToOther);
+        // add signals to others to signal_queue
+        outputs.signalsToOther.addAll(insertSignalsToOther(con, eventSerializer, signalsToOther));
 
-            // add delayed signals to other to delayed_signal_queue
-            delayedNumberedSignalsToOther = insertDelayedSignalsToOther(con, esm2.cls(), esm.id(), eventSerializer,
-                    signalsToOther);
+        // add delayed signals to other to delayed_signal_queue
+        outputs.delayedSignalsToOther.addAll(
+                insertDelayedSignalsToOther(con, esm2.cls(), esm.id(), eventSerializer, signalsToOther));
 
-            // remove signal from signal_queue
+        // remove signal from signal_queue
+        if (!optimizeRoundTrips) {
             removeSignal(con, signal);
+        }
 
-            // update/create the entity bytes and state to entity table
-            saveEntity(con, esm2);
-
-            if (esm2.get().isPresent()) {
-                Iterable<Property> properties = propertiesFactory.apply(esm2.get().get());
-                Optional<IntProperty> rangeMetric;
-                if (rangeMetricFactory == null) {
-                    rangeMetric = Optional.empty();
-                } else {
-                    rangeMetric = rangeMetricFactory.apply(esm2.get().get());
-                }
-                saveEntityProperties(con, esm2.cls(), esm2.id(), properties, rangeMetric);
-            }
+        // update/create the entity bytes and state to entity table
+        saveEntity(con, esm2);
 
-            // commit the transaction
-            con.commit();
-        } catch (Throwable e) {
-            errorHandler.accept(e);
-            scheduleRetry();
-            return false;
-        }
-        for (NumberedSignal<?, ?> signalToOther : numberedSignalsToOther) {
-            offer((NumberedSignal<?, String>) signalToOther);
+        if (esm2.get().isPresent()) {
+            saveEntityProperties(con, esm2.cls(), esm2.id(), saved, esm2.get().get());
+            outputs.entities.put(key, EntityAndState.create(esm2.get().get(), (EntityState<Object>) esm2.state()));
         }
-        for (NumberedSignal<?, ?> signalToOther : delayedNumberedSignalsToOther) {
-            schedule(signalToOther);
+
+        if (machines != null) {
+            machines.put(key, esm2);
         }
-        return true;
     }
 
     private Entities createEntities(Connection con) {
@@ -501,6 +825,15 @@ public final class Persistence implements Entities {
                 }
             }
 
+            @Override
+            public <T> Map<String, T> getAll(Class<T> cls, Collection<String> ids) {
+                try {
+                    return Persistence.this.getAll(cls, ids, con);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
             @Override
             public <T> List<EntityWithId<T>> get(Class<T> cls) {
                 try {
@@ -510,6 +843,19 @@ public final class Persistence implements Entities {
                 }
             }
 
+            @Override
+            public <T> Flowable<EntityWithId<T>> stream(Class<T> cls, int fetchSize, int parallelism) {
+                return Persistence.this.stream(cls, () -> con, false, sql.readAllEntities(),
+                        Collections.singletonList(cls.getName()), fetchSize, parallelism);
+            }
+
+            @Override
+            public <T> Flowable<EntityWithId<T>> stream(Class<T> cls, String name, String value, int fetchSize,
+                    int parallelism) {
+                return Persistence.this.stream(cls, () -> con, false, sql.readEntitiesByProperties(1, false),
+                        Arrays.asList(cls.getName(), cls.getName(), name, value), fetchSize, parallelism);
+            }
+
             @Override
             public <T> Set<EntityWithId<T>> get(Class<T> cls, String key, String value) {
                 try {
@@ -548,59 +894,262 @@ public final class Persistence implements Entities {
                     throw new SQLRuntimeException(e);
                 }
             }
+
+            @Override
+            public List<String> getIds(Class<?> cls) {
+                try {
+                    return Persistence.this.getIds(cls, con);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public Set<String> getIdsOr(Class<?> cls, Iterable<Property> properties) {
+                try {
+                    return Persistence.this.getIds(cls, properties, con, LogicalOperation.OR);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public Set<String> getIdsAnd(Class<?> cls, Iterable<Property> properties) {
+                try {
+                    return Persistence.this.getIds(cls, properties, con, LogicalOperation.AND);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public Map<String, Set<Property>> getPropertiesOr(Class<?> cls, Iterable<Property> properties) {
+                try {
+                    return Persistence.this.getProperties(cls, properties, con, LogicalOperation.OR);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public Map<String, Set<Property>> getPropertiesAnd(Class<?> cls, Iterable<Property> properties) {
+                try {
+                    return Persistence.this.getProperties(cls, properties, con, LogicalOperation.AND);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public <T> Page<T> getPage(Class<T> cls, String name, String value, String rangeName, long rangeStart,
+                    boolean startInclusive, long rangeEnd, boolean endInclusive, int limit,
+                    Optional<String> after) {
+                try {
+                    return Persistence.this.getPage(cls, name, value, rangeName, rangeStart, startInclusive,
+                            rangeEnd, endInclusive, limit, after.map(RangeKey::parse), con);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public Map<String, Long> countByState(Class<?> cls) {
+                try {
+                    return Persistence.this.countByState(cls, con);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public Map<String, Long> countByPropertyValue(Class<?> cls, String name) {
+                try {
+                    return Persistence.this.countByPropertyValue(cls, name, con);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
+
+            @Override
+            public RangeStats rangeStats(Class<?> cls, String name, String value, String rangeName) {
+                try {
+                    return Persistence.this.rangeStats(cls, name, value, rangeName, con);
+                } catch (SQLException e) {
+                    throw new SQLRuntimeException(e);
+                }
+            }
         };
 
     }
 
-    private void saveEntityProperties(Connection con, Class<?> cls, String id, Iterable<Property> properties,
-            Optional<IntProperty> rangeMetric) throws SQLException {
-        try (PreparedStatement ps = con.prepareStatement(sql.deleteEntityProperties())) {
-            ps.setString(1, cls.getName());
-            ps.setString(2, id);
-            ps.executeUpdate();
+    /**
+     * Brings the property index of the entity up to date by inserting, updating
+     * and deleting only the index rows that have changed. If the properties of
+     * the entity as last saved are the same as those of the new entity then the
+     * index is not touched at all.
+     */
+    private void saveEntityProperties(Connection con, Class<?> cls, String id, Optional<Object> saved,
+            Object entity) throws SQLException {
+        Set<Property> properties = properties(entity);
+        Optional<IntProperty> rangeMetric = rangeMetric(entity);
+        if (saved.isPresent() && properties.equals(properties(saved.get()))
+                && rangeMetric.equals(rangeMetric(saved.get()))) {
+            return;
+        }
+
+        // index rows can only exist for an entity that has been saved
+        Set<Property> stored = saved.isPresent() ? readEntityProperties(con, cls, id) : Collections.emptySet();
+        try (PreparedStatement del = con.prepareStatement(sql.deleteEntityProperty());
+                PreparedStatement ins = con.prepareStatement(sql.insertEntityProperty())) {
+            int deletes = 0;
+            for (Property property : stored) {
+                if (!properties.contains(property)) {
+                    setPropertyParameters(del, cls, id, property);
+                    execute(del);
+                    deletes++;
+                }
+            }
+            int inserts = 0;
+            for (Property property : properties) {
+                if (!stored.contains(property)) {
+                    setPropertyParameters(ins, cls, id, property);
+                    execute(ins);
+                    inserts++;
+                }
+            }
+            executeBatch(del, deletes);
+            executeBatch(ins, inserts);
+        }
+
+        // range rows are deleted when their property is gone or the entity no
+        // longer has a range metric
+        if (!rangeMetric.isPresent() && !saved.isPresent()) {
+            return;
+        }
+        Map<Property, IntProperty> storedRange = saved.isPresent() ? readEntityRangeProperties(con, cls, id)
+                : Collections.emptyMap();
+        try (PreparedStatement del = con.prepareStatement(sql.deleteEntityRangeProperty());
+                PreparedStatement ins = con.prepareStatement(sql.insertEntityRangeProperty());
+                PreparedStatement upd = con.prepareStatement(sql.updateEntityRangeProperty())) {
+            int deletes = 0;
+            for (Property property : storedRange.keySet()) {
+                if (!rangeMetric.isPresent() || !properties.contains(property)) {
+                    setPropertyParameters(del, cls, id, property);
+                    execute(del);
+                    deletes++;
+                }
+            }
+            int inserts = 0;
+            int updates = 0;
+            if (rangeMetric.isPresent()) {
+                IntProperty metric = rangeMetric.get();
+                for (Property property : properties) {
+                    IntProperty r = storedRange.get(property);
+                    if (r == null) {
+                        setPropertyParameters(ins, cls, id, property);
+                        ins.setString(5, metric.name);
+                        ins.setInt(6, metric.value);
+                        execute(ins);
+                        inserts++;
+                    } else if (!r.equals(metric)) {
+                        upd.setString(1, metric.name);
+                        upd.setInt(2, metric.value);
+                        upd.setString(3, cls.getName());
+                        upd.setString(4, id);
+                        upd.setString(5, property.name());
+                        upd.setString(6, property.value());
+                        execute(upd);
+                        updates++;
+                    }
+                }
+            }
+            executeBatch(del, deletes);
+            executeBatch(ins, inserts);
+            executeBatch(upd, updates);
         }
+    }
 
-        if (rangeMetric.isPresent()) {
-            try (PreparedStatement ps = con.prepareStatement(sql.deleteEntityRangeProperties())) {
-                ps.setString(1, cls.getName());
-                ps.setString(2, id);
-                ps.executeUpdate();
+    private Set<Property> properties(Object entity) {
+        Set<Property> set = new HashSet<>();
+        for (Property property : propertiesFactory.apply(entity)) {
+            set.add(property);
+        }
+        return set;
+    }
+
+    private Optional<IntProperty> rangeMetric(Object entity) {
+        if (rangeMetricFactory == null) {
+            return Optional.empty();
+        } else {
+            return rangeMetricFactory.apply(entity);
+        }
+    }
+
+    private Set<Property> readEntityProperties(Connection con, Class<?> cls, String id) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.readEntityProperties())) {
+            ps.setString(1, cls.getName());
+            ps.setString(2, id);
+            Set<Property> set = new HashSet<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    set.add(Property.create(rs.getString(1), rs.getString(2)));
+                }
             }
+            return set;
         }
+    }
 
-        try (PreparedStatement ps = con.prepareStatement(sql.insertEntityProperty());
-                PreparedStatement ps2 = con.prepareStatement(sql.insertEntityRangeProperty())) {
-            for (Property property : properties) {
-                ps.setString(1, cls.getName());
-                ps.setString(2, id);
-                ps.setString(3, property.name());
-                ps.setString(4, property.value());
-                ps.executeUpdate();
-                if (rangeMetric.isPresent()) {
-                    ps2.setString(1, cls.getName());
-                    ps2.setString(2, id);
-                    ps2.setString(3, property.name());
-                    ps2.setString(4, property.value());
-                    ps2.setString(5, rangeMetric.get().name);
-                    ps2.setInt(6, rangeMetric.get().value);
-                    ps2.executeUpdate();
+    private Map<Property, IntProperty> readEntityRangeProperties(Connection con, Class<?> cls, String id)
+            throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.readEntityRangeProperties())) {
+            ps.setString(1, cls.getName());
+            ps.setString(2, id);
+            Map<Property, IntProperty> map = new HashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    map.put(Property.create(rs.getString(1), rs.getString(2)),
+                            IntProperty.create(rs.getString(3), rs.getInt(4)));
                 }
             }
+            return map;
+        }
+    }
+
+    private static void setPropertyParameters(PreparedStatement ps, Class<?> cls, String id, Property property)
+            throws SQLException {
+        ps.setString(1, cls.getName());
+        ps.setString(2, id);
+        ps.setString(3, property.name());
+        ps.setString(4, property.value());
+    }
+
+    private void executeBatch(PreparedStatement ps, int count) throws SQLException {
+        if (optimizeRoundTrips && count > 0) {
+            ps.executeBatch();
         }
     }
 
-    private void scheduleRetry() {
-        if (retryIntervalMs > 0) {
-            executor.schedule(() -> drain(), retryIntervalMs, TimeUnit.MILLISECONDS);
+    /**
+     * Executes the statement or, when optimizing round trips, adds it to the
+     * batch to be executed later.
+     */
+    private void execute(PreparedStatement ps) throws SQLException {
+        if (optimizeRoundTrips) {
+            ps.addBatch();
+        } else {
+            ps.executeUpdate();
         }
     }
 
     @SuppressWarnings("unchecked")
     private EntityStateMachine<?, String> pushSignalThroughStateMachine(final EntityStateMachine<?, String> esm,
-            Signals<String> signals) {
+            Signals<String> signals, List<Event<?>> applied) {
         EntityStateMachine<?, String> esm2 = esm;
         Event<?> event;
         while ((event = signals.signalsToSelf.poll()) != null) {
+            if (applied != null) {
+                applied.add(event);
+            }
             esm2 = esm2.signal((Event<Object>) event);
             List<Event<Object>> list = (List<Event<Object>>) (List<?>) esm2.signalsToSelf();
             for (int i = list.size() - 1; i >= 0; i--) {
@@ -650,7 +1199,7 @@ public final class Persistence implements Entities {
     private EntityStateMachine<?, String> getStateMachine(NumberedSignal<?, String> signal,
             EntityBehaviour<Object, String> behaviour, Optional<EntityAndState<Object>> entity) {
         if (!entity.isPresent()) {
-            return behaviour.create(signal.signal.id()).signal(new Create());
+            return behaviour.create(signal.signal.id()).signal(CREATE);
         } else {
             return behaviour.create(signal.signal.id(), entity.get().entity, entity.get().state);
         }
@@ -676,9 +1225,8 @@ public final class Persistence implements Entities {
                 if (!rs.next()) {
                     return new ReadResult<T>(false, Optional.empty());
                 } else {
-                    Blob blob = rs.getBlob("bytes");
-                    if (blob != null) {
-                        byte[] bytes = readAll(blob.getBinaryStream());
+                    InputStream bytes = rs.getBinaryStream("bytes");
+                    if (bytes != null) {
                         T entity = (T) entitySerializer.deserialize(cls, bytes);
                         EntityState<T> state = behaviour.from(rs.getString("state"));
                         return new ReadResult<T>(false, Optional.of(EntityAndState.create(entity, state)));
@@ -690,39 +1238,212 @@ public final class Persistence implements Entities {
         }
     }
 
-    private void insertIntoSignalStore(Connection con, EntityStateMachine<?, String> esm, Event<?> event,
-            Serializer eventSerializer) throws SQLException {
+    private void insertIntoSignalStore(Connection con, Class<?> cls, String id, List<Event<?>> events)
+            throws SQLException {
         try (PreparedStatement ps = con.prepareStatement(sql.addToSignalStore())) {
-            ps.setString(1, esm.cls().getName());
-            ps.setString(2, esm.id());
-            ps.setString(3, event.getClass().getName());
-            ps.setBlob(4, new ByteArrayInputStream(eventSerializer.serialize(event)));
-            ps.executeUpdate();
+            for (Event<?> event : events) {
+                ps.setString(1, cls.getName());
+                ps.setString(2, id);
+                ps.setString(3, event.getClass().getName());
+                setBytes(ps, 4, eventSerializer, event);
+                ps.setInt(5, SIGNAL_STORE_FORMAT);
+                execute(ps);
+            }
+            executeBatch(ps, events.size());
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private List<NumberedSignal<?, ?>> insertSignalsToOther(Connection con, Serializer eventSerializer,
-            Collection<Signal<?, String>> signalsToOther) throws SQLException {
-        List<NumberedSignal<?, ?>> list = new ArrayList<>();
-        try (PreparedStatement ps = con.prepareStatement(sql.addToSignalQueue(), Statement.RETURN_GENERATED_KEYS)) {
-            for (Signal<?, ?> signal : signalsToOther) {
-                if (!signal.time().isPresent()) {
-                    Signal<?, String> sig = (Signal<?, String>) signal;
-                    ps.setString(1, sig.cls().getName());
-                    ps.setString(2, sig.id());
-                    ps.setString(3, sig.event().getClass().getName());
-                    ps.setBlob(4, new ByteArrayInputStream(eventSerializer.serialize(sig.event())));
-                    ps.executeUpdate();
-                    // add the generated primary key for the signal to the list
-                    try (ResultSet rs = ps.getGeneratedKeys()) {
-                        rs.next();
-                        list.add(new NumberedSignal<Object, String>((Signal<Object, String>) signal, rs.getLong(1)));
-                    }
-                }
+    /**
+     * Saves a snapshot of the entity if {@code snapshotInterval} events have
+     * been stored since its last one. The count is kept in memory so the
+     * database is only queried for the first signal to an entity after startup
+     * or after a snapshot, and when a snapshot is due. A transaction that is
+     * rolled back may leave the count too high which only brings the next
+     * snapshot forward.
+     */
+    private void saveSnapshotIfDue(Connection con, EntityStateMachine<?, String> esm, int events)
+            throws SQLException {
+        ClassId<?, String> key = ClassId.create(esm.cls(), esm.id());
+        Long counted = eventsSinceSnapshot.get(key);
+        long count;
+        if (counted == null) {
+            count = countSignalStoreSinceSnapshot(con, esm)[0];
+        } else {
+            count = counted + events;
+        }
+        if (count < snapshotInterval) {
+            eventsSinceSnapshot.put(key, count);
+            return;
+        }
+        long[] countAndSeqNum = countSignalStoreSinceSnapshot(con, esm);
+        if (countAndSeqNum[0] > 0) {
+            try (PreparedStatement ps = con.prepareStatement(sql.mergeSnapshot())) {
+                ps.setString(1, esm.cls().getName());
+                ps.setString(2, esm.id());
+                ps.setLong(3, countAndSeqNum[1]);
+                ps.setString(4, esm.state().toString());
+                setBytes(ps, 5, entitySerializer, esm.get().get());
+                ps.executeUpdate();
             }
         }
-        return list;
+        eventsSinceSnapshot.remove(key);
+    }
+
+    private long[] countSignalStoreSinceSnapshot(Connection con, EntityStateMachine<?, String> esm)
+            throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.countSignalStoreSinceSnapshot())) {
+            ps.setString(1, esm.cls().getName());
+            ps.setString(2, esm.id());
+            ps.setString(3, esm.cls().getName());
+            ps.setString(4, esm.id());
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return new long[] { rs.getLong(1), rs.getLong(2) };
+            }
+        }
+    }
+
+    /**
+     * Returns a replaying state machine for the entity that has had the events
+     * stored since its latest snapshot applied to it. The events are streamed
+     * from signal_store rather than read into memory. Rows of the legacy
+     * format are replayed as described at {@link #applyStoredEvent}.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> EntityStateMachine<T, String> rebuild(Connection con, Class<T> cls, String id,
+            EntityBehaviour<T, String> behaviour) throws SQLException {
+        EntityStateMachine<T, String> esm;
+        final long seqNum;
+        try (PreparedStatement ps = con.prepareStatement(sql.readSnapshot())) {
+            ps.setString(1, cls.getName());
+            ps.setString(2, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    seqNum = rs.getLong("seq_num");
+                    T entity = entitySerializer.deserialize(cls, rs.getBinaryStream("bytes"));
+                    esm = behaviour.create(id, entity, behaviour.from(rs.getString("state")));
+                } else {
+                    seqNum = -1;
+                    esm = behaviour.create(id);
+                }
+            }
+        }
+        esm = esm.replaying();
+        Entities.set(createEntities(con));
+        try (PreparedStatement ps = con.prepareStatement(sql.readSignalStore())) {
+            ps.setFetchSize(REPLAY_FETCH_SIZE);
+            ps.setString(1, cls.getName());
+            ps.setString(2, id);
+            ps.setLong(3, seqNum);
+            try (ResultSet rs = ps.executeQuery()) {
+                boolean first = seqNum == -1;
+                while (rs.next()) {
+                    esm = applyStoredEvent(behaviour, esm,
+                            deserializeEvent(rs.getString("event_cls"), rs.getBinaryStream("event_bytes")),
+                            rs.getInt("format_version") == SIGNAL_STORE_FORMAT_LEGACY, first);
+                    first = false;
+                }
+            }
+        } finally {
+            Entities.clear();
+        }
+        return esm;
+    }
+
+    /**
+     * Applies an event read from signal_store to a replaying state machine.
+     * Rows of the legacy format hold only the signals received by the entity,
+     * so they are applied to a machine that is not replaying (a replaying
+     * machine ignores signals to self) created from the current entity and
+     * state. The entity is created first if the row is its first, the
+     * non-delayed signals to self are applied as processing does and signals
+     * to others and delayed signals are discarded.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> EntityStateMachine<T, String> applyStoredEvent(EntityBehaviour<T, String> behaviour,
+            EntityStateMachine<T, String> esm, Event<?> event, boolean legacy, boolean first) {
+        if (!legacy) {
+            return esm.signal((Event<? super T>) event);
+        }
+        EntityStateMachine<T, String> m;
+        if (first) {
+            m = behaviour.create(esm.id());
+            if (!(event instanceof Create)) {
+                m = m.signal(CREATE);
+            }
+        } else if (esm.get().isPresent()) {
+            m = behaviour.create(esm.id(), esm.get().get(), esm.state());
+        } else {
+            m = behaviour.create(esm.id());
+        }
+        Deque<Event<?>> signalsToSelf = new ArrayDeque<>();
+        signalsToSelf.offer(event);
+        Event<?> e;
+        while ((e = signalsToSelf.poll()) != null) {
+            m = m.signal((Event<? super T>) e);
+            List<Event<? super T>> list = m.signalsToSelf();
+            for (int i = list.size() - 1; i >= 0; i--) {
+                signalsToSelf.offerLast(list.get(i));
+            }
+        }
+        return m.replaying();
+    }
+
+    private Event<?> deserializeEvent(String eventClassName, InputStream bytes) {
+        try {
+            return (Event<?>) eventSerializer.deserialize(Class.forName(eventClassName), bytes);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void deleteEntityProperties(Connection con, Class<?> cls, String id) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.deleteEntityProperties())) {
+            ps.setString(1, cls.getName());
+            ps.setString(2, id);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = con.prepareStatement(sql.deleteEntityRangeProperties())) {
+            ps.setString(1, cls.getName());
+            ps.setString(2, id);
+            ps.executeUpdate();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<NumberedSignal<?, ?>> insertSignalsToOther(Connection con, Serializer eventSerializer,
+            Collection<Signal<?, String>> signalsToOther) throws SQLException {
+        List<NumberedSignal<?, ?>> list = new ArrayList<>();
+        List<Signal<?, ?>> batch = optimizeRoundTrips ? new ArrayList<>() : null;
+        try (PreparedStatement ps = con.prepareStatement(sql.addToSignalQueue(), Statement.RETURN_GENERATED_KEYS)) {
+            for (Signal<?, ?> signal : signalsToOther) {
+                if (!signal.time().isPresent()) {
+                    Signal<?, String> sig = (Signal<?, String>) signal;
+                    ps.setString(1, sig.cls().getName());
+                    ps.setString(2, sig.id());
+                    ps.setString(3, sig.event().getClass().getName());
+                    setBytes(ps, 4, eventSerializer, sig.event());
+                    if (batch != null) {
+                        ps.addBatch();
+                        batch.add(signal);
+                    } else {
+                        ps.executeUpdate();
+                        // add the generated primary key for the signal to the
+                        // list
+                        try (ResultSet rs = ps.getGeneratedKeys()) {
+                            rs.next();
+                            list.add(new NumberedSignal<Object, String>((Signal<Object, String>) signal,
+                                    rs.getLong(1)));
+                        }
+                    }
+                }
+            }
+            if (batch != null && !batch.isEmpty()) {
+                ps.executeBatch();
+                addGeneratedKeys(ps, batch, list);
+            }
+        }
+        return list;
     }
 
     @SuppressWarnings("unchecked")
@@ -733,25 +1454,44 @@ public final class Persistence implements Entities {
                 PreparedStatement del = con.prepareStatement(sql.deleteDelayedSignal());
                 PreparedStatement ps = con.prepareStatement(sql.addDelayedSignal(), Statement.RETURN_GENERATED_KEYS)) {
 
-            for (Signal<?, ?> signal : signalsToOther) {
-                if (signal.time().isPresent()) {
-                    Signal<?, String> sig = (Signal<?, String>) signal;
-                    del.setString(1, fromCls.getName());
-                    del.setString(2, fromId);
-                    del.setString(3, sig.cls().getName());
-                    del.setString(4, sig.id());
-                    del.executeUpdate();
-                    ps.setString(1, fromCls.getName());
-                    ps.setString(2, fromId);
-                    ps.setString(3, sig.cls().getName());
-                    ps.setString(4, sig.id());
-                    ps.setString(5, sig.event().getClass().getName());
-                    ps.setBlob(6, new ByteArrayInputStream(eventSerializer.serialize(sig.event())));
-                    ps.setTimestamp(7, new Timestamp(sig.time().get()));
-                    ps.executeUpdate();
-                    try (ResultSet rs = ps.getGeneratedKeys()) {
-                        rs.next();
-                        list.add(new NumberedSignal<Object, String>((Signal<Object, String>) signal, rs.getLong(1)));
+            if (optimizeRoundTrips) {
+                // the last delayed signal to an entity replaces any earlier
+                // ones
+                Map<ClassId<?, ?>, Signal<?, ?>> latest = new LinkedHashMap<>();
+                for (Signal<?, ?> signal : signalsToOther) {
+                    if (signal.time().isPresent()) {
+                        ClassId<?, ?> key = ClassId.create(signal.cls(), signal.id());
+                        latest.remove(key);
+                        latest.put(key, signal);
+                    }
+                }
+                if (latest.isEmpty()) {
+                    return list;
+                }
+                List<Signal<?, ?>> batch = new ArrayList<>(latest.values());
+                for (Signal<?, ?> signal : batch) {
+                    setDeleteDelayedSignalParameters(del, fromCls, fromId, signal);
+                    del.addBatch();
+                }
+                del.executeBatch();
+                for (Signal<?, ?> signal : batch) {
+                    setAddDelayedSignalParameters(ps, fromCls, fromId, (Signal<?, String>) signal);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                addGeneratedKeys(ps, batch, list);
+            } else {
+                for (Signal<?, ?> signal : signalsToOther) {
+                    if (signal.time().isPresent()) {
+                        setDeleteDelayedSignalParameters(del, fromCls, fromId, signal);
+                        del.executeUpdate();
+                        setAddDelayedSignalParameters(ps, fromCls, fromId, (Signal<?, String>) signal);
+                        ps.executeUpdate();
+                        try (ResultSet rs = ps.getGeneratedKeys()) {
+                            rs.next();
+                            list.add(new NumberedSignal<Object, String>((Signal<Object, String>) signal,
+                                    rs.getLong(1)));
+                        }
                     }
                 }
             }
@@ -759,25 +1499,66 @@ public final class Persistence implements Entities {
         return list;
     }
 
-    private void removeSignal(Connection con, NumberedSignal<?, String> signal) throws SQLException {
+    private static void setDeleteDelayedSignalParameters(PreparedStatement del, Class<?> fromCls, String fromId,
+            Signal<?, ?> signal) throws SQLException {
+        del.setString(1, fromCls.getName());
+        del.setString(2, fromId);
+        del.setString(3, signal.cls().getName());
+        del.setString(4, (String) signal.id());
+    }
+
+    private void setAddDelayedSignalParameters(PreparedStatement ps, Class<?> fromCls, String fromId,
+            Signal<?, String> signal) throws SQLException {
+        ps.setString(1, fromCls.getName());
+        ps.setString(2, fromId);
+        ps.setString(3, signal.cls().getName());
+        ps.setString(4, signal.id());
+        ps.setString(5, signal.event().getClass().getName());
+        setBytes(ps, 6, eventSerializer, signal.event());
+        ps.setTimestamp(7, new Timestamp(signal.time().get()));
+    }
+
+    /**
+     * Reads the keys generated by a batch insert of the given signals (in
+     * insertion order) into the list of numbered signals.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addGeneratedKeys(PreparedStatement ps, List<? extends Signal<?, ?>> signals,
+            List<NumberedSignal<?, ?>> list) throws SQLException {
+        try (ResultSet rs = ps.getGeneratedKeys()) {
+            for (Signal<?, ?> signal : signals) {
+                if (!rs.next()) {
+                    throw new SQLException("generated keys not returned for all signals in batch");
+                }
+                list.add(new NumberedSignal<Object, String>((Signal<Object, String>) signal, rs.getLong(1)));
+            }
+        }
+    }
+
+    /**
+     * Removes the signal from its queue.
+     * 
+     * @return false if the signal was not in the queue
+     */
+    private boolean removeSignal(Connection con, NumberedSignal<?, String> signal) throws SQLException {
         if (signal.signal.time().isPresent()) {
-            removeNonDelayedSignal(con, signal.number);
+            return removeDelayedSignal(con, signal.number);
         } else {
-            removeDelayedSignal(con, signal.number);
+            return removeNonDelayedSignal(con, signal.number);
         }
     }
 
-    private void removeNonDelayedSignal(Connection con, long number) throws SQLException {
+    private boolean removeNonDelayedSignal(Connection con, long number) throws SQLException {
         try (PreparedStatement ps = con.prepareStatement(sql.deleteNumberedSignal())) {
             ps.setLong(1, number);
-            ps.executeUpdate();
+            return ps.executeUpdate() > 0;
         }
     }
 
-    private void removeDelayedSignal(Connection con, long number) throws SQLException {
+    private boolean removeDelayedSignal(Connection con, long number) throws SQLException {
         try (PreparedStatement ps = con.prepareStatement(sql.deleteNumberedDelayedSignal())) {
             ps.setLong(1, number);
-            ps.executeUpdate();
+            return ps.executeUpdate() > 0;
         }
     }
 
@@ -793,11 +1574,18 @@ public final class Persistence implements Entities {
     }
 
     private void saveEntity(Connection con, EntityStateMachine<?, String> esm) throws SQLException {
-        if (esm.get().isPresent()) {
+        if (esm.get().isPresent() && optimizeRoundTrips) {
+            try (PreparedStatement ps = con.prepareStatement(sql.mergeEntity())) {
+                ps.setString(1, esm.cls().getName());
+                ps.setString(2, esm.id());
+                setBytes(ps, 3, entitySerializer, esm.get().get());
+                ps.setString(4, esm.state().toString());
+                ps.executeUpdate();
+            }
+        } else if (esm.get().isPresent()) {
             final boolean updated;
             try (PreparedStatement ps = con.prepareStatement(sql.updateEntity())) {
-                byte[] bytes = entitySerializer.serialize(esm.get().get());
-                ps.setBlob(1, new ByteArrayInputStream(bytes));
+                setBytes(ps, 1, entitySerializer, esm.get().get());
                 ps.setString(2, esm.state().toString());
                 ps.setString(3, esm.cls().getName());
                 ps.setString(4, esm.id());
@@ -805,10 +1593,9 @@ public final class Persistence implements Entities {
             }
             if (!updated) {
                 try (PreparedStatement ps = con.prepareStatement(sql.insertEntity())) {
-                    byte[] bytes = entitySerializer.serialize(esm.get().get());
                     ps.setString(1, esm.cls().getName());
                     ps.setString(2, esm.id());
-                    ps.setBlob(3, new ByteArrayInputStream(bytes));
+                    setBytes(ps, 3, entitySerializer, esm.get().get());
                     ps.setString(4, esm.state().toString());
                     ps.executeUpdate();
                 }
@@ -816,21 +1603,359 @@ public final class Persistence implements Entities {
         }
     }
 
+    /**
+     * Returns the number of entity lookups that were found in the entity cache.
+     * 
+     * @return number of cache hits, 0 if there is no cache
+     */
+    public long entityCacheHits() {
+        return entityCache == null ? 0 : entityCache.hits();
+    }
+
+    /**
+     * Returns the number of entity lookups that were not found in the entity
+     * cache.
+     * 
+     * @return number of cache misses, 0 if there is no cache
+     */
+    public long entityCacheMisses() {
+        return entityCache == null ? 0 : entityCache.misses();
+    }
+
+    /**
+     * Rebuilds the entity by applying the events stored in
+     * {@code signal_store} since its latest snapshot (or all its events if it
+     * has no snapshot) and saves it with its property index. The events are
+     * streamed from the database so the number of events does not affect
+     * memory use. Signals must have been stored since the entity was created
+     * and signals to the entity should not be processed while it is being
+     * replayed.
+     * 
+     * @param cls
+     *            entity class
+     * @param id
+     *            entity id
+     */
+    @SuppressWarnings("unchecked")
     public void replay(Class<?> cls, String id) {
+        EntityBehaviour<Object, String> behaviour = (EntityBehaviour<Object, String>) behaviourFactory.apply(cls);
         try (Connection con = createConnection()) {
-            throw new UnsupportedOperationException("not implemented yet");
+            EntityStateMachine<Object, String> esm = rebuild(con, (Class<Object>) cls, id, behaviour);
+            if (esm.get().isPresent()) {
+                saveEntity(con, esm);
+                deleteEntityProperties(con, cls, id);
+                saveEntityProperties(con, cls, id, Optional.empty(), esm.get().get());
+            }
+            con.commit();
         } catch (SQLException e) {
             throw new SQLRuntimeException(e);
+        } finally {
+            if (entityCache != null) {
+                entityCache.removeAll(Collections.singletonList(ClassId.create(cls, id)));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds every entity of the given class from all its events in
+     * {@code signal_store}, ignoring snapshots (which are deleted with the
+     * entity they were made from because they may have been made by an older
+     * version of the behaviour). Uses the available processors and writes
+     * entities in batches of 100.
+     * 
+     * @param cls
+     *            entity class
+     * @return the final progress
+     */
+    public RebuildProgress rebuildAll(Class<?> cls) {
+        return rebuildAll(cls, Runtime.getRuntime().availableProcessors(), 100, x -> {
+        });
+    }
+
+    /**
+     * Rebuilds every entity of the given class from all its events in
+     * {@code signal_store}, ignoring snapshots (which are deleted because they
+     * may have been made by an older version of the behaviour).
+     * 
+     * <p>
+     * The events are read with one streaming cursor ordered by entity id and
+     * sequence number. The events of each entity are applied to a replaying
+     * state machine on a {@link ForkJoinPool} of the given parallelism while
+     * the calling thread carries on reading. Rebuilt entities and their
+     * property indexes are written by the calling thread in transactions of
+     * {@code batchSize} entities using JDBC batches. The snapshot of each
+     * entity is deleted in the transaction that writes it, so an entity not
+     * yet rewritten when a rebuild fails still has its snapshot. Rows in the
+     * legacy signal_store format are applied with their signals to self as
+     * {@link #replay} does. At most
+     * {@code 2 * batchSize} entities are held in memory at once.
+     * 
+     * <p>
+     * Two connections are used, one for the cursor and one for writing, so a
+     * connection pool must have at least two. A behaviour that reads other
+     * entities while replaying sees their current state in the database (not
+     * their state when the event was first processed) and each read borrows
+     * another connection.
+     * 
+     * <p>
+     * Signals to entities of the class should not be processed during a
+     * rebuild.
+     * 
+     * @param cls
+     *            entity class
+     * @param parallelism
+     *            number of threads replaying entities
+     * @param batchSize
+     *            number of entities written per transaction
+     * @param progress
+     *            called after each batch is written
+     * @return the final progress
+     */
+    @SuppressWarnings("unchecked")
+    public RebuildProgress rebuildAll(Class<?> cls, int parallelism, int batchSize,
+            Consumer<? super RebuildProgress> progress) {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        Preconditions.checkArgument(this.pool == null || this.pool.size() >= 2,
+                "rebuildAll uses two connections at once so connectionPoolSize must be at least 2");
+        EntityBehaviour<Object, String> behaviour = (EntityBehaviour<Object, String>) behaviourFactory.apply(cls);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (Connection con = createConnection()) {
+            Rebuild rebuild = new Rebuild(con, behaviour, pool, batchSize, progress);
+            try (Connection cursor = createConnection();
+                    PreparedStatement ps = cursor.prepareStatement(sql.readSignalStoreByClass())) {
+                ps.setFetchSize(REPLAY_FETCH_SIZE);
+                ps.setString(1, cls.getName());
+                try (ResultSet rs = ps.executeQuery()) {
+                    String id = null;
+                    List<RawEvent> events = new ArrayList<>();
+                    while (rs.next()) {
+                        String nextId = rs.getString("id");
+                        if (id != null && !id.equals(nextId)) {
+                            rebuild.submit(id, events);
+                            events = new ArrayList<>();
+                        }
+                        id = nextId;
+                        events.add(new RawEvent(rs.getString("event_cls"), rs.getBytes("event_bytes"),
+                                rs.getInt("format_version") == SIGNAL_STORE_FORMAT_LEGACY));
+                    }
+                    if (id != null) {
+                        rebuild.submit(id, events);
+                    }
+                }
+            }
+            return rebuild.finish();
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+            eventsSinceSnapshot.clear();
+            if (entityCache != null) {
+                entityCache.clear();
+            }
+        }
+    }
+
+    private static final class RawEvent {
+        final String eventClassName;
+        final byte[] bytes;
+        final boolean legacy;
+
+        RawEvent(String eventClassName, byte[] bytes, boolean legacy) {
+            this.eventClassName = eventClassName;
+            this.bytes = bytes;
+            this.legacy = legacy;
+        }
+    }
+
+    private static final class Rebuilt {
+        final EntityStateMachine<Object, String> esm; // null if failed
+        final int events;
+        final Throwable error; // nullable
+
+        Rebuilt(EntityStateMachine<Object, String> esm, int events, Throwable error) {
+            this.esm = esm;
+            this.events = events;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Replays entities on a pool and writes them in batches from the thread
+     * reading the events.
+     */
+    private final class Rebuild {
+
+        private final Connection con;
+        private final EntityBehaviour<Object, String> behaviour;
+        private final ForkJoinPool pool;
+        private final int batchSize;
+        private final Consumer<? super RebuildProgress> progress;
+        private final BlockingQueue<Rebuilt> done = new LinkedBlockingQueue<>();
+        private final List<Rebuilt> batch = new ArrayList<>();
+        private final long start = System.currentTimeMillis();
+        private int inFlight;
+        private long entities;
+        private long events;
+
+        Rebuild(Connection con, EntityBehaviour<Object, String> behaviour, ForkJoinPool pool, int batchSize,
+                Consumer<? super RebuildProgress> progress) {
+            this.con = con;
+            this.behaviour = behaviour;
+            this.pool = pool;
+            this.batchSize = batchSize;
+            this.progress = progress;
+        }
+
+        void submit(String id, List<RawEvent> rawEvents) throws SQLException {
+            // bound the entities held in memory
+            while (inFlight >= 2 * batchSize) {
+                collect(take());
+            }
+            inFlight++;
+            pool.execute(() -> done.add(replay(id, rawEvents)));
+            Rebuilt r;
+            while ((r = done.poll()) != null) {
+                collect(r);
+            }
+        }
+
+        RebuildProgress finish() throws SQLException {
+            while (inFlight > 0) {
+                collect(take());
+            }
+            return write();
+        }
+
+        private Rebuilt replay(String id, List<RawEvent> rawEvents) {
+            Entities.set(Persistence.this);
+            try {
+                EntityStateMachine<Object, String> esm = behaviour.create(id).replaying();
+                boolean first = true;
+                for (RawEvent e : rawEvents) {
+                    esm = applyStoredEvent(behaviour, esm,
+                            deserializeEvent(e.eventClassName, new ByteArrayInputStream(e.bytes)), e.legacy, first);
+                    first = false;
+                }
+                return new Rebuilt(esm, rawEvents.size(), null);
+            } catch (Throwable e) {
+                return new Rebuilt(null, rawEvents.size(), e);
+            } finally {
+                Entities.clear();
+            }
+        }
+
+        private Rebuilt take() {
+            try {
+                return done.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void collect(Rebuilt r) throws SQLException {
+            inFlight--;
+            if (r.error != null) {
+                throw new RuntimeException(r.error);
+            }
+            batch.add(r);
+            if (batch.size() >= batchSize) {
+                write();
+            }
+        }
+
+        private RebuildProgress write() throws SQLException {
+            saveRebuilt(con, batch);
+            con.commit();
+            for (Rebuilt r : batch) {
+                entities++;
+                events += r.events;
+            }
+            batch.clear();
+            RebuildProgress p = RebuildProgress.create(entities, events, System.currentTimeMillis() - start);
+            progress.accept(p);
+            return p;
+        }
+    }
+
+    /**
+     * Writes the rebuilt entities, deletes their snapshots and replaces their
+     * property indexes using JDBC batches.
+     */
+    private void saveRebuilt(Connection con, List<Rebuilt> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement delSnapshot = con.prepareStatement(sql.deleteSnapshot());
+                PreparedStatement merge = con.prepareStatement(sql.mergeEntity());
+                PreparedStatement delProps = con.prepareStatement(sql.deleteEntityProperties());
+                PreparedStatement delRange = con.prepareStatement(sql.deleteEntityRangeProperties());
+                PreparedStatement insProps = con.prepareStatement(sql.insertEntityProperty());
+                PreparedStatement insRange = con.prepareStatement(sql.insertEntityRangeProperty())) {
+            List<EntityStateMachine<Object, String>> present = new ArrayList<>();
+            for (Rebuilt r : batch) {
+                EntityStateMachine<Object, String> esm = r.esm;
+                delSnapshot.setString(1, esm.cls().getName());
+                delSnapshot.setString(2, esm.id());
+                delSnapshot.addBatch();
+                if (esm.get().isPresent()) {
+                    present.add(esm);
+                    merge.setString(1, esm.cls().getName());
+                    merge.setString(2, esm.id());
+                    setBytes(merge, 3, entitySerializer, esm.get().get());
+                    merge.setString(4, esm.state().toString());
+                    merge.addBatch();
+                    for (PreparedStatement ps : Arrays.asList(delProps, delRange)) {
+                        ps.setString(1, esm.cls().getName());
+                        ps.setString(2, esm.id());
+                        ps.addBatch();
+                    }
+                }
+            }
+            delSnapshot.executeBatch();
+            if (present.isEmpty()) {
+                return;
+            }
+            merge.executeBatch();
+            delProps.executeBatch();
+            delRange.executeBatch();
+            int inserts = 0;
+            int rangeInserts = 0;
+            for (EntityStateMachine<Object, String> esm : present) {
+                Object entity = esm.get().get();
+                Optional<IntProperty> metric = rangeMetric(entity);
+                for (Property property : properties(entity)) {
+                    setPropertyParameters(insProps, esm.cls(), esm.id(), property);
+                    insProps.addBatch();
+                    inserts++;
+                    if (metric.isPresent()) {
+                        setPropertyParameters(insRange, esm.cls(), esm.id(), property);
+                        insRange.setString(5, metric.get().name);
+                        insRange.setInt(6, metric.get().value);
+                        insRange.addBatch();
+                        rangeInserts++;
+                    }
+                }
+            }
+            if (inserts > 0) {
+                insProps.executeBatch();
+            }
+            if (rangeInserts > 0) {
+                insRange.executeBatch();
+            }
         }
     }
 
     private Connection createConnection() {
         try {
-            Connection con = connectionFactory.call();
+            Connection con = pool == null ? connectionFactory.call() : pool.acquire();
             con.setAutoCommit(false);
             return con;
         } catch (SQLException e) {
             throw new SQLRuntimeException(e);
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -838,6 +1963,12 @@ public final class Persistence implements Entities {
 
     @Override
     public <T> Optional<EntityAndState<T>> getWithState(Class<T> cls, String id) {
+        if (entityCache != null) {
+            Optional<EntityAndState<T>> cached = entityCache.get(cls, id);
+            if (cached.isPresent()) {
+                return cached;
+            }
+        }
         try ( //
                 Connection con = createConnection()) {
             return getWithState(cls, id, con);
@@ -854,7 +1985,7 @@ public final class Persistence implements Entities {
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
                     String stateName = rs.getString(1);
-                    T t = (T) entitySerializer.deserialize(cls, readAll(rs.getBlob(2).getBinaryStream()));
+                    T t = (T) entitySerializer.deserialize(cls, rs.getBinaryStream(2));
                     EntityBehaviour<?, String> behaviour = behaviourFactory.apply(cls);
                     EntityState<?> state = behaviour.from(stateName);
                     return Optional.of(EntityAndState.create(t, (EntityState<T>) state));
@@ -867,6 +1998,12 @@ public final class Persistence implements Entities {
 
     @Override
     public <T> Optional<T> get(Class<T> cls, String id) {
+        if (entityCache != null) {
+            Optional<EntityAndState<T>> cached = entityCache.get(cls, id);
+            if (cached.isPresent()) {
+                return Optional.of(cached.get().entity);
+            }
+        }
         try ( //
                 Connection con = createConnection()) {
             return get(cls, id, con);
@@ -881,7 +2018,7 @@ public final class Persistence implements Entities {
             ps.setString(2, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    T t = (T) entitySerializer.deserialize(cls, readAll(rs.getBlob(1).getBinaryStream()));
+                    T t = (T) entitySerializer.deserialize(cls, rs.getBinaryStream(1));
                     return Optional.of(t);
                 } else {
                     return Optional.empty();
@@ -890,6 +2027,66 @@ public final class Persistence implements Entities {
         }
     }
 
+    @Override
+    public <T> Map<String, T> getAll(Class<T> cls, Collection<String> ids) {
+        Map<String, T> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : new LinkedHashSet<>(ids)) {
+            Optional<EntityAndState<T>> cached = entityCache == null ? Optional.empty() : entityCache.get(cls, id);
+            if (cached.isPresent()) {
+                found.put(id, cached.get().entity);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            try ( //
+                    Connection con = createConnection()) {
+                found.putAll(getAll(cls, missing, con));
+            } catch (SQLException e) {
+                throw new SQLRuntimeException(e);
+            }
+        }
+        return inOrder(ids, found);
+    }
+
+    private <T> Map<String, T> getAll(Class<T> cls, Collection<String> ids, Connection con) throws SQLException {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<String, T> found = new HashMap<>();
+        for (int i = 0; i < distinct.size(); i += MAX_IDS_PER_QUERY) {
+            List<String> chunk = distinct.subList(i, Math.min(distinct.size(), i + MAX_IDS_PER_QUERY));
+            // round the number of parameters up to a power of two (repeating
+            // the last id) so that only a few distinct statements are prepared
+            int count = Integer.highestOneBit(chunk.size());
+            if (count < chunk.size()) {
+                count <<= 1;
+            }
+            try (PreparedStatement ps = con.prepareStatement(sql.readEntitiesByIds(count))) {
+                ps.setString(1, cls.getName());
+                for (int j = 0; j < count; j++) {
+                    ps.setString(j + 2, chunk.get(Math.min(j, chunk.size() - 1)));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        found.put(rs.getString(1), entitySerializer.deserialize(cls, rs.getBinaryStream(2)));
+                    }
+                }
+            }
+        }
+        return inOrder(ids, found);
+    }
+
+    private static <T> Map<String, T> inOrder(Collection<String> ids, Map<String, T> found) {
+        Map<String, T> map = new LinkedHashMap<>();
+        for (String id : ids) {
+            T t = found.get(id);
+            if (t != null) {
+                map.put(id, t);
+            }
+        }
+        return map;
+    }
+
     public static class EntityWithId<T> {
         public final T entity;
         // used by hashCode/equals
@@ -960,7 +2157,7 @@ public final class Persistence implements Entities {
                 List<EntityWithId<T>> list = new ArrayList<>();
                 while (rs.next()) {
                     String id = rs.getString(1);
-                    T t = (T) entitySerializer.deserialize(cls, readAll(rs.getBlob(2).getBinaryStream()));
+                    T t = (T) entitySerializer.deserialize(cls, rs.getBinaryStream(2));
                     list.add(new EntityWithId<T>(t, id));
                 }
                 return list;
@@ -968,6 +2165,130 @@ public final class Persistence implements Entities {
         }
     }
 
+    @Override
+    public <T> Flowable<EntityWithId<T>> stream(Class<T> cls, int fetchSize, int parallelism) {
+        return stream(cls, this::createConnection, true, sql.readAllEntities(),
+                Collections.singletonList(cls.getName()), fetchSize, parallelism);
+    }
+
+    @Override
+    public <T> Flowable<EntityWithId<T>> stream(Class<T> cls, String name, String value, int fetchSize,
+            int parallelism) {
+        return stream(cls, this::createConnection, true, sql.readEntitiesByProperties(1, false),
+                Arrays.asList(cls.getName(), cls.getName(), name, value), fetchSize, parallelism);
+    }
+
+    private <T> Flowable<EntityWithId<T>> stream(Class<T> cls, Callable<Connection> connection,
+            boolean closeConnection, String query, List<String> parameters, int fetchSize, int parallelism) {
+        Preconditions.checkArgument(fetchSize > 0, "fetchSize must be positive");
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+        if (parallelism == 1) {
+            return cursor(connection, closeConnection, query, parameters, fetchSize, rs -> {
+                String id = rs.getString(1);
+                return new EntityWithId<T>(entitySerializer.deserialize(cls, rs.getBinaryStream(2)), id);
+            });
+        } else {
+            // the bytes are copied off the cursor so they can be deserialized
+            // on other threads, concatMapEager keeps the cursor order and
+            // bounds the rows in flight
+            return cursor(connection, closeConnection, query, parameters, fetchSize,
+                    rs -> new RawEntity(rs.getString(1), rs.getBytes(2))) //
+                            .concatMapEager(raw -> Flowable
+                                    .fromCallable(() -> new EntityWithId<T>(
+                                            entitySerializer.deserialize(cls, raw.bytes), raw.id)) //
+                                    .subscribeOn(DESERIALIZE_SCHEDULER), parallelism, parallelism);
+        }
+    }
+
+    private static <R> Flowable<R> cursor(Callable<Connection> connection, boolean closeConnection, String query,
+            List<String> parameters, int fetchSize, RowMapper<R> mapper) {
+        return Flowable.using( //
+                () -> Cursor.open(connection.call(), closeConnection, query, parameters, fetchSize), //
+                cursor -> Flowable.<R>generate(emitter -> {
+                    try {
+                        if (cursor.rs.next()) {
+                            emitter.onNext(mapper.map(cursor.rs));
+                        } else {
+                            emitter.onComplete();
+                        }
+                    } catch (SQLException e) {
+                        throw new SQLRuntimeException(e);
+                    }
+                }), //
+                Cursor::close);
+    }
+
+    private interface RowMapper<R> {
+        R map(ResultSet rs) throws SQLException;
+    }
+
+    private static final class RawEntity {
+        final String id;
+        final byte[] bytes;
+
+        RawEntity(String id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * An open query whose rows are read as they are requested.
+     */
+    private static final class Cursor {
+        final Connection con;
+        final boolean closeConnection;
+        final PreparedStatement ps;
+        final ResultSet rs;
+
+        private Cursor(Connection con, boolean closeConnection, PreparedStatement ps, ResultSet rs) {
+            this.con = con;
+            this.closeConnection = closeConnection;
+            this.ps = ps;
+            this.rs = rs;
+        }
+
+        static Cursor open(Connection con, boolean closeConnection, String query, List<String> parameters,
+                int fetchSize) {
+            PreparedStatement ps = null;
+            try {
+                ps = con.prepareStatement(query);
+                ps.setFetchSize(fetchSize);
+                for (int i = 0; i < parameters.size(); i++) {
+                    ps.setString(i + 1, parameters.get(i));
+                }
+                return new Cursor(con, closeConnection, ps, ps.executeQuery());
+            } catch (SQLException e) {
+                new Cursor(con, closeConnection, ps, null).close();
+                throw new SQLRuntimeException(e);
+            } catch (RuntimeException e) {
+                new Cursor(con, closeConnection, ps, null).close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (ps != null) {
+                    ps.close();
+                }
+            } catch (SQLException e) {
+                throw new SQLRuntimeException(e);
+            } finally {
+                if (closeConnection) {
+                    try {
+                        con.close();
+                    } catch (SQLException e) {
+                        throw new SQLRuntimeException(e);
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public <T> Set<EntityWithId<T>> get(Class<T> cls, String name, String value) {
         try ( //
@@ -996,86 +2317,412 @@ public final class Persistence implements Entities {
         AND, OR;
     }
 
+    /**
+     * Reads the entities that have any (OR) or all (AND) of the properties with
+     * one query so that only matching entities are read and each is
+     * deserialized once.
+     */
     private <T> Set<EntityWithId<T>> get(Class<T> cls, Iterable<Property> properties, Connection con,
             LogicalOperation operation) throws SQLException {
-        try (PreparedStatement ps = con.prepareStatement(sql.readEntitiesByProperty())) {
+        List<String> pairs = propertyParameters(properties);
+        int count = pairs.size() / 2;
+        Set<EntityWithId<T>> set = new HashSet<>();
+        if (count == 0) {
+            return set;
+        }
+        try (PreparedStatement ps = con
+                .prepareStatement(sql.readEntitiesByProperties(count, operation == LogicalOperation.AND))) {
+            setParameters(ps, cls, 2, pairs);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String id = rs.getString(1);
+                    T t = (T) entitySerializer.deserialize(cls, rs.getBinaryStream(2));
+                    set.add(new EntityWithId<T>(t, id));
+                }
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Returns the name and value parameters of the distinct properties (a
+     * repeated property would stop an AND matching).
+     */
+    private static List<String> propertyParameters(Iterable<Property> properties) {
+        List<String> parameters = new ArrayList<>();
+        Set<Property> distinct = new HashSet<>();
+        for (Property p : properties) {
+            if (distinct.add(p)) {
+                parameters.add(p.name());
+                parameters.add(p.value());
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Sets the class name as the first {@code clsCount} parameters followed by
+     * the property names and values.
+     */
+    private static void setParameters(PreparedStatement ps, Class<?> cls, int clsCount, List<String> pairs)
+            throws SQLException {
+        for (int i = 0; i < clsCount; i++) {
+            ps.setString(i + 1, cls.getName());
+        }
+        for (int i = 0; i < pairs.size(); i++) {
+            ps.setString(clsCount + i + 1, pairs.get(i));
+        }
+    }
+
+    @Override
+    public List<String> getIds(Class<?> cls) {
+        try ( //
+                Connection con = createConnection()) {
+            return getIds(cls, con);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    private List<String> getIds(Class<?> cls, Connection con) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.readAllEntityIds())) {
             ps.setString(1, cls.getName());
-            Set<EntityWithId<T>> set = new HashSet<>();
-            boolean firstTime = true;
-            for (Property p : properties) {
-                Set<EntityWithId<T>> s;
-                if (operation == LogicalOperation.OR) {
-                    s = null;
-                } else {
-                    s = new HashSet<>();
+            List<String> list = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    list.add(rs.getString(1));
                 }
-                ps.setString(2, p.name());
-                ps.setString(3, p.value());
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        String id = rs.getString(1);
-                        T t = (T) entitySerializer.deserialize(cls, readAll(rs.getBlob(2).getBinaryStream()));
-                        EntityWithId<T> ent = new EntityWithId<T>(t, id);
-                        if (operation == LogicalOperation.OR || firstTime) {
-                            set.add(ent);
-                        } else {
-                            s.add(ent);
-                        }
-                    }
+            }
+            return list;
+        }
+    }
+
+    @Override
+    public Set<String> getIdsOr(Class<?> cls, Iterable<Property> properties) {
+        try ( //
+                Connection con = createConnection()) {
+            return getIds(cls, properties, con, LogicalOperation.OR);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    @Override
+    public Set<String> getIdsAnd(Class<?> cls, Iterable<Property> properties) {
+        try ( //
+                Connection con = createConnection()) {
+            return getIds(cls, properties, con, LogicalOperation.AND);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    private Set<String> getIds(Class<?> cls, Iterable<Property> properties, Connection con,
+            LogicalOperation operation) throws SQLException {
+        List<String> pairs = propertyParameters(properties);
+        Set<String> set = new HashSet<>();
+        if (pairs.isEmpty()) {
+            return set;
+        }
+        try (PreparedStatement ps = con.prepareStatement(
+                sql.readEntityIdsByProperties(pairs.size() / 2, operation == LogicalOperation.AND))) {
+            setParameters(ps, cls, 1, pairs);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    set.add(rs.getString(1));
                 }
-                if (operation == LogicalOperation.AND && !firstTime) {
-                    set.retainAll(s);
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public Map<String, Set<Property>> getPropertiesOr(Class<?> cls, Iterable<Property> properties) {
+        try ( //
+                Connection con = createConnection()) {
+            return getProperties(cls, properties, con, LogicalOperation.OR);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Set<Property>> getPropertiesAnd(Class<?> cls, Iterable<Property> properties) {
+        try ( //
+                Connection con = createConnection()) {
+            return getProperties(cls, properties, con, LogicalOperation.AND);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    private Map<String, Set<Property>> getProperties(Class<?> cls, Iterable<Property> properties, Connection con,
+            LogicalOperation operation) throws SQLException {
+        List<String> pairs = propertyParameters(properties);
+        Map<String, Set<Property>> map = new LinkedHashMap<>();
+        if (pairs.isEmpty()) {
+            return map;
+        }
+        try (PreparedStatement ps = con.prepareStatement(
+                sql.readEntityPropertiesByProperties(pairs.size() / 2, operation == LogicalOperation.AND))) {
+            setParameters(ps, cls, 2, pairs);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    map.computeIfAbsent(rs.getString(1), id -> new HashSet<>())
+                            .add(Property.create(rs.getString(2), rs.getString(3)));
                 }
             }
-            return set;
         }
+        return map;
     }
 
     private void offer(NumberedSignal<?, String> signal) {
-        queue.offer(signal);
-        drain();
+        lane(signal).offer(signal);
     }
 
-    @SuppressWarnings("unchecked")
-    private void drain() {
-        // non-blocking drain loop for the signal queue
-        if (wip.getAndIncrement() == 0) {
-            executor.execute(() -> {
-                int missed = 1;
-                while (true) {
-                    while (true) {
-                        NumberedSignal<?, ?> signal = queue.peek();
-                        if (signal == null) {
-                            break;
+    private void offerAll(Collection<NumberedSignal<?, ?>> signals) {
+        if (lanes.size() == 1) {
+            lanes.get(0).offerAll(signals);
+        } else {
+            Map<Lane, List<NumberedSignal<?, ?>>> map = new HashMap<>();
+            for (NumberedSignal<?, ?> signal : signals) {
+                map.computeIfAbsent(lane(signal), x -> new ArrayList<>()).add(signal);
+            }
+            for (Entry<Lane, List<NumberedSignal<?, ?>>> entry : map.entrySet()) {
+                entry.getKey().offerAll(entry.getValue());
+            }
+        }
+    }
+
+    private Lane lane(NumberedSignal<?, ?> signal) {
+        if (lanes.size() == 1) {
+            return lanes.get(0);
+        } else {
+            // an entity always maps to the same lane so its signals are
+            // processed in order
+            int h = ClassId.create(signal.signal.cls(), signal.signal.id()).hashCode();
+            return lanes.get(Math.floorMod(h ^ (h >>> 16), lanes.size()));
+        }
+    }
+
+    /**
+     * A queue of signals with a non-blocking drain loop that processes them one
+     * (or one batch) at a time on the executor. Signals are routed to a lane by
+     * entity so the lanes process different entities concurrently.
+     */
+    private final class Lane {
+
+        private final Queue<NumberedSignal<?, ?>> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger wip = new AtomicInteger();
+        // without a connection pool the lane keeps its own connection open
+        // between transactions, it is only used by the drain loop and is
+        // replaced after a failure
+        private Connection connection; // nullable
+
+        void offer(NumberedSignal<?, String> signal) {
+            queue.offer(signal);
+            drain();
+        }
+
+        void offerAll(Collection<NumberedSignal<?, ?>> signals) {
+            queue.addAll(signals);
+            drain();
+        }
+
+        private void drain() {
+            // non-blocking drain loop for the signal queue
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(() -> drainLoop(1, false));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void drainLoop(int missed, boolean waited) {
+            while (true) {
+                while (!queue.isEmpty()) {
+                    if (groupCommitMaxSignals <= 1) {
+                        if (process((NumberedSignal<?, String>) queue.peek())) {
+                            queue.poll();
                         } else {
-                            if (process((NumberedSignal<?, String>) signal)) {
-                                queue.poll();
-                            } else {
-                                break;
-                            }
+                            scheduleRetry();
+                            break;
+                        }
+                    } else {
+                        List<NumberedSignal<?, String>> batch = peekBatch();
+                        if (!waited && groupCommitWindowMs > 0 && batch.size() < groupCommitMaxSignals) {
+                            // give more signals the chance to join the batch,
+                            // wip stays positive so no other drain loop starts
+                            // meanwhile
+                            int m = missed;
+                            executor.schedule(() -> drainLoop(m, true), groupCommitWindowMs,
+                                    TimeUnit.MILLISECONDS);
+                            return;
+                        }
+                        waited = false;
+                        if (!processBatch(batch)) {
+                            scheduleRetry();
+                            break;
                         }
                     }
-                    missed = wip.addAndGet(-missed);
-                    if (missed == 0) {
-                        return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<NumberedSignal<?, String>> peekBatch() {
+            List<NumberedSignal<?, String>> batch = new ArrayList<>();
+            Iterator<NumberedSignal<?, ?>> it = queue.iterator();
+            while (batch.size() < groupCommitMaxSignals && it.hasNext()) {
+                batch.add((NumberedSignal<?, String>) it.next());
+            }
+            return batch;
+        }
+
+        /**
+         * Processes the signals in one transaction. If any signal fails the
+         * transaction is rolled back and the signals are processed one at a time
+         * instead.
+         * 
+         * @return true if all signals were processed
+         */
+        private boolean processBatch(List<NumberedSignal<?, String>> batch) {
+            Outputs outputs = new Outputs();
+            try {
+                Connection con = connection();
+                try {
+                    // entities hit more than once in the batch are carried over
+                    // rather than read and deserialized again
+                    Map<ClassId<?, String>, EntityStateMachine<?, String>> machines = new HashMap<>();
+                    for (NumberedSignal<?, String> signal : batch) {
+                        Persistence.this.process(con, signal, machines, outputs);
                     }
+                    con.commit();
+                } catch (Throwable e) {
+                    discard(con);
+                    throw e;
                 }
-            });
+                release(con);
+            } catch (Throwable e) {
+                outputs.rolledBack();
+                // the failing signal is reported when processed on its own
+                return processSeparately(batch);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                queue.poll();
+            }
+            outputs.send();
+            return true;
+        }
+
+        private boolean process(NumberedSignal<?, String> signal) {
+            Outputs outputs = new Outputs();
+            try {
+                Connection con = connection();
+                try {
+                    Persistence.this.process(con, signal, null, outputs);
+                    // commit the transaction
+                    con.commit();
+                } catch (Throwable e) {
+                    discard(con);
+                    throw e;
+                }
+                release(con);
+            } catch (Throwable e) {
+                outputs.rolledBack();
+                errorHandler.accept(e);
+                return false;
+            }
+            outputs.send();
+            return true;
+        }
+
+        private Connection connection() {
+            if (pool != null) {
+                return createConnection();
+            }
+            if (connection == null) {
+                connection = createConnection();
+            }
+            return connection;
+        }
+
+        private void release(Connection con) throws SQLException {
+            if (pool != null) {
+                // returns the connection to the pool
+                con.close();
+            }
+        }
+
+        /**
+         * Rolls back and closes a connection whose transaction failed so that
+         * a connection in an unknown state is not used again.
+         */
+        private void discard(Connection con) {
+            if (con == connection) {
+                connection = null;
+            }
+            try {
+                con.rollback();
+            } catch (SQLException e) {
+                // the connection is closed anyway
+            }
+            try {
+                con.close();
+            } catch (SQLException e) {
+                // nothing more can be done with it
+            }
+        }
+
+        private boolean processSeparately(List<NumberedSignal<?, String>> batch) {
+            Set<ClassId<?, String>> failed = new HashSet<>();
+            for (NumberedSignal<?, String> signal : batch) {
+                ClassId<?, String> key = ClassId.create(signal.signal.cls(), signal.signal.id());
+                // don't process later signals to an entity whose signal failed so
+                // that signals to an entity are processed in order
+                if (!failed.contains(key) && process(signal)) {
+                    queue.remove(signal);
+                } else {
+                    failed.add(key);
+                }
+            }
+            return failed.isEmpty();
         }
+
+        private void scheduleRetry() {
+            if (retryIntervalMs > 0) {
+                executor.schedule(() -> drain(), retryIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
     }
 
     private static byte[] readAll(InputStream is) {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        byte[] buffer = new byte[8192];
-        int count;
         try {
-            while ((count = is.read(buffer)) != -1) {
-                bytes.write(buffer, 0, count);
-            }
+            return new ByteArrayDataOutput(8192).readFrom(is).toByteArray();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return bytes.toByteArray();
+    }
+
+    /**
+     * Serializes {@code value} into this thread's reusable buffer and sets the
+     * parameter to a copy of exactly the bytes written. The copy is needed
+     * because a driver may hold on to the array until a batch is executed.
+     */
+    private static void setBytes(PreparedStatement ps, int index, Serializer serializer, Object value)
+            throws SQLException {
+        ByteArrayDataOutput buffer = SERIALIZE_BUFFER.get();
+        buffer.reset();
+        serializer.serialize(value, buffer);
+        ps.setBytes(index, buffer.toByteArray());
+        if (buffer.capacity() > SERIALIZE_BUFFER_MAX_RETAINED) {
+            // don't hold on to the memory used by an unusually large value
+            SERIALIZE_BUFFER.remove();
+        }
     }
 
     @Override
@@ -1103,33 +2750,181 @@ public final class Persistence implements Entities {
     private <T> List<EntityWithId<T>> get(Class<T> cls, String name, String value, String rangeName, long rangeStart,
             boolean startInclusive, long rangeEnd, boolean endInclusive, int limit, Optional<String> lastId,
             Connection con) throws SQLException {
-        try (PreparedStatement ps = con
-                .prepareStatement(sql.readEntitiesByPropertyAndRange(startInclusive, endInclusive))) {
-            ps.setString(1, cls.getName());
-            ps.setString(2, name);
-            ps.setString(3, value);
-            ps.setString(4, rangeName);
-            ps.setLong(5, rangeStart);
-            ps.setLong(6, rangeEnd);
-            ps.setInt(7, limit);
+        // continue from the range value of lastId so that rows are not skipped
+        // when several share a range value
+        Optional<RangeKey> after = Optional.empty();
+        if (lastId.isPresent()) {
+            try (PreparedStatement ps = con.prepareStatement(sql.readEntityRangeValue())) {
+                ps.setString(1, cls.getName());
+                ps.setString(2, lastId.get());
+                ps.setString(3, name);
+                ps.setString(4, value);
+                ps.setString(5, rangeName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        after = Optional.of(new RangeKey(rs.getLong(1), lastId.get()));
+                    } else {
+                        // lastId is no longer indexed so where to continue
+                        // is unknown, don't start again from the beginning
+                        return Collections.emptyList();
+                    }
+                }
+            }
+        }
+        return getPage(cls, name, value, rangeName, rangeStart, startInclusive, rangeEnd, endInclusive, limit, after,
+                con).items();
+    }
+
+    @Override
+    public <T> Page<T> getPage(Class<T> cls, String name, String value, String rangeName, long rangeStart,
+            boolean startInclusive, long rangeEnd, boolean endInclusive, int limit, Optional<String> after) {
+        try ( //
+                Connection con = createConnection()) {
+            return getPage(cls, name, value, rangeName, rangeStart, startInclusive, rangeEnd, endInclusive, limit,
+                    after.map(RangeKey::parse), con);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    private <T> Page<T> getPage(Class<T> cls, String name, String value, String rangeName, long rangeStart,
+            boolean startInclusive, long rangeEnd, boolean endInclusive, int limit, Optional<RangeKey> after,
+            Connection con) throws SQLException {
+        Preconditions.checkArgument(limit > 0, "limit must be positive");
+        try (PreparedStatement ps = con.prepareStatement(
+                sql.readEntitiesByPropertyAndRangePage(startInclusive, endInclusive, after.isPresent()))) {
+            int i = 1;
+            ps.setString(i++, cls.getName());
+            ps.setString(i++, name);
+            ps.setString(i++, value);
+            ps.setString(i++, rangeName);
+            ps.setLong(i++, rangeStart);
+            ps.setLong(i++, rangeEnd);
+            if (after.isPresent()) {
+                ps.setLong(i++, after.get().rangeValue);
+                ps.setLong(i++, after.get().rangeValue);
+                ps.setString(i++, after.get().id);
+            }
+            // one more row than needed shows whether there is a next page
+            ps.setInt(i++, limit + 1);
             List<EntityWithId<T>> list = new ArrayList<>();
+            RangeKey last = null;
             try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
+                while (list.size() < limit && rs.next()) {
                     String id = rs.getString(1);
-                    T t = (T) entitySerializer.deserialize(cls, readAll(rs.getBlob(2).getBinaryStream()));
+                    T t = (T) entitySerializer.deserialize(cls, rs.getBinaryStream(2));
                     list.add(new EntityWithId<T>(t, id));
+                    last = new RangeKey(rs.getLong(3), id);
+                }
+                if (rs.next()) {
+                    return new Page<T>(list, Optional.of(last.token()));
+                } else {
+                    return new Page<T>(list, Optional.empty());
                 }
             }
-            if (lastId.isPresent()) {
-                // don't return the items up to lastId because they were
-                // returned in the last query (in theory)
-                for (int i = list.size() - 1; i >= 0; i--) {
-                    if (list.get(i).id.equals(lastId.get())) {
-                        return list.subList(i + 1, list.size());
-                    }
+        }
+    }
+
+    @Override
+    public Map<String, Long> countByState(Class<?> cls) {
+        try ( //
+                Connection con = createConnection()) {
+            return countByState(cls, con);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    private Map<String, Long> countByState(Class<?> cls, Connection con) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.countEntitiesByState())) {
+            ps.setString(1, cls.getName());
+            return counts(ps);
+        }
+    }
+
+    @Override
+    public Map<String, Long> countByPropertyValue(Class<?> cls, String name) {
+        try ( //
+                Connection con = createConnection()) {
+            return countByPropertyValue(cls, name, con);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    private Map<String, Long> countByPropertyValue(Class<?> cls, String name, Connection con) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.countEntitiesByPropertyValue())) {
+            ps.setString(1, cls.getName());
+            ps.setString(2, name);
+            return counts(ps);
+        }
+    }
+
+    private static Map<String, Long> counts(PreparedStatement ps) throws SQLException {
+        Map<String, Long> map = new LinkedHashMap<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                map.put(rs.getString(1), rs.getLong(2));
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public RangeStats rangeStats(Class<?> cls, String name, String value, String rangeName) {
+        try ( //
+                Connection con = createConnection()) {
+            return rangeStats(cls, name, value, rangeName, con);
+        } catch (SQLException e) {
+            throw new SQLRuntimeException(e);
+        }
+    }
+
+    private RangeStats rangeStats(Class<?> cls, String name, String value, String rangeName, Connection con)
+            throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(sql.readEntityRangeStats())) {
+            ps.setString(1, cls.getName());
+            ps.setString(2, name);
+            ps.setString(3, value);
+            ps.setString(4, rangeName);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                long count = rs.getLong(1);
+                if (count == 0) {
+                    return new RangeStats(0, Optional.empty(), Optional.empty(), 0);
+                } else {
+                    return new RangeStats(count, Optional.of(rs.getLong(2)), Optional.of(rs.getLong(3)),
+                            rs.getLong(4));
                 }
             }
-            return list;
+        }
+    }
+
+    /**
+     * Position in a range query (the range value and id of a row), encoded in
+     * a page token as {@code rangeValue:id}.
+     */
+    private static final class RangeKey {
+        final long rangeValue;
+        final String id;
+
+        RangeKey(long rangeValue, String id) {
+            this.rangeValue = rangeValue;
+            this.id = id;
+        }
+
+        String token() {
+            return rangeValue + ":" + id;
+        }
+
+        static RangeKey parse(String token) {
+            int i = token.indexOf(':');
+            try {
+                Preconditions.checkArgument(i > 0, "invalid page token: " + token);
+                return new RangeKey(Long.parseLong(token.substring(0, i)), token.substring(i + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid page token: " + token);
+            }
         }
     }
 }
@@ -0,0 +1,54 @@
+package com.github.davidmoten.fsm.persistence;
+
+import java.util.Optional;
+
+/**
+ * The number, minimum, maximum and sum of the values of a range metric over
+ * the entities that have a property.
+ */
+public final class RangeStats {
+
+    private final long count;
+    private final Optional<Long> min;
+    private final Optional<Long> max;
+    private final long sum;
+
+    public RangeStats(long count, Optional<Long> min, Optional<Long> max, long sum) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Returns the minimum range value, empty if there are no entities.
+     *
+     * @return minimum range value
+     */
+    public Optional<Long> min() {
+        return min;
+    }
+
+    /**
+     * Returns the maximum range value, empty if there are no entities.
+     *
+     * @return maximum range value
+     */
+    public Optional<Long> max() {
+        return max;
+    }
+
+    public long sum() {
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return "RangeStats [count=" + count + ", min=" + min + ", max=" + max + ", sum=" + sum + "]";
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.github.davidmoten.fsm.persistence;
+
+/**
+ * Progress of a bulk rebuild of entities from the signal store.
+ */
+public final class RebuildProgress {
+
+    public final long entities;
+    public final long events;
+    public final long elapsedMs;
+
+    public RebuildProgress(long entities, long events, long elapsedMs) {
+        this.entities = entities;
+        this.events = events;
+        this.elapsedMs = elapsedMs;
+    }
+
+    public static RebuildProgress create(long entities, long events, long elapsedMs) {
+        return new RebuildProgress(entities, events, elapsedMs);
+    }
+
+    public double entitiesPerSecond() {
+        return perSecond(entities);
+    }
+
+    public double eventsPerSecond() {
+        return perSecond(events);
+    }
+
+    private double perSecond(long count) {
+        return elapsedMs == 0 ? 0 : count * 1000.0 / elapsedMs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RebuildProgress [entities=%s, events=%s, elapsedMs=%s, entities/s=%.1f, events/s=%.1f]",
+                entities, events, elapsedMs, entitiesPerSecond(), eventsPerSecond());
+    }
+
+}
@@ -1,11 +1,60 @@
 package com.github.davidmoten.fsm.persistence;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 public interface Serializer {
 
     byte[] serialize(Object t);
 
     <T> T deserialize(Class<T> cls, byte[] bytes);
 
+    /**
+     * Writes the serialized form of {@code t} to {@code out} (without closing
+     * it). The default implementation writes the result of
+     * {@link #serialize(Object)}.
+     *
+     * @param t
+     *            object to serialize
+     * @param out
+     *            destination
+     */
+    default void serialize(Object t, OutputStream out) {
+        try {
+            out.write(serialize(t));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads an object of class {@code cls} from the remaining bytes of
+     * {@code in} (without closing it). The default implementation reads all
+     * the bytes and calls {@link #deserialize(Class, byte[])}.
+     *
+     * @param cls
+     *            class of the object
+     * @param in
+     *            source
+     * @param <T>
+     *            type of the object
+     * @return the object
+     */
+    default <T> T deserialize(Class<T> cls, InputStream in) {
+        try {
+            return deserialize(cls, new ByteArrayDataOutput(256).readFrom(in).toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static final Serializer JSON = new SerializerJson();
 
+    /**
+     * Uses the binary codecs generated for immutable classes and JSON for
+     * classes without one.
+     */
+    public static final Serializer BINARY = new SerializerBinary();
+
 }
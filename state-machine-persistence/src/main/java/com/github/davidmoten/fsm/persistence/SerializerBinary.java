@@ -0,0 +1,154 @@
+package com.github.davidmoten.fsm.persistence;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializes classes that have the static {@code writeBinary} and
+ * {@code readBinary} methods generated for {@code @GenerateImmutable} classes
+ * (with {@code generateBinaryCodecs} set) using those methods, and all other
+ * classes using a fallback serializer (JSON by default).
+ *
+ * <p>
+ * Binary values start with a version byte that identifies the encoding. Any
+ * other first byte is read with the fallback serializer so values written as
+ * JSON before switching to this serializer can still be read.
+ */
+public final class SerializerBinary implements Serializer {
+
+    /**
+     * The first byte of a binary value. JSON never starts with this byte.
+     */
+    public static final byte VERSION = 1;
+
+    private final Serializer fallback;
+
+    // the codec of each class, empty if the class does not have one
+    private final ConcurrentHashMap<Class<?>, Optional<Codec>> codecs = new ConcurrentHashMap<>();
+
+    public SerializerBinary() {
+        this(Serializer.JSON);
+    }
+
+    public SerializerBinary(Serializer fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public byte[] serialize(Object t) {
+        Optional<Codec> codec = codec(t.getClass());
+        if (!codec.isPresent()) {
+            return fallback.serialize(t);
+        }
+        ByteArrayDataOutput out = new ByteArrayDataOutput(128);
+        write(codec.get(), t, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialize(Object t, OutputStream out) {
+        Optional<Codec> codec = codec(t.getClass());
+        if (!codec.isPresent()) {
+            fallback.serialize(t, out);
+        } else if (out instanceof DataOutput) {
+            write(codec.get(), t, (DataOutput) out);
+        } else {
+            write(codec.get(), t, new DataOutputStream(out));
+        }
+    }
+
+    @Override
+    public <T> T deserialize(Class<T> cls, byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != VERSION) {
+            return fallback.deserialize(cls, bytes);
+        }
+        Optional<Codec> codec = codec(cls);
+        if (!codec.isPresent()) {
+            throw new IllegalArgumentException("binary value found but " + cls.getName() + " has no binary codec");
+        }
+        return read(codec.get(), cls, new ByteArrayDataInput(bytes, 1));
+    }
+
+    @Override
+    public <T> T deserialize(Class<T> cls, InputStream in) {
+        PushbackInputStream p = new PushbackInputStream(in, 1);
+        int first;
+        try {
+            first = p.read();
+            if (first != VERSION) {
+                if (first != -1) {
+                    p.unread(first);
+                }
+                return fallback.deserialize(cls, p);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Optional<Codec> codec = codec(cls);
+        if (!codec.isPresent()) {
+            throw new IllegalArgumentException("binary value found but " + cls.getName() + " has no binary codec");
+        }
+        return read(codec.get(), cls, new DataInputStream(p));
+    }
+
+    private static void write(Codec codec, Object t, DataOutput out) {
+        try {
+            out.writeByte(VERSION);
+            codec.write.invokeExact(t, out);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static <T> T read(Codec codec, Class<T> cls, DataInput in) {
+        try {
+            return cls.cast((Object) codec.read.invokeExact(in));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Optional<Codec> codec(Class<?> cls) {
+        return codecs.computeIfAbsent(cls, SerializerBinary::findCodec);
+    }
+
+    private static Optional<Codec> findCodec(Class<?> cls) {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            MethodHandle write = lookup
+                    .findStatic(cls, "writeBinary", MethodType.methodType(void.class, cls, DataOutput.class))
+                    .asType(MethodType.methodType(void.class, Object.class, DataOutput.class));
+            MethodHandle read = lookup.findStatic(cls, "readBinary", MethodType.methodType(cls, DataInput.class))
+                    .asType(MethodType.methodType(Object.class, DataInput.class));
+            return Optional.of(new Codec(write, read));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static final class Codec {
+        final MethodHandle write;
+        final MethodHandle read;
+
+        Codec(MethodHandle write, MethodHandle read) {
+            this.write = write;
+            this.read = read;
+        }
+    }
+
+}
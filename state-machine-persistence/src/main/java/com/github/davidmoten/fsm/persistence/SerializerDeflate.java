@@ -0,0 +1,333 @@
+package com.github.davidmoten.fsm.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Compresses the output of another serializer with {@link Deflater}, using a
+ * preset dictionary per class when one is configured. Payloads smaller than
+ * {@code minSize} (or that don't get smaller) are stored exactly as the
+ * wrapped serializer wrote them, so rows written before compression was
+ * enabled are still read.
+ *
+ * <p>
+ * Compressed payloads are the {@link #COMPRESSED} header byte, the
+ * uncompressed length (unsigned varint) and a zlib stream. The zlib stream
+ * records the checksum of its dictionary so every dictionary that has been
+ * used must stay registered (with {@link Builder#dictionary(Class, byte[])})
+ * to read old rows; the dictionary registered last for a class is used for
+ * compression.
+ */
+public final class SerializerDeflate implements Serializer {
+
+    /**
+     * The first byte of a compressed payload. The wrapped serializer must not
+     * write payloads starting with this byte (JSON and
+     * {@link SerializerBinary} don't).
+     */
+    public static final byte COMPRESSED = 0x7F;
+
+    public static final int DEFAULT_MIN_SIZE = 64;
+
+    public static final int DEFAULT_DICTIONARY_SIZE = 4096;
+
+    // the deflate window, bytes of the dictionary beyond this are not used
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    // length of the byte sequences counted when training a dictionary
+    private static final int K = 6;
+
+    private final Serializer serializer;
+    private final int minSize;
+    private final int level;
+    private final Map<Class<?>, byte[]> dictionaryByClass;
+    private final Map<Integer, byte[]> dictionaryByChecksum;
+
+    // Deflater and Inflater hold native memory that is expensive to allocate
+    // so one of each is reused per thread
+    private final ThreadLocal<Deflater> deflater;
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+    private SerializerDeflate(Builder b) {
+        this.serializer = b.serializer;
+        this.minSize = b.minSize;
+        this.level = b.level;
+        this.dictionaryByClass = new HashMap<>(b.dictionaryByClass);
+        this.dictionaryByChecksum = new HashMap<>(b.dictionaryByChecksum);
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    public static Builder wrap(Serializer serializer) {
+        return new Builder(serializer);
+    }
+
+    public static final class Builder {
+
+        private final Serializer serializer;
+        private int minSize = DEFAULT_MIN_SIZE;
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private final Map<Class<?>, byte[]> dictionaryByClass = new HashMap<>();
+        private final Map<Integer, byte[]> dictionaryByChecksum = new HashMap<>();
+
+        Builder(Serializer serializer) {
+            Preconditions.checkNotNull(serializer);
+            this.serializer = serializer;
+        }
+
+        /**
+         * Payloads smaller than {@code minSize} bytes are not compressed.
+         *
+         * @param minSize
+         *            minimum size in bytes to compress
+         * @return this
+         */
+        public Builder minSize(int minSize) {
+            Preconditions.checkArgument(minSize >= 0);
+            this.minSize = minSize;
+            return this;
+        }
+
+        /**
+         * Sets the {@link Deflater} compression level (0-9).
+         *
+         * @param level
+         *            compression level
+         * @return this
+         */
+        public Builder level(int level) {
+            Preconditions.checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= 0 && level <= 9));
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Registers a preset dictionary for {@code cls}. May be called more
+         * than once for the same class, in which case the last dictionary is
+         * used for compression and all of them for decompression.
+         *
+         * @param cls
+         *            class of the serialized objects
+         * @param dictionary
+         *            preset dictionary
+         * @return this
+         */
+        public Builder dictionary(Class<?> cls, byte[] dictionary) {
+            Preconditions.checkArgument(dictionary.length > 0 && dictionary.length <= MAX_DICTIONARY_SIZE,
+                    "dictionary must have between 1 and " + MAX_DICTIONARY_SIZE + " bytes");
+            dictionaryByClass.put(cls, dictionary);
+            dictionaryByChecksum.put(checksum(dictionary), dictionary);
+            return this;
+        }
+
+        /**
+         * Trains a dictionary of up to {@link #DEFAULT_DICTIONARY_SIZE} bytes
+         * from {@code samples} serialized with the wrapped serializer and
+         * registers it for {@code cls}.
+         *
+         * @param cls
+         *            class of the serialized objects
+         * @param samples
+         *            typical objects of the class
+         * @param <T>
+         *            type of the objects
+         * @return this
+         */
+        public <T> Builder train(Class<T> cls, Iterable<? extends T> samples) {
+            List<byte[]> list = new ArrayList<>();
+            for (T sample : samples) {
+                list.add(serializer.serialize(sample));
+            }
+            return dictionary(cls, trainDictionary(list, DEFAULT_DICTIONARY_SIZE));
+        }
+
+        public SerializerDeflate build() {
+            return new SerializerDeflate(this);
+        }
+    }
+
+    @Override
+    public byte[] serialize(Object t) {
+        return compress(t.getClass(), serializer.serialize(t));
+    }
+
+    @Override
+    public <T> T deserialize(Class<T> cls, byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != COMPRESSED) {
+            return serializer.deserialize(cls, bytes);
+        }
+        return serializer.deserialize(cls, decompress(bytes));
+    }
+
+    private byte[] compress(Class<?> cls, byte[] bytes) {
+        // below 8 bytes the header could be longer than the payload
+        if (bytes.length < minSize || bytes.length < 8) {
+            return bytes;
+        }
+        Deflater d = deflater.get();
+        d.reset();
+        byte[] dictionary = dictionaryByClass.get(cls);
+        if (dictionary != null) {
+            d.setDictionary(dictionary);
+        }
+        d.setInput(bytes);
+        d.finish();
+        // only worth storing compressed if smaller than the original
+        byte[] out = new byte[bytes.length];
+        out[0] = COMPRESSED;
+        int n = 1 + writeVarint(bytes.length, out, 1);
+        while (!d.finished() && n < out.length) {
+            n += d.deflate(out, n, out.length - n);
+        }
+        if (!d.finished()) {
+            return bytes;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private byte[] decompress(byte[] bytes) {
+        // read the varint length
+        int length = 0;
+        int shift = 0;
+        int offset = 1;
+        byte b;
+        do {
+            b = bytes[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(bytes, offset, bytes.length - offset);
+        byte[] out = new byte[length];
+        int n = 0;
+        try {
+            while (n < length) {
+                int count = inf.inflate(out, n, length - n);
+                if (count == 0) {
+                    if (inf.needsDictionary()) {
+                        byte[] dictionary = dictionaryByChecksum.get(inf.getAdler());
+                        if (dictionary == null) {
+                            throw new IllegalStateException(
+                                    "dictionary with checksum " + inf.getAdler() + " is not registered");
+                        }
+                        inf.setDictionary(dictionary);
+                    } else if (inf.finished() || inf.needsInput()) {
+                        throw new IllegalStateException("compressed payload is truncated");
+                    }
+                }
+                n += count;
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+        return out;
+    }
+
+    private static int writeVarint(int value, byte[] out, int offset) {
+        int n = 0;
+        while ((value & ~0x7F) != 0) {
+            out[offset + n++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[offset + n++] = (byte) value;
+        return n;
+    }
+
+    private static int checksum(byte[] dictionary) {
+        Adler32 a = new Adler32();
+        a.update(dictionary);
+        return (int) a.getValue();
+    }
+
+    /**
+     * Builds a preset dictionary of at most {@code maxSize} bytes from sample
+     * payloads. Samples are chosen greedily by how many of the byte sequences
+     * common to other samples they add, and the most useful sample is placed
+     * at the end of the dictionary where matches are cheapest to encode.
+     *
+     * @param samples
+     *            typical serialized payloads
+     * @param maxSize
+     *            maximum size of the dictionary in bytes
+     * @return the dictionary
+     */
+    public static byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+        Preconditions.checkArgument(maxSize > 0 && maxSize <= MAX_DICTIONARY_SIZE);
+        // count the samples that each sequence of K bytes occurs in
+        List<Set<Long>> sequences = new ArrayList<>(samples.size());
+        Map<Long, Integer> frequency = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<Long> set = sequences(sample);
+            sequences.add(set);
+            for (Long seq : set) {
+                frequency.merge(seq, 1, Integer::sum);
+            }
+        }
+        Set<Long> covered = new HashSet<>();
+        Set<Integer> chosen = new HashSet<>();
+        List<byte[]> parts = new ArrayList<>();
+        int size = 0;
+        while (size < maxSize) {
+            int best = -1;
+            double bestScore = 0;
+            for (int i = 0; i < samples.size(); i++) {
+                if (!chosen.contains(i)) {
+                    long gain = 0;
+                    for (Long seq : sequences.get(i)) {
+                        int f = frequency.get(seq);
+                        // sequences found in only one sample are unlikely to
+                        // recur
+                        if (f > 1 && !covered.contains(seq)) {
+                            gain += f;
+                        }
+                    }
+                    double score = (double) gain / samples.get(i).length;
+                    if (score > bestScore) {
+                        bestScore = score;
+                        best = i;
+                    }
+                }
+            }
+            if (best == -1) {
+                break;
+            }
+            chosen.add(best);
+            covered.addAll(sequences.get(best));
+            byte[] sample = samples.get(best);
+            byte[] part = Arrays.copyOf(sample, Math.min(sample.length, maxSize - size));
+            parts.add(part);
+            size += part.length;
+        }
+        byte[] dictionary = new byte[size];
+        int offset = size;
+        for (byte[] part : parts) {
+            offset -= part.length;
+            System.arraycopy(part, 0, dictionary, offset, part.length);
+        }
+        return dictionary;
+    }
+
+    private static Set<Long> sequences(byte[] sample) {
+        Set<Long> set = new HashSet<>();
+        long seq = 0;
+        for (int i = 0; i < sample.length; i++) {
+            seq = ((seq << 8) | (sample[i] & 0xFF)) & 0xFFFFFFFFFFFFL;
+            if (i >= K - 1) {
+                set.add(seq);
+            }
+        }
+        return set;
+    }
+
+}
@@ -1,11 +1,17 @@
 package com.github.davidmoten.fsm.persistence;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
@@ -17,12 +23,17 @@ public class SerializerJson implements Serializer {
             .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS) //
             .registerModule(new Jdk8Module()) //
             .registerModule(new ParameterNamesModule());
-    
+
+    // readers and writers are immutable and thread-safe so are created once
+    // per class rather than resolving the class through the mapper each time
+    private final ConcurrentHashMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
     @Override
     public byte[] serialize(Object t) {
         try {
-            return m.writeValueAsBytes(t);
-        } catch (JsonProcessingException e) {
+            return writer(t.getClass()).writeValueAsBytes(t);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -30,10 +41,38 @@ public class SerializerJson implements Serializer {
     @Override
     public <T> T deserialize(Class<T> cls, byte[] bytes) {
         try {
-            return m.readValue(bytes, cls);
+            return reader(cls).readValue(bytes);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public void serialize(Object t, OutputStream out) {
+        try {
+            writer(t.getClass()).writeValue(out, t);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(Class<T> cls, InputStream in) {
+        try {
+            return reader(cls).readValue(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ObjectWriter writer(Class<?> cls) {
+        return writers.computeIfAbsent(cls,
+                c -> m.writerFor(c).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+    }
+
+    private ObjectReader reader(Class<?> cls) {
+        return readers.computeIfAbsent(cls,
+                c -> m.readerFor(c).without(JsonParser.Feature.AUTO_CLOSE_SOURCE));
+    }
+
 }
@@ -26,7 +26,41 @@ public interface Sql {
     }
 
     default String addToSignalStore() {
-        return "insert into signal_store(cls, id, event_cls, event_bytes) values(?,?,?,?)";
+        return "insert into signal_store(cls, id, event_cls, event_bytes, format_version) values(?,?,?,?,?)";
+    }
+
+    /**
+     * Returns the number of events stored for an entity after its latest
+     * snapshot and the sequence number of the last of them. Parameters are
+     * cls, id, cls, id.
+     * 
+     * @return count sql
+     */
+    default String countSignalStoreSinceSnapshot() {
+        return "select count(*), max(seq_num) from signal_store where cls=? and id=? and seq_num > "
+                + "coalesce((select seq_num from entity_snapshot where cls=? and id=?), -1)";
+    }
+
+    default String readSignalStore() {
+        return "select event_cls, event_bytes, format_version from signal_store where cls=? and id=? and seq_num>? "
+                + "order by seq_num";
+    }
+
+    default String readSignalStoreByClass() {
+        return "select id, event_cls, event_bytes, format_version from signal_store where cls=? "
+                + "order by id, seq_num";
+    }
+
+    default String deleteSnapshot() {
+        return "delete from entity_snapshot where cls=? and id=?";
+    }
+
+    default String readSnapshot() {
+        return "select seq_num, state, bytes from entity_snapshot where cls=? and id=?";
+    }
+
+    default String mergeSnapshot() {
+        return "merge into entity_snapshot(cls, id, seq_num, state, bytes) key(cls, id) values(?,?,?,?,?)";
     }
 
     default String deleteDelayedSignal() {
@@ -53,10 +87,40 @@ public interface Sql {
         return "insert into entity(cls, id, bytes, state) values(?,?,?,?)";
     }
 
+    /**
+     * Inserts or updates an entity in one statement. Parameters are cls, id,
+     * bytes, state. Used instead of {@link #updateEntity()} then
+     * {@link #insertEntity()} when round trips are optimized.
+     * 
+     * @return merge sql
+     */
+    default String mergeEntity() {
+        return "merge into entity(cls, id, bytes, state) key(cls, id) values(?,?,?,?)";
+    }
+
     default String readEntity() {
         return "select bytes from entity where cls=? and id=?";
     }
 
+    /**
+     * Returns sql that reads the id and bytes of the entities of a class with
+     * any of {@code count} ids. Parameters are cls then the ids.
+     * 
+     * @param count
+     *            number of ids
+     * @return select sql
+     */
+    default String readEntitiesByIds(int count) {
+        StringBuilder s = new StringBuilder("select id, bytes from entity where cls=? and id in (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                s.append(",");
+            }
+            s.append("?");
+        }
+        return s.append(")").toString();
+    }
+
     default String readAllEntities() {
         return "select id, bytes from entity where cls=?";
     }
@@ -69,31 +133,154 @@ public interface Sql {
         return "insert into entity_property(cls, id, name, \"value\") values(?,?,?,?)";
     }
 
-    default String readEntitiesByProperty() {
-        return "select id, bytes from entity\n"//
-                + "where id in (\n" //
-                + "select id from entity_property\n" //
-                + "where cls=? and name=? and \"value\"=?" //
-                + ")";
+    default String readEntityProperties() {
+        return "select name, \"value\" from entity_property where cls=? and id=?";
+    }
+
+    default String deleteEntityProperty() {
+        return "delete from entity_property where cls=? and id=? and name=? and \"value\"=?";
     }
 
-    default String readEntitiesByPropertyAndRange(boolean startInclusive, boolean endInclusive) {
-        return "select id, bytes from entity\n"//
-                + "where id in (\n" //
-                + "select id from entity_prop_range_int\n" //
-                + "where cls=? and name=? and \"value\"=?\n" //
-                + "and range_name=?\n" //
-                + "and range_value" + (startInclusive ? ">=" : ">") + "?\n"//
-                + "and range_value" + (endInclusive ? "<=" : "<") + "?\n"//
-                + "order by range_value, id\n" //
-                + "limit ?" //
+    /**
+     * Returns sql that reads the id and bytes of the entities of a class that
+     * have any ({@code all=false}) or all ({@code all=true}) of {@code count}
+     * distinct properties in one query. Parameters are cls, cls then the name
+     * and value of each property.
+     * 
+     * @param count
+     *            number of properties
+     * @param all
+     *            true if the entities must have all of the properties
+     * @return select sql
+     */
+    default String readEntitiesByProperties(int count, boolean all) {
+        return "select id, bytes from entity\n" //
+                + "where cls=? and id in (\n" //
+                + readEntityIdsByProperties(count, all) //
                 + ")";
     }
 
+    /**
+     * Returns sql that reads the ids of the entities of a class that have any
+     * ({@code all=false}) or all ({@code all=true}) of {@code count} distinct
+     * properties from entity_property only. Parameters are cls then the name
+     * and value of each property.
+     * 
+     * @param count
+     *            number of properties
+     * @param all
+     *            true if the entities must have all of the properties
+     * @return select sql
+     */
+    default String readEntityIdsByProperties(int count, boolean all) {
+        StringBuilder s = new StringBuilder();
+        s.append(all ? "select id" : "select distinct id") //
+                .append(" from entity_property\n") //
+                .append("where cls=? and (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                s.append(" or ");
+            }
+            s.append("(name=? and \"value\"=?)");
+        }
+        s.append(")");
+        if (all) {
+            // the primary key makes each matching row a different property
+            s.append("\ngroup by id having count(*)=").append(count);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Returns sql that reads the id, name and value of all the indexed
+     * properties of the entities selected by
+     * {@link #readEntityIdsByProperties(int, boolean)}. Parameters are cls, cls
+     * then the name and value of each property.
+     * 
+     * @param count
+     *            number of properties
+     * @param all
+     *            true if the entities must have all of the properties
+     * @return select sql
+     */
+    default String readEntityPropertiesByProperties(int count, boolean all) {
+        return "select id, name, \"value\" from entity_property\n" //
+                + "where cls=? and id in (\n" //
+                + readEntityIdsByProperties(count, all) //
+                + ")\n" //
+                + "order by id";
+    }
+
+    default String readAllEntityIds() {
+        return "select id from entity where cls=?";
+    }
+
+    /**
+     * Returns sql that reads a page of (id, bytes, range_value) of the entities
+     * with a property in a range ordered by range_value then id. Parameters are
+     * cls, name, value, range_name, range start, range end, then if
+     * {@code after} the range_value, range_value and id of the last row of the
+     * previous page, then the maximum number of rows. Starting from the
+     * previous row in the predicate (rather than skipping rows) keeps each page
+     * to a seek on idx_ent_prop__range_int.
+     * 
+     * @param startInclusive
+     *            true if the range start is inclusive
+     * @param endInclusive
+     *            true if the range end is inclusive
+     * @param after
+     *            true if the page follows a previous page
+     * @return select sql
+     */
+    default String readEntitiesByPropertyAndRangePage(boolean startInclusive, boolean endInclusive,
+            boolean after) {
+        return "select r.id, e.bytes, r.range_value from entity_prop_range_int r\n" //
+                + "join entity e on e.cls=r.cls and e.id=r.id\n" //
+                + "where r.cls=? and r.name=? and r.\"value\"=?\n" //
+                + "and r.range_name=?\n" //
+                + "and r.range_value" + (startInclusive ? ">=" : ">") + "?\n"//
+                + "and r.range_value" + (endInclusive ? "<=" : "<") + "?\n"//
+                + (after ? "and r.range_value>=? and (r.range_value>? or r.id>?)\n" : "") //
+                // the leading columns are fixed by the predicate but are
+                // needed for H2 to read in index order and stop at the limit
+                + "order by r.cls, r.name, r.\"value\", r.range_name, r.range_value, r.id\n" //
+                + "limit ?";
+    }
+
+    default String readEntityRangeValue() {
+        return "select range_value from entity_prop_range_int\n" //
+                + "where cls=? and id=? and name=? and \"value\"=? and range_name=?";
+    }
+
+    default String countEntitiesByState() {
+        return "select state, count(*) from entity where cls=? group by state order by state";
+    }
+
+    default String countEntitiesByPropertyValue() {
+        return "select \"value\", count(*) from entity_property where cls=? and name=? group by \"value\" order by \"value\"";
+    }
+
+    default String readEntityRangeStats() {
+        return "select count(*), min(range_value), max(range_value), sum(range_value) from entity_prop_range_int\n" //
+                + "where cls=? and name=? and \"value\"=? and range_name=?";
+    }
+
     default String deleteEntityRangeProperties() {
         return  "delete from entity_prop_range_int where cls=? and id=?";
     }
 
+    default String readEntityRangeProperties() {
+        return "select name, \"value\", range_name, range_value from entity_prop_range_int where cls=? and id=?";
+    }
+
+    default String deleteEntityRangeProperty() {
+        return "delete from entity_prop_range_int where cls=? and id=? and name=? and \"value\"=?";
+    }
+
+    default String updateEntityRangeProperty() {
+        return "update entity_prop_range_int set range_name=?, range_value=? where cls=? and id=? and name=? and \"value\"=?";
+    }
+
     default String insertEntityRangeProperty() {
         return "insert into entity_prop_range_int(cls, id, name, \"value\", range_name, range_value) values(?,?,?,?,?,?)";
     }
@@ -29,6 +29,8 @@ create table entity (
   primary key(cls, id)
 );
 
+create index idx_entity_state on entity(cls, state);
+
 create table entity_property (
   cls varchar(512) not null, 
   id varchar(255) not null,
@@ -49,7 +51,7 @@ create table entity_prop_range_int (
   foreign key (cls, id) references entity (cls, id)
 );
 
-create index idx_ent_prop__range_int on entity_prop_range_int(cls, name, "value", range_name, range_value);
+create index idx_ent_prop__range_int on entity_prop_range_int(cls, name, "value", range_name, range_value, id);
 
 create index idx_ent_prop on entity_property(cls, name, "value");
    
@@ -59,10 +61,22 @@ create table signal_store (
   id varchar(255) not null,
   event_cls varchar(512) not null,
   event_bytes blob not null,
+  -- 0 for rows holding only the signal received by the entity (written by
+  -- older versions), 1 for rows holding every event applied to the entity
+  format_version smallint default 0 not null,
   primary key (seq_num)
 ); 
    
  create index idx_sig_store on signal_store(cls, id, seq_num);
+
+create table entity_snapshot (
+  cls varchar(512) not null,
+  id varchar(255) not null,
+  seq_num bigint not null,
+  state varchar(255) not null,
+  bytes blob not null,
+  primary key (cls, id)
+);
  
  
  
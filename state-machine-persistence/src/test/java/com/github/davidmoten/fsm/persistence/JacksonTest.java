@@ -1,6 +1,10 @@
 package com.github.davidmoten.fsm.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 
 import org.junit.Test;
 
@@ -25,4 +29,59 @@ public final class JacksonTest {
         assertEquals(123, e.b);
     }
 
+    @Test
+    public void testSerializeStreamingDoesNotCloseStreams() {
+        ClosingOutputStream out = new ClosingOutputStream();
+        Serializer.JSON.serialize(new Example("boo", 123), out);
+        assertFalse(out.closed);
+        ClosingInputStream in = new ClosingInputStream(out.toByteArray());
+        Example e = Serializer.JSON.deserialize(Example.class, in);
+        assertFalse(in.closed);
+        assertEquals("boo", e.a);
+        assertEquals(123, e.b);
+    }
+
+    @Test
+    public void testStreamingDefaultMethodsUseByteArrayMethods() {
+        Serializer s = new Serializer() {
+
+            @Override
+            public byte[] serialize(Object t) {
+                return Serializer.JSON.serialize(t);
+            }
+
+            @Override
+            public <T> T deserialize(Class<T> cls, byte[] bytes) {
+                return Serializer.JSON.deserialize(cls, bytes);
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        s.serialize(new Example("boo", 123), out);
+        Example e = s.deserialize(Example.class, new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("boo", e.a);
+        assertEquals(123, e.b);
+    }
+
+    private static final class ClosingOutputStream extends ByteArrayOutputStream {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static final class ClosingInputStream extends ByteArrayInputStream {
+        boolean closed;
+
+        ClosingInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
 }
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
 
@@ -71,6 +72,36 @@ public class PersistenceAccountTest {
         Assert.assertEquals(BigDecimal.valueOf(12), p.getWithState(Account.class, "2").get().entity.balance);
     }
 
+    @Test
+    public void testPropertyIndexFollowsChanges() throws IOException {
+        File directory = File.createTempFile("db-", "", new File("target"));
+        directory.mkdir();
+        Callable<Connection> connectionFactory = () -> DriverManager
+                .getConnection("jdbc:h2:" + directory.getAbsolutePath());
+        Persistence p = Persistence //
+                .connectionFactory(connectionFactory) //
+                .executor(new TestExecutor()) //
+                .errorHandlerPrintStackTraceAndThrow() //
+                .behaviourFactory(cls -> behaviour) //
+                .propertiesFactory(Account.class, //
+                        a -> Property.list("type", "savings", "balance", a.balance.toString())) //
+                .rangeMetricFactory(Account.class, //
+                        a -> Optional.of(IntProperty.create("cents", a.balance.intValue() * 100))) //
+                .build();
+        p.create();
+        p.initialize();
+        p.signal(Account.class, "1", new Create());
+        Assert.assertEquals(1, p.get(Account.class, "balance", "0").size());
+        p.signal(Account.class, "1", new Deposit(BigDecimal.valueOf(100)));
+        Assert.assertEquals(0, p.get(Account.class, "balance", "0").size());
+        Assert.assertEquals(1, p.get(Account.class, "balance", "100").size());
+        Assert.assertEquals(1, p.get(Account.class, "type", "savings").size());
+        Assert.assertEquals(1, p.get(Account.class, "type", "savings", "cents", 10000, true, 10000, true, 10, //
+                Optional.empty()).size());
+        Assert.assertEquals(0, p.get(Account.class, "type", "savings", "cents", 0, true, 0, true, 10, //
+                Optional.empty()).size());
+    }
+
     private static final AccountBehaviour<String> behaviour = new AccountBehaviourBase<String>() {
 
         @Override
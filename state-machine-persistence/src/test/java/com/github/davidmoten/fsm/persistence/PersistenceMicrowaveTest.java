@@ -8,13 +8,22 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -27,6 +36,7 @@ import com.github.davidmoten.fsm.example.microwave.event.ButtonPressed;
 import com.github.davidmoten.fsm.example.microwave.event.DoorClosed;
 import com.github.davidmoten.fsm.example.microwave.event.DoorOpened;
 import com.github.davidmoten.fsm.example.microwave.event.TimerTimesOut;
+import com.github.davidmoten.fsm.persistence.Persistence.EntityAndState;
 import com.github.davidmoten.fsm.persistence.Persistence.EntityWithId;
 import com.github.davidmoten.fsm.runtime.Create;
 import com.github.davidmoten.fsm.runtime.EntityBehaviour;
@@ -36,6 +46,8 @@ import com.github.davidmoten.fsm.runtime.Signaller;
 import com.github.davidmoten.fsm.runtime.TestExecutor;
 import com.github.davidmoten.guavamini.Lists;
 
+import io.reactivex.rxjava3.core.Flowable;
+
 public class PersistenceMicrowaveTest {
 
     @Test
@@ -58,12 +70,456 @@ public class PersistenceMicrowaveTest {
 
     @Test
     public void test() throws IOException {
+        checkMicrowave(b -> b);
+    }
+
+    @Test
+    public void testConnectionPool() throws IOException {
+        checkMicrowave(b -> b.connectionPoolSize(2).statementCacheSize(8));
+    }
+
+    @Test
+    public void testConnectionPoolResetsAndKeepsInUseStatements() throws Exception {
+        ConnectionPool pool = new ConnectionPool(createConnectionFactory(), 1, 2, 100);
+        try (Connection con = pool.acquire()) {
+            con.createStatement().execute("create table pool_test(x int)");
+            String insert = "insert into pool_test values(?)";
+            PreparedStatement ps = con.prepareStatement(insert);
+            int fetchSize = ps.getFetchSize();
+            // a batch abandoned (say by an exception) before it was executed
+            ps.setInt(1, 1);
+            ps.addBatch();
+            ps.setFetchSize(fetchSize + 100);
+            ps.close();
+            try (PreparedStatement ps2 = con.prepareStatement(insert)) {
+                assertEquals(fetchSize, ps2.getFetchSize());
+                ps2.setInt(1, 2);
+                ps2.addBatch();
+                assertEquals(1, ps2.executeBatch().length);
+            }
+            // a statement evicted from the cache while in use stays open
+            PreparedStatement select = con.prepareStatement("select x from pool_test");
+            con.prepareStatement("select 1").close();
+            con.prepareStatement("select 2").close();
+            try (ResultSet rs = select.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(2, rs.getInt(1));
+                assertFalse(rs.next());
+            }
+            select.close();
+            assertTrue(select.isClosed());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConnectionPoolAcquireTimesOut() throws Exception {
+        ConnectionPool pool = new ConnectionPool(createConnectionFactory(), 1, 2, 100);
+        try (Connection con = pool.acquire()) {
+            pool.acquire();
+        }
+    }
+
+    @Test
+    public void testOptimizeRoundTrips() throws IOException {
+        Persistence p = checkMicrowave(b -> b //
+                .optimizeRoundTrips(true) //
+                .propertiesFactory(Microwave.class, //
+                        m -> Lists.newArrayList(Property.create("colour", "white"), Property.create("make", "acme"))) //
+                .rangeMetricFactory(Microwave.class, m -> Optional.of(IntProperty.create("range", 123))));
+        assertEquals(1, p.get(Microwave.class, "make", "acme").size());
+        assertEquals(1, p.get(Microwave.class, "colour", "white", "range", 80, true, 140, false, 100, Optional.empty())
+                .size());
+    }
+
+    @Test
+    public void testEntityCache() throws IOException {
+        Persistence p = checkMicrowave(b -> b.entityCacheSize(10));
+        assertTrue(p.entityCacheHits() > 0);
+        assertTrue(p.entityCacheMisses() > 0);
+    }
+
+    @Test
+    public void testReplayFromLatestSnapshot() throws Exception {
+        Callable<Connection> connectionFactory = createConnectionFactory();
+        Persistence p = checkMicrowave(b -> b.connectionFactory(connectionFactory).snapshotInterval(3));
+        try (Connection con = connectionFactory.call()) {
+            // only the events after the snapshot should be needed
+            assertTrue(con.prepareStatement(
+                    "delete from signal_store where seq_num <= (select seq_num from entity_snapshot where id='1')")
+                    .executeUpdate() > 0);
+            con.prepareStatement("update entity set bytes=null").executeUpdate();
+        }
+        p.replay(Microwave.class, "1");
+        check(p, MicrowaveStateMachine.State.COOKING_COMPLETE);
+    }
+
+    @Test
+    public void testReplayLegacySignalStoreRows() throws Exception {
+        Callable<Connection> connectionFactory = createConnectionFactory();
+        Persistence p = checkMicrowave(b -> b.connectionFactory(connectionFactory));
+        p.signal(Signal.create(Microwave.class, "2", new DoorOpened()));
+        try (Connection con = connectionFactory.call()) {
+            // rows written before Create and signals to self were stored
+            assertEquals(2, con.prepareStatement("delete from signal_store where event_cls='" + Create.class.getName()
+                    + "'").executeUpdate());
+            con.prepareStatement("update signal_store set format_version=0").executeUpdate();
+            con.prepareStatement("update entity set bytes=null").executeUpdate();
+        }
+        p.replay(Microwave.class, "1");
+        check(p, MicrowaveStateMachine.State.COOKING_COMPLETE);
+        assertEquals(2, p.rebuildAll(Microwave.class, 2, 1, x -> {
+        }).entities);
+        assertEquals(Optional.of(MicrowaveStateMachine.State.COOKING_COMPLETE), state(p, "1"));
+        assertEquals(Optional.of(MicrowaveStateMachine.State.DOOR_OPEN), state(p, "2"));
+    }
+
+    @Test
+    public void testReplayLegacySignalStoreRowsAppliesSignalsToSelf() throws Exception {
+        // the door closes itself straight after it is opened
+        MicrowaveBehaviour<String> behaviour = new MicrowaveBehaviourBase<String>() {
+
+            @Override
+            public MicrowaveStateMachine<String> create(String id) {
+                return MicrowaveStateMachine.create(Microwave.fromId(id), id, this,
+                        MicrowaveStateMachine.State.READY_TO_COOK);
+            }
+
+            @Override
+            public Microwave onEntry_DoorOpen(Signaller<Microwave, String> signaller, Microwave microwave,
+                    String id, DoorOpened event, boolean replaying) {
+                signaller.signalToSelf(new DoorClosed());
+                return microwave;
+            }
+        };
+        Callable<Connection> connectionFactory = createConnectionFactory();
+        Persistence p = createPersistence() //
+                .connectionFactory(connectionFactory) //
+                .behaviourFactory(cls -> behaviour) //
+                .executor(new TestExecutor()) //
+                .build();
+        p.create();
+        p.initialize();
+        signal(p, new DoorOpened());
+        p.signal(Signal.create(Microwave.class, "2", new DoorOpened()));
+        assertEquals(Optional.of(MicrowaveStateMachine.State.READY_TO_COOK), state(p, "1"));
+        try (Connection con = connectionFactory.call()) {
+            // legacy rows hold only the signals received
+            assertEquals(4, con.prepareStatement("delete from signal_store where event_cls in ('"
+                    + Create.class.getName() + "', '" + DoorClosed.class.getName() + "')").executeUpdate());
+            con.prepareStatement("update signal_store set format_version=0").executeUpdate();
+            con.prepareStatement("update entity set bytes=null").executeUpdate();
+        }
+        p.replay(Microwave.class, "1");
+        assertEquals(Optional.of(MicrowaveStateMachine.State.READY_TO_COOK), state(p, "1"));
+        assertEquals(2, p.rebuildAll(Microwave.class, 2, 1, x -> {
+        }).entities);
+        assertEquals(Optional.of(MicrowaveStateMachine.State.READY_TO_COOK), state(p, "1"));
+        assertEquals(Optional.of(MicrowaveStateMachine.State.READY_TO_COOK), state(p, "2"));
+    }
+
+    @Test
+    public void testProcessReplaysEntityWithoutBytes() throws Exception {
+        Callable<Connection> connectionFactory = createConnectionFactory();
+        Persistence p = checkMicrowave(b -> b.connectionFactory(connectionFactory));
+        try (Connection con = connectionFactory.call()) {
+            con.prepareStatement("update entity set bytes=null").executeUpdate();
+        }
+        signal(p, new DoorOpened());
+        check(p, MicrowaveStateMachine.State.DOOR_OPEN);
+    }
+
+    @Test
+    public void testRebuildAll() throws Exception {
+        Callable<Connection> connectionFactory = createConnectionFactory();
+        Persistence p = checkMicrowave(b -> b.connectionFactory(connectionFactory).snapshotInterval(3));
+        p.signal(Signal.create(Microwave.class, "2", new DoorOpened()));
+        try (Connection con = connectionFactory.call()) {
+            con.prepareStatement("update entity set bytes=null").executeUpdate();
+        }
+        List<RebuildProgress> progress = new ArrayList<>();
+        RebuildProgress last = p.rebuildAll(Microwave.class, 2, 1, progress::add);
+        assertEquals(2, last.entities);
+        assertEquals(Optional.of(MicrowaveStateMachine.State.COOKING_COMPLETE), state(p, "1"));
+        assertEquals(Optional.of(MicrowaveStateMachine.State.DOOR_OPEN), state(p, "2"));
+        assertEquals(last, progress.get(progress.size() - 1));
+        try (Connection con = connectionFactory.call();
+                ResultSet rs = con.prepareStatement("select count(*) from entity_snapshot").executeQuery()) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRebuildAllNeedsTwoPooledConnections() throws Exception {
+        Persistence p = checkMicrowave(b -> b.connectionPoolSize(1));
+        p.rebuildAll(Microwave.class);
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        Persistence p = checkMicrowave(b -> b.propertiesFactory(Microwave.class,
+                m -> Lists.newArrayList(Property.create("make", "acme"))));
+        for (int i = 2; i <= 5; i++) {
+            p.signal(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+        }
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), p.stream(Microwave.class, 2, 1) //
+                .map(x -> x.id).sorted().toList().blockingGet());
+        // deserialized in parallel but still in cursor order
+        assertEquals(p.stream(Microwave.class).map(x -> x.id).toList().blockingGet(),
+                p.stream(Microwave.class, 2, 4).map(x -> x.id).toList().blockingGet());
+        assertEquals(5, (long) p.stream(Microwave.class, "make", "acme").count().blockingGet());
+        assertEquals(0, (long) p.stream(Microwave.class, "make", "other").count().blockingGet());
+        // cancelling closes the cursor early
+        assertEquals(1, (long) p.stream(Microwave.class, 1, 1).take(1).count().blockingGet());
+    }
+
+    @Test
+    public void testGetAndOr() throws Exception {
+        Persistence p = checkMicrowave(b -> b.propertiesFactory(Microwave.class,
+                m -> Lists.newArrayList(Property.create("parity", m.serialNumber() % 2 == 0 ? "even" : "odd"),
+                        Property.create("size", m.serialNumber() <= 3 ? "small" : "large"))));
+        for (int i = 2; i <= 5; i++) {
+            p.signal(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+        }
+        Property odd = Property.create("parity", "odd");
+        Property even = Property.create("parity", "even");
+        Property small = Property.create("size", "small");
+        Property large = Property.create("size", "large");
+        assertEquals(Arrays.asList("1", "3"), ids(p.getAnd(Microwave.class, Arrays.asList(odd, small))));
+        assertEquals(Arrays.asList("1", "3"), ids(p.getAnd(Microwave.class, Arrays.asList(odd, small, odd))));
+        assertEquals(Arrays.asList(), ids(p.getAnd(Microwave.class, Arrays.asList(odd, even))));
+        assertEquals(Arrays.asList("2", "4", "5"), ids(p.getOr(Microwave.class, Arrays.asList(even, large))));
+        assertEquals(Arrays.asList(), ids(p.getOr(Microwave.class, Arrays.asList())));
+        // ids and indexed properties only
+        assertEquals(new HashSet<>(Arrays.asList("1", "3")), p.getIdsAnd(Microwave.class, Arrays.asList(odd, small)));
+        assertEquals(new HashSet<>(Arrays.asList("2", "4", "5")),
+                p.getIdsOr(Microwave.class, Arrays.asList(even, large)));
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), sorted(p.getIds(Microwave.class)));
+        Map<String, Set<Property>> props = p.getPropertiesAnd(Microwave.class, Arrays.asList(odd, small));
+        assertEquals(new HashSet<>(Arrays.asList("1", "3")), props.keySet());
+        assertEquals(new HashSet<>(Arrays.asList(odd, small)), props.get("3"));
+        assertEquals(new HashSet<>(Arrays.asList(even, small)),
+                p.getPropertiesOr(Microwave.class, Arrays.asList(even)).get("2"));
+    }
+
+    @Test
+    public void testGetAll() throws Exception {
+        // in memory because commits to a file are slow for 300 entities
+        Persistence p = checkMicrowave(b -> b.entityCacheSize(10) //
+                .connectionFactory(() -> DriverManager.getConnection("jdbc:h2:mem:getAll;DB_CLOSE_DELAY=-1")));
+        List<Signal<?, String>> signals = new ArrayList<>();
+        for (int i = 2; i <= 300; i++) {
+            signals.add(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+        }
+        p.signalAll(signals);
+        // more ids than fit in one query, with a duplicate and a missing id
+        List<String> ids = new ArrayList<>();
+        for (int i = 300; i >= 1; i--) {
+            ids.add(String.valueOf(i));
+        }
+        ids.add("none");
+        ids.add("1");
+        Map<String, Microwave> map = p.getAll(Microwave.class, ids);
+        assertEquals(ids.subList(0, 300), new ArrayList<>(map.keySet()));
+        assertEquals(300, map.get("300").serialNumber());
+        assertEquals(1, map.get("1").serialNumber());
+        assertTrue(p.getAll(Microwave.class, Arrays.asList("none")).isEmpty());
+        assertTrue(p.getAll(Microwave.class, Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testEntitiesDefaultMethods() throws Exception {
+        Persistence p = checkMicrowave(b -> b //
+                .propertiesFactory(Microwave.class, m -> Lists.newArrayList(Property.create("make", "acme"))) //
+                .rangeMetricFactory(Microwave.class,
+                        m -> Optional.of(IntProperty.create("serial", m.serialNumber()))));
+        for (int i = 2; i <= 3; i++) {
+            p.signal(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+        }
+        // an implementation of only the methods Entities started with
+        Entities e = new Entities() {
+
+            @Override
+            public <T> Optional<EntityAndState<T>> getWithState(Class<T> cls, String id) {
+                return p.getWithState(cls, id);
+            }
+
+            @Override
+            public <T> Optional<T> get(Class<T> cls, String id) {
+                return p.get(cls, id);
+            }
+
+            @Override
+            public <T> List<EntityWithId<T>> get(Class<T> cls) {
+                return p.get(cls);
+            }
+
+            @Override
+            public <T> Set<EntityWithId<T>> get(Class<T> cls, String name, String value) {
+                return p.get(cls, name, value);
+            }
+
+            @Override
+            public <T> Set<EntityWithId<T>> getOr(Class<T> cls, Iterable<Property> properties) {
+                return p.getOr(cls, properties);
+            }
+
+            @Override
+            public <T> Set<EntityWithId<T>> getAnd(Class<T> cls, Iterable<Property> properties) {
+                return p.getAnd(cls, properties);
+            }
+
+            @Override
+            public <T> List<EntityWithId<T>> get(Class<T> cls, String name, String value, String rangeName,
+                    long rangeStart, boolean startInclusive, long rangeEnd, boolean endInclusive, int limit,
+                    Optional<String> lastId) {
+                return p.get(cls, name, value, rangeName, rangeStart, startInclusive, rangeEnd, endInclusive, limit,
+                        lastId);
+            }
+        };
+        assertEquals(Arrays.asList("2", "1"),
+                new ArrayList<>(e.getAll(Microwave.class, Arrays.asList("2", "none", "1")).keySet()));
+        assertEquals(Arrays.asList("1", "2", "3"), sorted(e.getIds(Microwave.class)));
+        assertEquals(p.countByState(Microwave.class), e.countByState(Microwave.class));
+        assertEquals(3, e.getIdsOr(Microwave.class, Property.list("make", "acme")).size());
+        assertEquals(3, (long) e.stream(Microwave.class).count().blockingGet());
+        List<String> ids = new ArrayList<>();
+        Optional<String> after = Optional.empty();
+        do {
+            Page<Microwave> page = e.getPage(Microwave.class, "make", "acme", "serial", 0, true, 10, true, 2, after);
+            page.items().forEach(x -> ids.add(x.id));
+            after = page.next();
+        } while (after.isPresent());
+        assertEquals(Arrays.asList("1", "2", "3"), ids);
+    }
+
+    @Test
+    public void testAggregates() throws Exception {
+        Persistence p = checkMicrowave(b -> b //
+                .propertiesFactory(Microwave.class,
+                        m -> Lists.newArrayList(Property.create("parity", m.serialNumber() % 2 == 0 ? "even" : "odd"))) //
+                .rangeMetricFactory(Microwave.class,
+                        m -> Optional.of(IntProperty.create("serial", m.serialNumber()))));
+        for (int i = 2; i <= 5; i++) {
+            p.signal(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+        }
+        Map<String, Long> byState = new LinkedHashMap<>();
+        byState.put("COOKING_COMPLETE", 1L);
+        byState.put("DOOR_OPEN", 4L);
+        assertEquals(byState, p.countByState(Microwave.class));
+        Map<String, Long> byParity = new LinkedHashMap<>();
+        byParity.put("even", 2L);
+        byParity.put("odd", 3L);
+        assertEquals(byParity, p.countByPropertyValue(Microwave.class, "parity"));
+        assertTrue(p.countByPropertyValue(Microwave.class, "colour").isEmpty());
+        RangeStats odd = p.rangeStats(Microwave.class, "parity", "odd", "serial");
+        assertEquals(3, odd.count());
+        assertEquals(Optional.of(1L), odd.min());
+        assertEquals(Optional.of(5L), odd.max());
+        assertEquals(9, odd.sum());
+        RangeStats none = p.rangeStats(Microwave.class, "parity", "none", "serial");
+        assertEquals(0, none.count());
+        assertFalse(none.min().isPresent());
+        assertEquals(0, none.sum());
+    }
+
+    @Test
+    public void testRangeRowsDeletedWhenRangeMetricGone() throws Exception {
+        // closing the door replaces the microwave with one without a range
+        // metric
+        MicrowaveBehaviour<String> behaviour = new MicrowaveBehaviourBase<String>() {
+
+            @Override
+            public MicrowaveStateMachine<String> create(String id) {
+                return MicrowaveStateMachine.create(Microwave.fromId(id), id, this,
+                        MicrowaveStateMachine.State.READY_TO_COOK);
+            }
+
+            @Override
+            public Microwave onEntry_ReadyToCook(Signaller<Microwave, String> signaller, Microwave microwave,
+                    String id, DoorClosed event, boolean replaying) {
+                return new Microwave(microwave.serialNumber() + 100);
+            }
+        };
+        Persistence p = createPersistence() //
+                .behaviourFactory(cls -> behaviour) //
+                .propertiesFactory(Microwave.class, m -> Lists.newArrayList(Property.create("make", "acme"))) //
+                .rangeMetricFactory(Microwave.class,
+                        m -> m.serialNumber() < 100 ? Optional.of(IntProperty.create("range", 5)) : Optional.empty()) //
+                .executor(new TestExecutor()) //
+                .build();
+        p.create();
+        p.initialize();
+        signal(p, new DoorOpened());
+        assertEquals(1, p.rangeStats(Microwave.class, "make", "acme", "range").count());
+        signal(p, new DoorClosed());
+        assertEquals(0, p.rangeStats(Microwave.class, "make", "acme", "range").count());
+        assertTrue(p.getPage(Microwave.class, "make", "acme", "range", 0, true, 10, true, 10, Optional.empty())
+                .items().isEmpty());
+        // the property index is kept
+        assertEquals(1, p.get(Microwave.class, "make", "acme").size());
+    }
+
+    @Test
+    public void testRangePagesDoNotSkipRowsWithEqualRangeValues() throws Exception {
+        Persistence p = checkMicrowave(b -> b //
+                .propertiesFactory(Microwave.class, m -> Lists.newArrayList(Property.create("make", "acme"))) //
+                .rangeMetricFactory(Microwave.class,
+                        m -> Optional.of(IntProperty.create("range", m.serialNumber() % 3))));
+        for (int i = 2; i <= 7; i++) {
+            p.signal(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+        }
+        // ordered by range value then id
+        List<String> expected = Arrays.asList("3", "6", "1", "4", "7", "2", "5");
+        List<String> ids = new ArrayList<>();
+        Optional<String> after = Optional.empty();
+        int pages = 0;
+        do {
+            Page<Microwave> page = p.getPage(Microwave.class, "make", "acme", "range", 0, true, 2, true, 2, after);
+            page.items().forEach(x -> ids.add(x.id));
+            after = page.next();
+            pages++;
+        } while (after.isPresent());
+        assertEquals(expected, ids);
+        assertEquals(4, pages);
+
+        // the lastId form continues from the range value of lastId
+        List<String> ids2 = new ArrayList<>();
+        Optional<String> lastId = Optional.empty();
+        while (true) {
+            List<EntityWithId<Microwave>> list = p.get(Microwave.class, "make", "acme", "range", 0, true, 2, true,
+                    3, lastId);
+            if (list.isEmpty()) {
+                break;
+            }
+            list.forEach(x -> ids2.add(x.id));
+            lastId = Optional.of(list.get(list.size() - 1).id);
+        }
+        assertEquals(expected, ids2);
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> x = new ArrayList<>(list);
+        Collections.sort(x);
+        return x;
+    }
+
+    private static List<String> ids(Set<? extends EntityWithId<?>> set) {
+        List<String> list = new ArrayList<>();
+        for (EntityWithId<?> e : set) {
+            list.add(e.id);
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private static Persistence checkMicrowave(UnaryOperator<Persistence.Builder> options) throws IOException {
         MicrowaveBehaviour<String> behaviour = createMicrowaveBehaviour();
         Function<Class<?>, EntityBehaviour<?, String>> behaviourFactory = cls -> behaviour;
         TestExecutor executor = new TestExecutor();
-        Persistence p = createPersistence() //
+        Persistence p = options.apply(createPersistence() //
                 .behaviourFactory(behaviourFactory) //
-                .executor(executor) //
+                .executor(executor)) //
                 .build();
         p.create();
         p.initialize();
@@ -86,6 +542,144 @@ public class PersistenceMicrowaveTest {
         executor.advance(1, TimeUnit.SECONDS);
         check(p, MicrowaveStateMachine.State.COOKING_COMPLETE);
         Assert.assertNotNull(p.get(Microwave.class, "1").get());
+        return p;
+    }
+
+    @Test
+    public void testSignalAll() throws IOException {
+        MicrowaveBehaviour<String> behaviour = createMicrowaveBehaviour();
+        Function<Class<?>, EntityBehaviour<?, String>> behaviourFactory = cls -> behaviour;
+        TestExecutor executor = new TestExecutor();
+        Persistence p = createPersistence() //
+                .behaviourFactory(behaviourFactory) //
+                .executor(executor) //
+                .build();
+        p.create();
+        p.initialize();
+        p.signalAll(Arrays.asList( //
+                Signal.create(Microwave.class, "1", new DoorOpened()), //
+                Signal.create(Microwave.class, "1", new DoorClosed()), //
+                Signal.create(Microwave.class, "1", new ButtonPressed())));
+        check(p, MicrowaveStateMachine.State.COOKING);
+        p.signalAll(Flowable.just(Signal.create(Microwave.class, "1", new DoorOpened())));
+        check(p, MicrowaveStateMachine.State.COOKING_INTERRUPTED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSignalAllRejectsDelayedSignals() throws IOException {
+        Persistence p = createPersistence() //
+                .behaviourFactory(cls -> createMicrowaveBehaviour()) //
+                .executor(new TestExecutor()) //
+                .build();
+        p.create();
+        p.signalAll(Arrays.asList( //
+                Signal.create(Microwave.class, "1", new DoorOpened()), //
+                Signal.create(Microwave.class, "1", new DoorClosed(), Optional.of(1000L))));
+    }
+
+    @Test
+    public void testGroupCommit() throws IOException {
+        MicrowaveBehaviour<String> behaviour = createMicrowaveBehaviour();
+        Function<Class<?>, EntityBehaviour<?, String>> behaviourFactory = cls -> behaviour;
+        TestExecutor executor = new TestExecutor();
+        Persistence p = createPersistence() //
+                .behaviourFactory(behaviourFactory) //
+                .executor(executor) //
+                .groupCommit(10, 100, TimeUnit.MILLISECONDS) //
+                .build();
+        p.create();
+        p.initialize();
+        p.signalAll(Arrays.asList( //
+                Signal.create(Microwave.class, "1", new DoorOpened()), //
+                Signal.create(Microwave.class, "1", new DoorClosed()), //
+                Signal.create(Microwave.class, "2", new DoorOpened())));
+        // waiting for the batch to fill
+        assertFalse(p.get(Microwave.class, "1").isPresent());
+        executor.advance(100, TimeUnit.MILLISECONDS);
+        check(p, MicrowaveStateMachine.State.READY_TO_COOK);
+        assertEquals(MicrowaveStateMachine.State.DOOR_OPEN, p.getWithState(Microwave.class, "2").get().state);
+    }
+
+    @Test
+    public void testGroupCommitFallsBackToSeparateTransactionsOnFailure() throws IOException {
+        MicrowaveBehaviour<String> behaviour = createMicrowaveBehaviourThatThrowsForMicrowave1(2);
+        Function<Class<?>, EntityBehaviour<?, String>> behaviourFactory = cls -> behaviour;
+        TestExecutor executor = new TestExecutor();
+        List<Throwable> list = new ArrayList<>();
+        long retryIntervalMs = 5000;
+        Persistence p = createPersistence() //
+                .behaviourFactory(behaviourFactory) //
+                .executor(executor) //
+                .errorHandler(t -> list.add(t)) //
+                .retryInterval(retryIntervalMs, TimeUnit.MILLISECONDS) //
+                .groupCommit(10, 0, TimeUnit.MILLISECONDS) //
+                .build();
+        p.create();
+        p.initialize();
+        p.signalAll(Arrays.asList( //
+                Signal.create(Microwave.class, "1", new ButtonPressed()), //
+                Signal.create(Microwave.class, "2", new ButtonPressed())));
+        // the batch fails then microwave 1 fails on its own but microwave 2
+        // is still processed
+        assertEquals(1, list.size());
+        assertFalse(p.get(Microwave.class, "1").isPresent());
+        assertEquals(MicrowaveStateMachine.State.COOKING, p.getWithState(Microwave.class, "2").get().state);
+        executor.advance(retryIntervalMs, TimeUnit.MILLISECONDS);
+        check(p, MicrowaveStateMachine.State.COOKING);
+    }
+
+    @Test
+    public void testLaneKeepsItsConnectionWithoutPool() throws Exception {
+        Callable<Connection> connectionFactory = createConnectionFactory();
+        AtomicInteger connections = new AtomicInteger();
+        Persistence p = createPersistence() //
+                .connectionFactory(() -> {
+                    connections.incrementAndGet();
+                    return connectionFactory.call();
+                }) //
+                .behaviourFactory(cls -> createMicrowaveBehaviour()) //
+                .executor(new TestExecutor()) //
+                .build();
+        p.create();
+        signal(p, new DoorOpened());
+        int count = connections.get();
+        signal(p, new DoorClosed());
+        signal(p, new ButtonPressed());
+        check(p, MicrowaveStateMachine.State.COOKING);
+        // one connection per signal to insert it, plus one for the check,
+        // processing reuses the lane's connection
+        assertEquals(count + 3, connections.get());
+    }
+
+    @Test
+    public void testLanes() throws IOException, InterruptedException {
+        MicrowaveBehaviour<String> behaviour = createMicrowaveBehaviour();
+        Function<Class<?>, EntityBehaviour<?, String>> behaviourFactory = cls -> behaviour;
+        Persistence p = createPersistence() //
+                .behaviourFactory(behaviourFactory) //
+                .lanes(4) //
+                .connectionPoolSize(4) //
+                .build();
+        p.create();
+        p.initialize();
+        int n = 20;
+        List<Signal<?, String>> signals = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            // DoorOpened then DoorClosed leaves each microwave READY_TO_COOK
+            // only if the signals to it are processed in order
+            signals.add(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+            signals.add(Signal.create(Microwave.class, String.valueOf(i), new DoorClosed()));
+        }
+        p.signalAll(signals);
+        long finish = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        for (int i = 0; i < n; i++) {
+            Optional<MicrowaveStateMachine.State> state;
+            while ((state = state(p, String.valueOf(i))).map(x -> x != MicrowaveStateMachine.State.READY_TO_COOK)
+                    .orElse(true) && System.currentTimeMillis() < finish) {
+                Thread.sleep(10);
+            }
+            assertEquals(Optional.of(MicrowaveStateMachine.State.READY_TO_COOK), state);
+        }
     }
 
     @Test
@@ -163,6 +757,12 @@ public class PersistenceMicrowaveTest {
                     false, 100, Optional.of("1"));
             assertEquals(0, list.size());
         }
+        {
+            // paging doesn't start again when lastId is not indexed
+            List<EntityWithId<Microwave>> list = p.get(Microwave.class, "colour", "white", "range", 70, true, 160,
+                    false, 100, Optional.of("none"));
+            assertEquals(0, list.size());
+        }
     }
 
     private MicrowaveBehaviour<String> createMicrowaveBehaviourThatThrows() {
@@ -190,14 +790,38 @@ public class PersistenceMicrowaveTest {
         };
     }
 
-    private static Persistence.Builder createPersistence() throws IOException {
+    private MicrowaveBehaviour<String> createMicrowaveBehaviourThatThrowsForMicrowave1(int times) {
+        return new MicrowaveBehaviourBase<String>() {
+
+            int count;
+
+            @Override
+            public MicrowaveStateMachine<String> create(String id) {
+                return MicrowaveStateMachine.create(Microwave.fromId(id), id, this,
+                        MicrowaveStateMachine.State.READY_TO_COOK);
+            }
+
+            @Override
+            public Microwave onEntry_Cooking(Signaller<Microwave, String> signaller, Microwave microwave, String id,
+                    ButtonPressed event, boolean replaying) {
+                if (id.equals("1") && count++ < times) {
+                    throw new RuntimeException("boo");
+                }
+                return microwave;
+            }
+
+        };
+    }
+
+    private static Callable<Connection> createConnectionFactory() throws IOException {
         File directory = File.createTempFile("db-", "", new File("target"));
         directory.mkdir();
-        Callable<Connection> connectionFactory = () -> DriverManager
-                .getConnection("jdbc:h2:" + directory.getAbsolutePath());
+        return () -> DriverManager.getConnection("jdbc:h2:" + directory.getAbsolutePath());
+    }
 
+    private static Persistence.Builder createPersistence() throws IOException {
         return Persistence //
-                .connectionFactory(connectionFactory) //
+                .connectionFactory(createConnectionFactory()) //
                 .errorHandlerPrintStackTraceAndThrow() //
                 .entitySerializer(Serializer.JSON) //
                 .eventSerializer(Serializer.JSON);
@@ -208,6 +832,10 @@ public class PersistenceMicrowaveTest {
         p.signal(Signal.create(Microwave.class, "1", event));
     }
 
+    private static Optional<MicrowaveStateMachine.State> state(Persistence p, String id) {
+        return p.getWithState(Microwave.class, id).map(x -> (MicrowaveStateMachine.State) x.state);
+    }
+
     private static void check(Persistence p, MicrowaveStateMachine.State state) {
         assertEquals(state, p.getWithState(Microwave.class, "1").get().state);
     }
@@ -0,0 +1,97 @@
+package com.github.davidmoten.fsm.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public final class SerializerDeflateTest {
+
+    public static final class Example {
+        public final String name;
+        public final String description;
+        public final int quantity;
+
+        public Example(String name, String description, int quantity) {
+            this.name = name;
+            this.description = description;
+            this.quantity = quantity;
+        }
+    }
+
+    private static List<Example> samples(int n) {
+        List<Example> list = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            list.add(new Example("product-" + i, "a description of product number " + i, i));
+        }
+        return list;
+    }
+
+    @Test
+    public void testSmallPayloadStoredUncompressed() {
+        Serializer s = SerializerDeflate.wrap(Serializer.JSON).minSize(1000).build();
+        Example e = new Example("a", "b", 1);
+        byte[] bytes = s.serialize(e);
+        assertArrayEquals(Serializer.JSON.serialize(e), bytes);
+        assertEquals("b", s.deserialize(Example.class, bytes).description);
+    }
+
+    @Test
+    public void testCompressWithoutDictionary() {
+        Serializer s = SerializerDeflate.wrap(Serializer.JSON).minSize(0).build();
+        Example e = new Example("abcabcabcabcabcabcabcabcabcabc", "abcabcabcabcabcabcabcabcabcabc", 1);
+        byte[] bytes = s.serialize(e);
+        assertEquals(SerializerDeflate.COMPRESSED, bytes[0]);
+        assertTrue(bytes.length < Serializer.JSON.serialize(e).length);
+        Example e2 = s.deserialize(Example.class, bytes);
+        assertEquals(e.name, e2.name);
+        assertEquals(e.description, e2.description);
+    }
+
+    @Test
+    public void testDictionaryImprovesCompressionAndOldRowsStillRead() {
+        Serializer plain = SerializerDeflate.wrap(Serializer.JSON).minSize(0).build();
+        Serializer trained = SerializerDeflate.wrap(Serializer.JSON) //
+                .minSize(0) //
+                .train(Example.class, samples(100)) //
+                .build();
+        Example e = new Example("product-1234", "a description of product number 1234", 1234);
+        byte[] json = Serializer.JSON.serialize(e);
+        byte[] bytes = trained.serialize(e);
+        assertEquals(SerializerDeflate.COMPRESSED, bytes[0]);
+        assertTrue(bytes.length < plain.serialize(e).length);
+        assertTrue(bytes.length < json.length / 2);
+        assertEquals(e.description, trained.deserialize(Example.class, bytes).description);
+        assertEquals(e.description,
+                trained.deserialize(Example.class, new ByteArrayInputStream(bytes)).description);
+        // rows written before compression was enabled
+        assertEquals(e.description, trained.deserialize(Example.class, json).description);
+        // rows compressed without a dictionary
+        assertEquals(e.description, trained.deserialize(Example.class, plain.serialize(e)).description);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnregisteredDictionaryFails() {
+        Serializer trained = SerializerDeflate.wrap(Serializer.JSON).minSize(0).train(Example.class, samples(10))
+                .build();
+        Serializer plain = SerializerDeflate.wrap(Serializer.JSON).build();
+        plain.deserialize(Example.class, trained.serialize(samples(1).get(0)));
+    }
+
+    @Test
+    public void testTrainDictionaryRespectsMaxSize() {
+        List<byte[]> list = new ArrayList<>();
+        for (Example e : samples(1000)) {
+            list.add(Serializer.JSON.serialize(e));
+        }
+        byte[] dictionary = SerializerDeflate.trainDictionary(list, 500);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 500);
+    }
+
+}
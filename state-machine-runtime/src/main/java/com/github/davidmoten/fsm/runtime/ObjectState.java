@@ -8,4 +8,20 @@ public interface ObjectState<T> {
 
 	EntityState<T> state();
 
+	public static <T> ObjectState<T> create(T object, EntityState<T> state) {
+		Optional<T> o = Optional.ofNullable(object);
+		return new ObjectState<T>() {
+
+			@Override
+			public Optional<T> get() {
+				return o;
+			}
+
+			@Override
+			public EntityState<T> state() {
+				return state;
+			}
+		};
+	}
+
 }
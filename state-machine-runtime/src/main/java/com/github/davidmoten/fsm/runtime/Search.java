@@ -1,5 +1,8 @@
 package com.github.davidmoten.fsm.runtime;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
 @FunctionalInterface
@@ -7,4 +10,30 @@ public interface Search<Id> {
 
     <T> Optional<T> search(Class<T> cls, Id id);
 
+    /**
+     * Returns the entities of class {@code cls} with the given ids that are
+     * present, keyed by id in the order of {@code ids}. The default
+     * implementation calls {@link #search(Class, Object)} for each id;
+     * implementations backed by a store should override it to look up all the
+     * ids at once.
+     * 
+     * @param cls
+     *            entity class
+     * @param ids
+     *            entity ids
+     * @param <T>
+     *            entity type
+     * @return present entities by id
+     */
+    default <T> Map<Id, T> getAll(Class<T> cls, Collection<Id> ids) {
+        Map<Id, T> map = new LinkedHashMap<>();
+        for (Id id : ids) {
+            Optional<T> t = search(cls, id);
+            if (t.isPresent()) {
+                map.put(id, t.get());
+            }
+        }
+        return map;
+    }
+
 }
@@ -23,6 +23,11 @@ public final class ClassId<T, Id> {
 
     @Override
     public int hashCode() {
+        return hash(cls, id);
+    }
+
+    // allows hashing without creating a ClassId
+    static int hash(Class<?> cls, Object id) {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((cls == null) ? 0 : cls.getCanonicalName().hashCode());
@@ -0,0 +1,211 @@
+package com.github.davidmoten.fsm.runtime.rx;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.github.davidmoten.fsm.runtime.Clock;
+import com.github.davidmoten.fsm.runtime.EntityStateMachine;
+
+/**
+ * Bounded cache of state machines used by {@link Processor} when a
+ * {@link StateStore} is set. Entries are evicted in least recently used order
+ * when the maximum count or weight is exceeded and when they have been idle
+ * for longer than the idle timeout. Evicted entries are written to the store.
+ *
+ * <p>
+ * The cache is split into segments (each guarded by its own lock) and the
+ * bounds are divided between the segments. Small bounds use fewer segments so
+ * that hash skew doesn't evict entries well before the cache is full.
+ */
+final class EntityCache<Id> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    // a segment is only added if each segment can hold at least this many
+    private static final long MIN_ENTRIES_PER_SEGMENT = 64;
+
+    private final Segment[] segments;
+    private final StateStore<Id> store;
+    private final Clock clock;
+    private final long maxIdleMs; // 0 means no idle timeout
+    private final ToLongFunction<Object> weigher; // nullable
+
+    @SuppressWarnings("unchecked")
+    EntityCache(StateStore<Id> store, Clock clock, long maxEntities, long maxIdleMs, long maxWeight,
+            ToLongFunction<Object> weigher) {
+        this.store = store;
+        this.clock = clock;
+        this.maxIdleMs = maxIdleMs;
+        this.weigher = weigher;
+        int n = MAX_SEGMENTS;
+        while (n > 1 && maxEntities > 0 && maxEntities / n < MIN_ENTRIES_PER_SEGMENT) {
+            n = n >> 1;
+        }
+        this.segments = (Segment[]) new EntityCache.Segment[n];
+        for (int i = 0; i < n; i++) {
+            // the remainders go to the first segments so the bounds add up to
+            // the totals
+            segments[i] = new Segment(share(maxEntities, n, i),
+                    maxWeight > 0 ? Math.max(1, share(maxWeight, n, i)) : 0);
+        }
+    }
+
+    private static long share(long total, int n, int i) {
+        return total / n + (i < total % n ? 1 : 0);
+    }
+
+    EntityStateMachine<?, Id> get(ClassId<?, Id> key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            Entry<Id> entry = segment.map.get(key);
+            if (entry == null) {
+                return null;
+            } else {
+                entry.lastAccess = clock.now();
+                return entry.machine;
+            }
+        }
+    }
+
+    EntityStateMachine<?, Id> computeIfAbsent(ClassId<?, Id> key,
+            Function<? super ClassId<?, Id>, ? extends EntityStateMachine<?, Id>> loader) {
+        Segment segment = segment(key);
+        while (true) {
+            long evictions;
+            synchronized (segment) {
+                Entry<Id> entry = segment.map.get(key);
+                if (entry != null) {
+                    entry.lastAccess = clock.now();
+                    return entry.machine;
+                }
+                evictions = segment.evictions;
+            }
+            // load outside the lock so a slow store read doesn't block the
+            // other keys of the segment
+            EntityStateMachine<?, Id> machine = loader.apply(key);
+            synchronized (segment) {
+                Entry<Id> entry = segment.map.get(key);
+                if (entry != null) {
+                    // loaded concurrently by another thread
+                    entry.lastAccess = clock.now();
+                    return entry.machine;
+                } else if (segment.evictions == evictions) {
+                    segment.add(key, machine);
+                    return machine;
+                }
+                // the key may have been loaded, changed and written back to
+                // the store while we were loading so what we read could be
+                // stale, load again
+            }
+        }
+    }
+
+    void put(ClassId<?, Id> key, EntityStateMachine<?, Id> machine) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.add(key, machine);
+        }
+    }
+
+    /**
+     * Evicts entries that have been idle for longer than the idle timeout.
+     * Idle entries are otherwise only evicted when their segment is written to.
+     */
+    void evictIdle() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.evict();
+            }
+        }
+    }
+
+    long maxIdleMs() {
+        return maxIdleMs;
+    }
+
+    long size() {
+        long n = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                n += segment.map.size();
+            }
+        }
+        return n;
+    }
+
+    private Segment segment(ClassId<?, Id> key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    private static final class Entry<Id> {
+        final EntityStateMachine<?, Id> machine;
+        final long weight;
+        long lastAccess;
+
+        Entry(EntityStateMachine<?, Id> machine, long weight, long lastAccess) {
+            this.machine = machine;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final class Segment {
+
+        // access ordered so iteration starts with the least recently used
+        final LinkedHashMap<ClassId<?, Id>, Entry<Id>> map = new LinkedHashMap<>(16, 0.75f, true);
+        final long maxEntities; // 0 means unbounded
+        final long maxWeight; // 0 means unbounded
+        long weight;
+        long evictions;
+
+        Segment(long maxEntities, long maxWeight) {
+            this.maxEntities = maxEntities;
+            this.maxWeight = maxWeight;
+        }
+
+        void add(ClassId<?, Id> key, EntityStateMachine<?, Id> machine) {
+            long w = weigh(machine);
+            Entry<Id> previous = map.put(key, new Entry<Id>(machine, w, clock.now()));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += w;
+            evict();
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        void evict() {
+            long now = clock.now();
+            Iterator<Map.Entry<ClassId<?, Id>, Entry<Id>>> it = map.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<ClassId<?, Id>, Entry<Id>> e = it.next();
+                boolean overCount = maxEntities > 0 && map.size() > maxEntities;
+                boolean overWeight = maxWeight > 0 && weight > maxWeight;
+                boolean idle = maxIdleMs > 0 && now - e.getValue().lastAccess >= maxIdleMs;
+                if (!overCount && !overWeight && !idle) {
+                    // remaining entries were accessed more recently
+                    return;
+                }
+                Entry<Id> entry = e.getValue();
+                it.remove();
+                weight -= entry.weight;
+                evictions++;
+                store.write((ClassId) e.getKey(), entry.machine);
+            }
+        }
+
+        private long weigh(EntityStateMachine<?, Id> machine) {
+            if (weigher == null || !machine.get().isPresent()) {
+                return 0;
+            } else {
+                return weigher.applyAsLong(machine.get().get());
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,710 @@
+package com.github.davidmoten.fsm.runtime.rx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.github.davidmoten.fsm.runtime.Signal;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.internal.queue.MpscLinkedQueue;
+import io.reactivex.rxjava3.internal.subscriptions.EmptySubscription;
+import io.reactivex.rxjava3.internal.subscriptions.SubscriptionHelper;
+import io.reactivex.rxjava3.internal.util.BackpressureHelper;
+
+/**
+ * Queues of signals waiting to enter the processing pipeline of a
+ * {@link Processor}. Signals are routed by the hash of their class and id to
+ * one of a number of stripes (one per partition when the processor is
+ * partitioned) so producers only contend with producers signalling the same
+ * stripe. Each stripe emits its signals only as the pipeline requests them so
+ * the number waiting can be bounded overall and per entity, with an
+ * {@link OverflowPolicy} deciding what happens when a bound is reached.
+ *
+ * <p>
+ * A stripe is a lock-free multi-producer single-consumer queue unless per
+ * entity bounds, conflation or {@link OverflowPolicy#DROP_OLDEST} with a
+ * capacity are used. Those need to find or remove particular waiting signals
+ * so the stripe is then a locked doubly linked list in arrival order with a
+ * list per entity as well (an entity always maps to the same stripe).
+ *
+ * <p>
+ * Signals sent by the processing pipeline itself (signals to others and
+ * delayed signals) wait in a separate queue per stripe that is emitted first.
+ * They don't count towards the capacity and are never dropped or conflated.
+ */
+final class Ingress<Id> {
+
+    private final int capacity; // 0 means unbounded
+    private final int entityCapacity; // 0 means unbounded
+    private final OverflowPolicy policy;
+    private final List<Stripe> stripes;
+
+    // number of waiting signals over all stripes that count towards the
+    // capacity, only maintained when the capacity is bounded
+    private final AtomicInteger size = new AtomicInteger();
+
+    // number of the other waiting signals (internal signals and all signals
+    // when unbounded), striped so producers don't contend on it
+    private final LongAdder uncounted = new LongAdder();
+
+    // orders signals across stripes for DROP_OLDEST with a capacity
+    private final AtomicLong sequence = new AtomicLong();
+
+    // producers waiting for room overall when the policy is BLOCK
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition room = roomLock.newCondition();
+
+    private volatile boolean done;
+
+    Ingress(int stripes, int capacity, int entityCapacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.entityCapacity = entityCapacity;
+        this.policy = policy;
+        boolean trackEntities = entityCapacity > 0 || policy == OverflowPolicy.CONFLATE
+                || (policy == OverflowPolicy.DROP_OLDEST && capacity > 0);
+        this.stripes = new ArrayList<>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            this.stripes.add(trackEntities ? new EntityStripe() : new LockFreeStripe());
+        }
+    }
+
+    /**
+     * Adds the signal subject to the capacity and overflow policy.
+     *
+     * @param signal
+     *            signal to add
+     * @param wait
+     *            if the policy is {@link OverflowPolicy#BLOCK} whether to wait for
+     *            room
+     * @return true if the signal was accepted
+     */
+    boolean offer(Signal<?, Id> signal, boolean wait) {
+        if (done) {
+            return false;
+        } else {
+            return stripe(signal).offer(signal, wait);
+        }
+    }
+
+    /**
+     * Adds the signals subject to the capacity and overflow policy. The signals
+     * are routed to their stripes first so that each stripe is woken once for
+     * the whole batch rather than once per signal.
+     *
+     * @param signals
+     *            signals to add
+     * @param wait
+     *            if the policy is {@link OverflowPolicy#BLOCK} whether to wait for
+     *            room
+     * @return the first signal that was not accepted or null if all were
+     *         accepted
+     */
+    Signal<?, Id> offerAll(Iterable<? extends Signal<?, Id>> signals, boolean wait) {
+        if (done) {
+            Iterator<? extends Signal<?, Id>> it = signals.iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+        if (wait && policy == OverflowPolicy.BLOCK && (capacity > 0 || entityCapacity > 0)) {
+            // a blocked producer needs the signals it has already added to be
+            // emitted to free room so wake the stripe for every signal
+            Signal<?, Id> rejected = null;
+            for (Signal<?, Id> signal : signals) {
+                if (!offer(signal, true) && rejected == null) {
+                    rejected = signal;
+                }
+            }
+            return rejected;
+        }
+        @SuppressWarnings("unchecked")
+        List<Signal<?, Id>>[] batches = (List<Signal<?, Id>>[]) new List[stripes.size()];
+        for (Signal<?, Id> signal : signals) {
+            int index = stripeIndex(signal);
+            if (batches[index] == null) {
+                batches[index] = new ArrayList<>();
+            }
+            batches[index].add(signal);
+        }
+        Signal<?, Id> rejected = null;
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                Signal<?, Id> r = stripes.get(i).offerAll(batches[i], wait);
+                if (rejected == null) {
+                    rejected = r;
+                }
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Adds a signal regardless of capacity. Used for signals sent by the
+     * processing pipeline itself (signals to others and delayed signals) and
+     * the initial signals of the processor which must not block or be
+     * dropped.
+     *
+     * @param signal
+     *            signal to add
+     */
+    void offerInternal(Signal<?, Id> signal) {
+        stripe(signal).offerInternal(signal);
+    }
+
+    void complete() {
+        done = true;
+        roomLock.lock();
+        try {
+            // wake up blocked producers
+            room.signalAll();
+        } finally {
+            roomLock.unlock();
+        }
+        for (Stripe stripe : stripes) {
+            stripe.complete();
+        }
+    }
+
+    OverflowPolicy policy() {
+        return policy;
+    }
+
+    int size() {
+        return size.get() + (int) uncounted.sum();
+    }
+
+    /**
+     * Returns the signals of the stripe with the given index. Only one
+     * subscriber is allowed at a time.
+     *
+     * @param index
+     *            stripe index
+     * @return signals routed to the stripe
+     */
+    Flowable<Signal<?, Id>> stripe(int index) {
+        return stripes.get(index).flowable;
+    }
+
+    /**
+     * Returns the signals of all stripes merged.
+     *
+     * @return all signals
+     */
+    Flowable<Signal<?, Id>> flowable() {
+        List<Flowable<Signal<?, Id>>> list = new ArrayList<>(stripes.size());
+        for (Stripe stripe : stripes) {
+            list.add(stripe.flowable);
+        }
+        return Flowable.merge(list, list.size());
+    }
+
+    private Stripe stripe(Signal<?, Id> signal) {
+        return stripes.get(stripeIndex(signal));
+    }
+
+    private int stripeIndex(Signal<?, Id> signal) {
+        return stripeIndex(ClassId.hash(signal.cls(), signal.id()), stripes.size());
+    }
+
+    static int stripeIndex(int hash, int stripes) {
+        // spread the higher bits because the number of stripes is usually small
+        return Math.floorMod(hash ^ (hash >>> 16), stripes);
+    }
+
+    private boolean tryReserve() {
+        if (capacity == 0) {
+            uncounted.increment();
+            return true;
+        }
+        while (true) {
+            int n = size.get();
+            if (n >= capacity) {
+                return false;
+            } else if (size.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits for room overall and reserves it.
+     *
+     * @return false if interrupted or completed before room was reserved
+     */
+    private boolean awaitReserve() {
+        roomLock.lock();
+        // registered before the capacity check so a release that happens after
+        // the check sees the waiter
+        waiters.incrementAndGet();
+        try {
+            while (!tryReserve()) {
+                if (done) {
+                    return false;
+                }
+                room.await();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiters.decrementAndGet();
+            roomLock.unlock();
+        }
+    }
+
+    private void release() {
+        if (capacity == 0) {
+            uncounted.decrement();
+            return;
+        }
+        size.decrementAndGet();
+        if (waiters.get() > 0) {
+            roomLock.lock();
+            try {
+                room.signal();
+            } finally {
+                roomLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest waiting signal of all the stripes (for
+     * {@link OverflowPolicy#DROP_OLDEST}). Its place in the count is kept for
+     * the caller. Must not be called holding a stripe lock.
+     *
+     * @return false if no signal was waiting
+     */
+    private boolean dropOldest() {
+        while (true) {
+            EntityStripe oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (Stripe stripe : stripes) {
+                EntityStripe s = (EntityStripe) stripe;
+                long n = s.oldestSequence();
+                if (n < oldestSequence) {
+                    oldestSequence = n;
+                    oldest = s;
+                }
+            }
+            if (oldest == null) {
+                return false;
+            } else if (oldest.removeOldest(oldestSequence)) {
+                return true;
+            }
+            // the signal was emitted in the meantime so look again
+        }
+    }
+
+    /**
+     * Emits the waiting signals of a stripe as the subscriber requests them.
+     */
+    private abstract class Stripe {
+
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicReference<StripeSubscription> current = new AtomicReference<>();
+
+        // signals from offerInternal
+        private final MpscLinkedQueue<Signal<?, Id>> internal = new MpscLinkedQueue<>();
+
+        final Flowable<Signal<?, Id>> flowable = new Flowable<Signal<?, Id>>() {
+            @Override
+            protected void subscribeActual(Subscriber<? super Signal<?, Id>> child) {
+                StripeSubscription s = new StripeSubscription(child);
+                if (current.compareAndSet(null, s)) {
+                    child.onSubscribe(s);
+                    drain();
+                } else {
+                    EmptySubscription.error(
+                            new IllegalStateException("processor flowable can only have one subscriber at a time"),
+                            child);
+                }
+            }
+        };
+
+        /**
+         * Adds the signal without waking the consumer.
+         */
+        abstract boolean add(Signal<?, Id> signal, boolean wait);
+
+        /**
+         * Removes the oldest signal added with {@link #add(Signal, boolean)}
+         * and releases its place in the count.
+         */
+        abstract Signal<?, Id> pollExternal();
+
+        abstract boolean isExternalEmpty();
+
+        final boolean offer(Signal<?, Id> signal, boolean wait) {
+            if (add(signal, wait)) {
+                drain();
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        final Signal<?, Id> offerAll(List<Signal<?, Id>> signals, boolean wait) {
+            Signal<?, Id> rejected = null;
+            boolean added = false;
+            for (Signal<?, Id> signal : signals) {
+                if (add(signal, wait)) {
+                    added = true;
+                } else if (rejected == null) {
+                    rejected = signal;
+                }
+            }
+            if (added) {
+                drain();
+            }
+            return rejected;
+        }
+
+        final void offerInternal(Signal<?, Id> signal) {
+            uncounted.increment();
+            internal.offer(signal);
+            drain();
+        }
+
+        private Signal<?, Id> poll() {
+            Signal<?, Id> signal = internal.poll();
+            if (signal != null) {
+                uncounted.decrement();
+                return signal;
+            } else {
+                return pollExternal();
+            }
+        }
+
+        private boolean isEmpty() {
+            return internal.isEmpty() && isExternalEmpty();
+        }
+
+        void complete() {
+            drain();
+        }
+
+        final void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                StripeSubscription s = current.get();
+                if (s != null) {
+                    long r = s.requested.get();
+                    long e = 0;
+                    while (e != r && !s.cancelled) {
+                        Signal<?, Id> signal = poll();
+                        if (signal == null) {
+                            break;
+                        }
+                        s.child.onNext(signal);
+                        e++;
+                    }
+                    if (!s.cancelled && done && isEmpty()) {
+                        s.cancelled = true;
+                        s.child.onComplete();
+                    } else if (e != 0) {
+                        BackpressureHelper.produced(s.requested, e);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private final class StripeSubscription implements Subscription {
+
+            final Subscriber<? super Signal<?, Id>> child;
+            final AtomicLong requested = new AtomicLong();
+            volatile boolean cancelled;
+
+            StripeSubscription(Subscriber<? super Signal<?, Id>> child) {
+                this.child = child;
+            }
+
+            @Override
+            public void request(long n) {
+                if (SubscriptionHelper.validate(n)) {
+                    BackpressureHelper.add(requested, n);
+                    drain();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                // waiting signals are kept for the next subscriber
+                current.compareAndSet(this, null);
+            }
+
+        }
+
+    }
+
+    private final class LockFreeStripe extends Stripe {
+
+        private final MpscLinkedQueue<Signal<?, Id>> queue = new MpscLinkedQueue<>();
+
+        @Override
+        boolean add(Signal<?, Id> signal, boolean wait) {
+            if (!tryReserve() && (policy != OverflowPolicy.BLOCK || !wait || !awaitReserve())) {
+                return false;
+            }
+            queue.offer(signal);
+            return true;
+        }
+
+        @Override
+        Signal<?, Id> pollExternal() {
+            Signal<?, Id> signal = queue.poll();
+            if (signal != null) {
+                release();
+            }
+            return signal;
+        }
+
+        @Override
+        boolean isExternalEmpty() {
+            return queue.isEmpty();
+        }
+
+    }
+
+    private final class EntityStripe extends Stripe {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        // signalled when an entity of this stripe has room
+        private final Condition entityRoom = lock.newCondition();
+
+        // guarded by lock
+        private final Node<Id> head = new Node<Id>(null, null, 0);
+        private final Map<ClassId<?, Id>, Node<Id>> entities = new HashMap<>();
+
+        @Override
+        boolean add(Signal<?, Id> signal, boolean wait) {
+            ClassId<?, Id> key = ClassId.create(signal.cls(), signal.id());
+            boolean reserved = false;
+            while (true) {
+                lock.lock();
+                try {
+                    Node<Id> entity = entities.get(key);
+                    if (policy == OverflowPolicy.CONFLATE && entity != null) {
+                        for (Node<Id> n = entity.entityNext; n != entity; n = n.entityNext) {
+                            if (n.signal.event().getClass() == signal.event().getClass()) {
+                                n.signal = signal;
+                                unreserve(reserved);
+                                return true;
+                            }
+                        }
+                    }
+                    while (isEntityFull(entity)) {
+                        if (policy == OverflowPolicy.BLOCK && wait) {
+                            try {
+                                entityRoom.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                unreserve(reserved);
+                                return false;
+                            }
+                            if (done) {
+                                unreserve(reserved);
+                                return false;
+                            }
+                        } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                            remove(entity.entityNext);
+                            release();
+                        } else {
+                            unreserve(reserved);
+                            return false;
+                        }
+                        // the entity list may have been removed or replaced
+                        entity = entities.get(key);
+                    }
+                    if (reserved || tryReserve()) {
+                        add(new Node<Id>(signal, key, nextSequence()));
+                        return true;
+                    } else if (policy == OverflowPolicy.BLOCK ? !wait : policy != OverflowPolicy.DROP_OLDEST) {
+                        return false;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                // make room without holding the stripe lock then check the
+                // entity again
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    // this signal takes the place of the dropped one in the
+                    // count (if none was found the count has dropped or is
+                    // about to so try again)
+                    reserved = dropOldest();
+                } else if (awaitReserve()) {
+                    reserved = true;
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        private long nextSequence() {
+            if (policy == OverflowPolicy.DROP_OLDEST && capacity > 0) {
+                return sequence.getAndIncrement();
+            } else {
+                return 0;
+            }
+        }
+
+        @Override
+        Signal<?, Id> pollExternal() {
+            Signal<?, Id> signal;
+            lock.lock();
+            try {
+                Node<Id> n = head.next;
+                if (n == head) {
+                    return null;
+                }
+                remove(n);
+                signal = n.signal;
+            } finally {
+                lock.unlock();
+            }
+            release();
+            return signal;
+        }
+
+        @Override
+        boolean isExternalEmpty() {
+            lock.lock();
+            try {
+                return head.next == head;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns the sequence number of the oldest waiting signal or
+         * {@link Long#MAX_VALUE} if none is waiting.
+         */
+        long oldestSequence() {
+            lock.lock();
+            try {
+                return head.next == head ? Long.MAX_VALUE : head.next.sequence;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes the oldest waiting signal if it has the given sequence number
+         * without releasing its place in the count.
+         */
+        boolean removeOldest(long sequence) {
+            lock.lock();
+            try {
+                if (head.next != head && head.next.sequence == sequence) {
+                    remove(head.next);
+                    return true;
+                } else {
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void complete() {
+            lock.lock();
+            try {
+                // wake up blocked producers
+                entityRoom.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            super.complete();
+        }
+
+        private void unreserve(boolean reserved) {
+            if (reserved) {
+                release();
+            }
+        }
+
+        private boolean isEntityFull(Node<Id> entity) {
+            return entityCapacity > 0 && entity != null && entity.count >= entityCapacity;
+        }
+
+        private void add(Node<Id> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            Node<Id> entity = entities.get(node.key);
+            if (entity == null) {
+                entity = new Node<Id>(null, node.key, 0);
+                entities.put(node.key, entity);
+            }
+            node.entityPrev = entity.entityPrev;
+            node.entityNext = entity;
+            entity.entityPrev.entityNext = node;
+            entity.entityPrev = node;
+            entity.count++;
+        }
+
+        private void remove(Node<Id> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.entityPrev.entityNext = node.entityNext;
+            node.entityNext.entityPrev = node.entityPrev;
+            Node<Id> entity = entities.get(node.key);
+            if (--entity.count == 0) {
+                entities.remove(node.key);
+            }
+            if (policy == OverflowPolicy.BLOCK) {
+                // waiters may be waiting on different entities
+                entityRoom.signalAll();
+            }
+        }
+
+    }
+
+    /**
+     * A waiting signal or, when signal is null, the sentinel of a stripe list or
+     * of an entity list.
+     */
+    private static final class Node<Id> {
+
+        Signal<?, Id> signal;
+        final ClassId<?, Id> key;
+        // arrival order across stripes, only used by DROP_OLDEST
+        final long sequence;
+        Node<Id> prev = this;
+        Node<Id> next = this;
+        Node<Id> entityPrev = this;
+        Node<Id> entityNext = this;
+        int count; // for entity sentinels only
+
+        Node(Signal<?, Id> signal, ClassId<?, Id> key, long sequence) {
+            this.signal = signal;
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.github.davidmoten.fsm.runtime.rx;
+
+/**
+ * What a {@link Processor} does with a signal when its ingress capacity (or the
+ * capacity for the target entity) is reached.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * {@code signal} waits until there is room, {@code offer} returns false.
+     * Don't use with signals sent from the processing thread because that thread
+     * frees the room.
+     */
+    BLOCK,
+
+    /**
+     * The new signal is dropped.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest waiting signal (for the entity if the entity is full, otherwise
+     * over all entities) is dropped to make room for the new signal. Signals to
+     * others and delayed signals sent by entities are never dropped.
+     */
+    DROP_OLDEST,
+
+    /**
+     * {@code signal} throws {@link SignalRejectedException}, {@code offer}
+     * returns false.
+     */
+    REJECT,
+
+    /**
+     * A waiting signal to the same entity with the same event class is replaced
+     * by the new signal (whether or not capacity has been reached). If there is
+     * no such signal and capacity has been reached the new signal is dropped.
+     */
+    CONFLATE;
+
+}
@@ -3,13 +3,18 @@ package com.github.davidmoten.fsm.runtime.rx;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
 import org.reactivestreams.Subscriber;
 
@@ -25,26 +30,23 @@ import com.github.davidmoten.fsm.runtime.Search;
 import com.github.davidmoten.fsm.runtime.Signal;
 import com.github.davidmoten.guavamini.Preconditions;
 
-import io.reactivex.rxjava3.core.BackpressureStrategy;
-import io.reactivex.rxjava3.core.Emitter;
 import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.FlowableTransformer;
 import io.reactivex.rxjava3.core.Scheduler;
 import io.reactivex.rxjava3.core.Scheduler.Worker;
 import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.flowables.GroupedFlowable;
-import io.reactivex.rxjava3.functions.BiConsumer;
 import io.reactivex.rxjava3.functions.Consumer;
 import io.reactivex.rxjava3.functions.Function;
-import io.reactivex.rxjava3.functions.Supplier;
 import io.reactivex.rxjava3.internal.functions.Functions;
 import io.reactivex.rxjava3.schedulers.Schedulers;
-import io.reactivex.rxjava3.subjects.PublishSubject;
 
 public final class Processor<Id> {
 
+    private static final int SIGNAL_ALL_BATCH_SIZE = 256;
+
     private final Function<Class<?>, EntityBehaviour<?, Id>> behaviourFactory;
-    private final PublishSubject<Signal<?, Id>> subject;
+    private final Ingress<Id> ingress;
     private final Scheduler signalScheduler;
     private final Scheduler processingScheduler;
     private final Map<ClassId<?, Id>, EntityStateMachine<?, Id>> stateMachines = new ConcurrentHashMap<>();
@@ -56,12 +58,22 @@ public final class Processor<Id> {
     private final Clock signallerClock;
     private final Action3<? super EntityStateMachine<?, Id>, ? super Event<?>, ? super EntityState<?>> preTransitionAction;
     private final Consumer<? super EntityStateMachine<?, Id>> postTransitionAction;
+    private final int partitions; // 0 means one group per entity
+    private final boolean localDelivery;
+    private final StateStore<Id> stateStore; // nullable
+    private final EntityCache<Id> cache; // non-null iff stateStore non-null
+    private final TimingWheel<Id> timingWheel; // nullable
 
     private final Search<Id> search = new Search<Id>() {
         @Override
         public <T> Optional<T> search(Class<T> cls, Id id) {
             return getStateMachine(cls, id).get();
         }
+
+        @Override
+        public <T> Map<Id, T> getAll(Class<T> cls, Collection<Id> ids) {
+            return getObjects(cls, ids);
+        }
     };
 
     private Processor(Function<Class<?>, EntityBehaviour<?, Id>> behaviourFactory, Scheduler processingScheduler,
@@ -70,7 +82,9 @@ public final class Processor<Id> {
             FlowableTransformer<Signal<?, Id>, Signal<?, Id>> preGroupBy,
             Function<Consumer<Object>, Map<ClassId<?, Id>, Object>> mapFactory,
             Action3<? super EntityStateMachine<?, Id>, ? super Event<?>, ? super EntityState<?>> preTransitionAction,
-            Consumer<? super EntityStateMachine<?, Id>> postTransitionAction) {
+            Consumer<? super EntityStateMachine<?, Id>> postTransitionAction, int partitions,
+            StateStore<Id> stateStore, long maxCachedEntities, long maxIdleMs, long maxCachedWeight,
+            ToLongFunction<Object> weigher, long timingWheelTickMs, Ingress<Id> ingress, boolean localDelivery) {
         Preconditions.checkNotNull(behaviourFactory);
         Preconditions.checkNotNull(signalScheduler);
         Preconditions.checkNotNull(signals);
@@ -82,7 +96,7 @@ public final class Processor<Id> {
         this.behaviourFactory = behaviourFactory;
         this.signalScheduler = signalScheduler;
         this.processingScheduler = processingScheduler;
-        this.subject = PublishSubject.create();
+        this.ingress = ingress;
         this.signals = signals;
         this.entityTransform = entityTransform;
         this.preGroupBy = preGroupBy;
@@ -90,6 +104,16 @@ public final class Processor<Id> {
         this.signallerClock = Clock.from(signalScheduler);
         this.preTransitionAction = preTransitionAction;
         this.postTransitionAction = postTransitionAction;
+        this.partitions = partitions;
+        this.localDelivery = localDelivery;
+        this.stateStore = stateStore;
+        if (stateStore == null) {
+            this.cache = null;
+        } else {
+            this.cache = new EntityCache<Id>(stateStore, signallerClock, maxCachedEntities, maxIdleMs, maxCachedWeight,
+                    weigher);
+        }
+        this.timingWheel = timingWheelTickMs > 0 ? new TimingWheel<Id>(timingWheelTickMs) : null;
     }
 
     public static <Id> Builder<Id> behaviourFactory(Function<Class<?>, EntityBehaviour<?, Id>> behaviourFactory) {
@@ -114,8 +138,8 @@ public final class Processor<Id> {
         private Scheduler signalScheduler = Schedulers.computation();
         private Scheduler processingScheduler = Schedulers.trampoline();
         private Flowable<Signal<?, Id>> signals = Flowable.empty();
-        private Function<GroupedFlowable<ClassId<?, Id>, EntityStateMachine<?, Id>>, Flowable<EntityStateMachine<?, Id>>> entityTransform = g -> g;
-        private FlowableTransformer<Signal<?, Id>, Signal<?, Id>> preGroupBy = x -> x;
+        private Function<GroupedFlowable<ClassId<?, Id>, EntityStateMachine<?, Id>>, Flowable<EntityStateMachine<?, Id>>> entityTransform;
+        private FlowableTransformer<Signal<?, Id>, Signal<?, Id>> preGroupBy; // nullable
         private Function<Consumer<Object>, Map<ClassId<?, Id>, Object>> mapFactory; // nullable
         private Action3<? super EntityStateMachine<?, Id>, ? super Event<?>, ? super EntityState<?>> preTransitionAction = (
                 x, y, z) -> {
@@ -123,6 +147,17 @@ public final class Processor<Id> {
         private Consumer<? super EntityStateMachine<?, Id>> postTransitionAction = x -> {
         };
         private final Map<Class<?>, EntityBehaviour<?, Id>> behaviours = new HashMap<>();
+        private int partitions;
+        private StateStore<Id> stateStore; // nullable
+        private long maxCachedEntities;
+        private long maxIdleMs;
+        private long maxCachedWeight;
+        private ToLongFunction<Object> weigher; // nullable
+        private long timingWheelTickMs; // 0 means schedule each signal on the worker
+        private int ingressCapacity; // 0 means unbounded
+        private int entityCapacity; // 0 means unbounded
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private boolean localDelivery;
 
         private Builder() {
         }
@@ -147,6 +182,15 @@ public final class Processor<Id> {
             return this;
         }
 
+        /**
+         * Sets the signals to send once the processor is subscribed to. They
+         * are always accepted (regardless of the ingress capacity) so the
+         * subscribing thread is never blocked.
+         * 
+         * @param signals
+         *            initial signals
+         * @return this
+         */
         public Builder<Id> signals(Flowable<Signal<?, Id>> signals) {
             this.signals = signals;
             return this;
@@ -179,16 +223,223 @@ public final class Processor<Id> {
             return this;
         }
 
+        /**
+         * Instead of grouping signals by entity (which creates a group and a
+         * processing queue for every entity ever signalled) signals are hashed by
+         * {@link ClassId} onto a fixed number of partitions. Each partition is
+         * processed serially on its own worker of the processing scheduler so
+         * signals to an entity are still processed in order. Signals are routed
+         * to the queue of their partition when they are sent so
+         * {@link #preGroupBy(FlowableTransformer)} cannot be used.
+         * 
+         * @param partitions
+         *            number of partitions, must be positive
+         * @return this
+         */
+        public Builder<Id> partitions(int partitions) {
+            Preconditions.checkArgument(partitions > 0, "partitions must be positive");
+            this.partitions = partitions;
+            return this;
+        }
+
+        /**
+         * Processes signals on as many partitions as there are available
+         * processors. See {@link #partitions(int)}.
+         * 
+         * @return this
+         */
+        public Builder<Id> partitioned() {
+            return partitions(Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Sets the store that entities evicted from the in-memory cache are written
+         * to. An evicted entity is reloaded from the store (using
+         * {@link EntityBehaviour#create(Object, Object, EntityState)}) when it is
+         * next signalled or searched for. Without a store entities are never
+         * evicted.
+         * 
+         * @param stateStore
+         *            store for evicted entities
+         * @return this
+         */
+        public Builder<Id> stateStore(StateStore<Id> stateStore) {
+            this.stateStore = stateStore;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of entities held in memory. The least recently
+         * used entities are evicted to the {@link #stateStore(StateStore)} first.
+         * 
+         * @param maxEntities
+         *            maximum number of cached entities
+         * @return this
+         */
+        public Builder<Id> maxCachedEntities(long maxEntities) {
+            Preconditions.checkArgument(maxEntities > 0, "maxEntities must be positive");
+            this.maxCachedEntities = maxEntities;
+            return this;
+        }
+
+        /**
+         * Entities that have not been signalled or searched for within the given
+         * duration are evicted to the {@link #stateStore(StateStore)}.
+         * 
+         * @param duration
+         *            idle duration
+         * @param unit
+         *            duration unit
+         * @return this
+         */
+        public Builder<Id> expireIdleEntitiesAfter(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration > 0, "duration must be positive");
+            this.maxIdleMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Sets the maximum total weight of entities held in memory where the weight
+         * of an entity is calculated by {@code weigher} (for example its serialized
+         * size in bytes). The least recently used entities are evicted to the
+         * {@link #stateStore(StateStore)} first.
+         * 
+         * @param maxWeight
+         *            maximum total weight of cached entities
+         * @param weigher
+         *            calculates the weight of an entity
+         * @return this
+         */
+        public Builder<Id> maxCachedWeight(long maxWeight, ToLongFunction<Object> weigher) {
+            Preconditions.checkArgument(maxWeight > 0, "maxWeight must be positive");
+            Preconditions.checkNotNull(weigher);
+            this.maxCachedWeight = maxWeight;
+            this.weigher = weigher;
+            return this;
+        }
+
+        /**
+         * Holds delayed signals in a hierarchical timing wheel instead of
+         * scheduling each one on a worker of the signal scheduler. Use when there
+         * are a large number of pending delayed signals. Signals fire on the first
+         * tick at or after their due time.
+         * 
+         * @param tick
+         *            resolution of the wheel
+         * @param unit
+         *            tick unit
+         * @return this
+         */
+        public Builder<Id> timingWheel(long tick, TimeUnit unit) {
+            Preconditions.checkArgument(unit.toMillis(tick) > 0, "tick must be at least 1ms");
+            this.timingWheelTickMs = unit.toMillis(tick);
+            return this;
+        }
+
+        /**
+         * Holds delayed signals in a hierarchical timing wheel with a 10ms tick.
+         * 
+         * @return this
+         * @see #timingWheel(long, TimeUnit)
+         */
+        public Builder<Id> timingWheel() {
+            return timingWheel(10, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Sets the maximum number of signals waiting to be processed. Signals
+         * beyond this are handled according to the
+         * {@link #overflowPolicy(OverflowPolicy)}. Signals to others and delayed
+         * signals sent by entities and the {@link #signals(Flowable)} are always
+         * accepted and don't count towards the capacity. Note that a bounded number of signals (determined by the
+         * buffer sizes of the processing pipeline) may have been taken from the
+         * waiting queue and be buffered beyond this capacity.
+         * 
+         * @param capacity
+         *            maximum number of waiting signals
+         * @return this
+         */
+        public Builder<Id> ingressCapacity(int capacity) {
+            Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+            this.ingressCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of signals waiting to be processed for any one
+         * entity. Signals beyond this are handled according to the
+         * {@link #overflowPolicy(OverflowPolicy)}.
+         * 
+         * @param capacity
+         *            maximum number of waiting signals per entity
+         * @return this
+         */
+        public Builder<Id> entityCapacity(int capacity) {
+            Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+            this.entityCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets what happens to a signal when the ingress capacity or the entity
+         * capacity is reached. The default is {@link OverflowPolicy#BLOCK}.
+         * 
+         * @param policy
+         *            overflow policy
+         * @return this
+         */
+        public Builder<Id> overflowPolicy(OverflowPolicy policy) {
+            Preconditions.checkNotNull(policy);
+            this.overflowPolicy = policy;
+            return this;
+        }
+
+        /**
+         * In partitioned mode delivers an immediate signal to another entity
+         * straight to the queue of the sending partition if the target entity
+         * is in the same partition rather than sending it through the ingress.
+         * The signal is processed as soon as the signal that caused it has run
+         * to completion. Signals between a pair of entities are still processed
+         * in the order they were sent. Local signals don't count towards the
+         * ingress capacity.
+         * 
+         * @param localDelivery
+         *            whether to deliver signals within a partition locally
+         * @return this
+         */
+        public Builder<Id> localDelivery(boolean localDelivery) {
+            this.localDelivery = localDelivery;
+            return this;
+        }
+
         public Processor<Id> build() {
             Preconditions.checkArgument(behaviourFactory != null || !behaviours.isEmpty(),
                     "one of behaviourFactory or multiple calls to behaviour must be made (behaviour must be specified)");
             Preconditions.checkArgument(behaviourFactory == null || behaviours.isEmpty(),
                     "cannot specify both behaviourFactory and behaviour");
+            Preconditions.checkArgument(
+                    partitions == 0 || (entityTransform == null && mapFactory == null && preGroupBy == null),
+                    "entityTransform, mapFactory and preGroupBy apply to groups per entity and cannot be used with partitions");
+            Preconditions.checkArgument(!localDelivery || partitions > 0, "localDelivery requires partitions");
+            Preconditions.checkArgument(
+                    stateStore != null || (maxCachedEntities == 0 && maxIdleMs == 0 && maxCachedWeight == 0),
+                    "a stateStore must be specified to evict entities from the cache");
             if (!behaviours.isEmpty()) {
                 behaviourFactory = cls -> behaviours.get(cls);
             }
+            if (entityTransform == null) {
+                entityTransform = g -> g;
+            }
+            if (preGroupBy == null) {
+                preGroupBy = x -> x;
+            }
+            // one ingress stripe per partition so each partition consumes its
+            // own queue
+            int stripes = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
             return new Processor<Id>(behaviourFactory, processingScheduler, signalScheduler, signals, entityTransform,
-                    preGroupBy, mapFactory, preTransitionAction, postTransitionAction);
+                    preGroupBy, mapFactory, preTransitionAction, postTransitionAction, partitions, stateStore,
+                    maxCachedEntities, maxIdleMs, maxCachedWeight, weigher, timingWheelTickMs,
+                    new Ingress<Id>(stripes, ingressCapacity, entityCapacity, overflowPolicy), localDelivery);
         }
 
     }
@@ -197,29 +448,70 @@ public final class Processor<Id> {
     public Flowable<EntityStateMachine<?, Id>> flowable() {
         return Flowable.defer(() -> {
             Worker worker = signalScheduler.createWorker();
-            Flowable<Signal<?, Id>> a = subject //
-                    .toSerialized() //
-                    .toFlowable(BackpressureStrategy.BUFFER) //
-                    .mergeWith(signals) //
-                    .doOnCancel(() -> worker.dispose()) //
-                    .compose(preGroupBy);
-            Flowable<GroupedFlowable<ClassId<?, Id>, Signal<?, Id>>> b;
-            if (mapFactory != null) {
-                b = a.groupBy(signal -> new ClassId(signal.cls(), signal.id()), x -> x, true, Integer.MAX_VALUE, mapFactory);
+            if (cache != null && cache.maxIdleMs() > 0) {
+                // idle entities are also evicted when their cache segment is
+                // written to but this ensures they don't linger otherwise
+                worker.schedulePeriodically(cache::evictIdle, cache.maxIdleMs(), cache.maxIdleMs(),
+                        TimeUnit.MILLISECONDS);
+            }
+            if (timingWheel != null) {
+                timingWheel.start(worker.now(TimeUnit.MILLISECONDS));
+                worker.schedulePeriodically(() -> {
+                    for (Signal<?, Id> signal : timingWheel.advance(worker.now(TimeUnit.MILLISECONDS))) {
+                        ingress.offerInternal(signal.now());
+                    }
+                }, timingWheel.tickMs(), timingWheel.tickMs(), TimeUnit.MILLISECONDS);
+            }
+            final Flowable<EntityStateMachine<?, Id>> processed;
+            if (partitions > 0) {
+                processed = partitioned(worker);
             } else {
-                b = a.groupBy(signal -> new ClassId(signal.cls(), signal.id()), Functions.identity());
+                processed = perEntity(worker);
             }
-            return b.flatMap(g -> {
-                Flowable<EntityStateMachine<?, Id>> obs = g //
-                        .observeOn(processingScheduler)
-                        .flatMap(processSignalsToSelfAndSendSignalsToOthers(worker, g.getKey())) //
-                        .doOnNext(m -> stateMachines.put(g.getKey(), m));
-
-                return entityTransform.apply(grouped(g.getKey(), obs));
-            });
+            return processed //
+                    // signals from the builder go through the ingress like any
+                    // other and are subscribed to after the pipeline so they can
+                    // be emitted straight away. They are offered as internal
+                    // signals so a full ingress can't block the subscriber
+                    .mergeWith(signals //
+                            .doOnNext(ingress::offerInternal) //
+                            .ignoreElements()) //
+                    .doOnCancel(() -> worker.dispose());
         });
     }
 
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private Flowable<EntityStateMachine<?, Id>> perEntity(Worker worker) {
+        Flowable<Signal<?, Id>> a = ingress.flowable().compose(preGroupBy);
+        Flowable<GroupedFlowable<ClassId<?, Id>, Signal<?, Id>>> b;
+        if (mapFactory != null) {
+            b = a.groupBy(signal -> new ClassId(signal.cls(), signal.id()), x -> x, true, Integer.MAX_VALUE, mapFactory);
+        } else {
+            b = a.groupBy(signal -> new ClassId(signal.cls(), signal.id()), Functions.identity());
+        }
+        return b.flatMap(g -> {
+            Flowable<EntityStateMachine<?, Id>> obs = transitions(g, worker, -1);
+            return entityTransform.apply(grouped(g.getKey(), obs));
+        });
+    }
+
+    private Flowable<EntityStateMachine<?, Id>> partitioned(Worker worker) {
+        // each partition consumes its own stripe of the ingress
+        return Flowable.range(0, partitions) //
+                .flatMap(i -> transitions(ingress.stripe(i), worker, i), partitions);
+    }
+
+    private Flowable<EntityStateMachine<?, Id>> transitions(Flowable<Signal<?, Id>> group, Worker worker,
+            int partition) {
+        return group //
+                .observeOn(processingScheduler) //
+                .map(new Transitions(worker, partition)) //
+                // stop fusion so that the transitions happen on the
+                // processing worker rather than the thread that requests
+                .hide() //
+                .concatMapIterable(Functions.identity());
+    }
+
     private static <K, T> GroupedFlowable<K, T> grouped(K key, final Flowable<T> o) {
         return new GroupedFlowable<K, T>(key) {
             @Override
@@ -229,130 +521,145 @@ public final class Processor<Id> {
         };
     }
 
-    private Function<? super Signal<?, Id>, Flowable<EntityStateMachine<?, Id>>> processSignalsToSelfAndSendSignalsToOthers(
-            Worker worker, ClassId<?, Id> classId) {
-        return signal -> process(classId, signal.event(), worker) //
-                .toList() // ensure complet
-                .toFlowable().flatMapIterable(Functions.identity());
-    }
-
-    private static final class Signals<Id> {
-        final Deque<Event<?>> signalsToSelf = new ArrayDeque<>();
-        final Deque<Signal<?, Id>> signalsToOther = new ArrayDeque<>();
-    }
-
-    private Flowable<EntityStateMachine<?, Id>> process(ClassId<?, Id> classId, Event<?> event, Worker worker) {
-        EntityStateMachine<?, Id> machine = getStateMachine(classId.cls(), classId.id());
-        TransitionHandler handler = new TransitionHandler(classId, event, worker, machine);
-        return Flowable.generate(handler, handler);
-    }
-
     /**
-     * Combines the state creation and transition operations into the one class.
+     * Runs each signal to completion for one group (an entity or a partition).
      * Implements the transition rules of an Executable UML state machine in that
-     * for an entry procedure all signals to self are emitted before signals to
+     * for an entry procedure all signals to self are actioned before signals to
      * others. Signals to self are actioned synchronously but signals to others may
-     * be actioned asynchronously.
+     * be actioned asynchronously. A group processes its signals serially so the
+     * deques are reused across signals.
      */
-    private final class TransitionHandler
-            implements Supplier<Signals<Id>>, BiConsumer<Signals<Id>, Emitter<EntityStateMachine<?, Id>>> {
+    private final class Transitions implements Function<Signal<?, Id>, List<EntityStateMachine<?, Id>>> {
 
         // note has access to surrounding classes' state because is not
         // static
 
-        private final Event<?> event;
-        private final ClassId<?, Id> classId;
         private final Worker worker;
-
-        // mutable
-        EntityStateMachine<?, Id> machine;
-
-        TransitionHandler(ClassId<?, Id> classId, Event<?> event, Worker worker, EntityStateMachine<?, Id> machine) {
-            this.classId = classId;
-            this.event = event;
+        private final int partition; // -1 if not partitioned
+        private final Deque<Event<?>> signalsToSelf = new ArrayDeque<>();
+        private final Deque<Signal<?, Id>> signalsToOther = new ArrayDeque<>();
+        // signals to others in this partition, null if not delivering locally
+        private final Deque<Signal<?, Id>> local;
+
+        // results of the current signal, most signals cause one transition so
+        // only allocate a list for more
+        private EntityStateMachine<?, Id> first;
+        private List<EntityStateMachine<?, Id>> machines;
+
+        Transitions(Worker worker, int partition) {
             this.worker = worker;
-            this.machine = machine;
-        }
-
-        @Override
-        public Signals<Id> get() throws Exception {
-            // generate initial state
-            Signals<Id> signals = new Signals<>();
-            signals.signalsToSelf.offerFirst(event);
-            return signals;
+            this.partition = partition;
+            this.local = localDelivery && partition >= 0 ? new ArrayDeque<>() : null;
         }
 
         @Override
-        public void accept(Signals<Id> signals, Emitter<EntityStateMachine<?, Id>> observer) throws Throwable {
-            @SuppressWarnings("unchecked")
-            Event<Object> event = (Event<Object>) signals.signalsToSelf.pollLast();
-            if (event != null) {
-                applySignalToSelf(signals, observer, event);
+        public List<EntityStateMachine<?, Id>> apply(Signal<?, Id> signal) throws Throwable {
+            // clear anything left behind by a failed signal
+            signalsToSelf.clear();
+            signalsToOther.clear();
+            first = null;
+            machines = null;
+            if (local == null) {
+                runToCompletion(signal);
             } else {
-                applySignalsToOthers(classId, worker, signals);
-                observer.onComplete();
+                local.clear();
+                Signal<?, Id> s = signal;
+                do {
+                    runToCompletion(s);
+                } while ((s = local.pollFirst()) != null);
             }
+            List<EntityStateMachine<?, Id>> result = machines == null ? Collections.singletonList(first)
+                    : machines;
+            first = null;
+            machines = null;
+            return result;
         }
 
         @SuppressWarnings("unchecked")
-        private <T> void applySignalToSelf(Signals<Id> signals,
-                Emitter<? super EntityStateMachine<?, Id>> observer, Event<T> event)
-                        throws Throwable {
-            // run the entry procedure if a transition occurs
-            // and record signals to self and to others
-            machine = machine.signal((Event<Object>) event);
-            postTransitionAction.accept(machine);
-            // downstream synchronously updates the stateMachines
-            observer.onNext(machine);
-            List<Event<? super T>> list = (List<Event<? super T>>) (List<?>) machine
-                    .signalsToSelf();
-            for (int i = list.size() - 1; i >= 0; i--) {
-                signals.signalsToSelf.offerLast(list.get(i));
-            }
-            for (Signal<?, ?> signal : machine.signalsToOther()) {
-                signals.signalsToOther.offerLast((Signal<?, Id>) signal);
-            }
+        private void runToCompletion(Signal<?, Id> signal) throws Throwable {
+            ClassId<?, Id> classId = ClassId.create(signal.cls(), signal.id());
+            EntityStateMachine<?, Id> machine = getStateMachine(classId);
+            Event<?> event = signal.event();
+            do {
+                // run the entry procedure if a transition occurs
+                // and record signals to self and to others
+                machine = machine.signal((Event<Object>) event);
+                // record the new state before anything is emitted so the next
+                // signal to this entity sees it even if downstream buffers
+                putStateMachine(classId, machine);
+                postTransitionAction.accept(machine);
+                if (first == null) {
+                    first = machine;
+                } else {
+                    if (machines == null) {
+                        machines = new ArrayList<>();
+                        machines.add(first);
+                    }
+                    machines.add(machine);
+                }
+                // copy the signals because the machine reuses its lists on the
+                // next transition
+                List<? extends Event<?>> toSelf = machine.signalsToSelf();
+                for (int i = toSelf.size() - 1; i >= 0; i--) {
+                    signalsToSelf.offerLast(toSelf.get(i));
+                }
+                List<Signal<?, ?>> toOther = machine.signalsToOther();
+                for (int i = 0; i < toOther.size(); i++) {
+                    signalsToOther.offerLast((Signal<?, Id>) toOther.get(i));
+                }
+            } while ((event = signalsToSelf.pollLast()) != null);
+            applySignalsToOthers(classId);
         }
 
-        private void applySignalsToOthers(ClassId<?, Id> cid, Worker worker, Signals<Id> signals) {
+        private void applySignalsToOthers(ClassId<?, Id> cid) {
             Signal<?, Id> signal;
-            while ((signal = signals.signalsToOther.pollFirst()) != null) {
+            while ((signal = signalsToOther.pollFirst()) != null) {
                 Signal<?, Id> s = signal;
                 if (signal.isImmediate()) {
-                    subject.onNext(signal);
+                    send(signal);
                 } else if (signal.event() instanceof CancelTimedSignal) {
                     cancel(signal);
                 } else {
                     long delayMs = signal.time().get() - worker.now(TimeUnit.MILLISECONDS);
                     if (delayMs <= 0) {
-                        subject.onNext(signal);
+                        send(signal);
+                    } else if (timingWheel != null) {
+                        if (!timingWheel.schedule(cid, signal)) {
+                            ingress.offerInternal(signal);
+                        }
                     } else {
-                        scheduleSignal(cid, worker, signal, s, delayMs);
+                        scheduleSignal(cid, signal, s, delayMs);
                     }
                 }
             }
         }
 
+        private void send(Signal<?, Id> signal) {
+            if (local != null
+                    && Ingress.stripeIndex(ClassId.hash(signal.cls(), signal.id()), partitions) == partition) {
+                // the target is processed by this partition so skip the ingress,
+                // the local queue is FIFO so signals between a pair of entities
+                // stay in order
+                local.offerLast(signal);
+            } else {
+                ingress.offerInternal(signal);
+            }
+        }
+
         private void cancel(Signal<?, Id> signal) {
             @SuppressWarnings("unchecked")
             CancelTimedSignal<Id> s = ((CancelTimedSignal<Id>) signal.event());
-            @SuppressWarnings({ "unchecked", "rawtypes" })
-            Disposable sub = subscriptions.remove(new ClassIdPair<Id>(new ClassId(s.fromClass(), s.fromId()),
-                    new ClassId(signal.cls(), signal.id())));
-            if (sub != null) {
-                sub.dispose();
-            }
+            cancelSignal(s.fromClass(), s.fromId(), signal.cls(), signal.id());
         }
 
-        private void scheduleSignal(ClassId<?, Id> from, Worker worker, Signal<?, Id> signal, Signal<?, Id> s,
-                long delayMs) {
+        private void scheduleSignal(ClassId<?, Id> from, Signal<?, Id> signal, Signal<?, Id> s, long delayMs) {
             // record pairwise signal so we can cancel it if
             // desired
             @SuppressWarnings({ "unchecked", "rawtypes" })
             ClassIdPair<Id> idPair = new ClassIdPair<Id>(from, new ClassId(signal.cls(), signal.id()));
             long t1 = signalScheduler.now(TimeUnit.MILLISECONDS);
             Disposable subscription = worker.schedule(() -> {
-                subject.onNext(s.now());
+                ingress.offerInternal(s.now());
             }, delayMs, TimeUnit.MILLISECONDS);
             long t2 = signalScheduler.now(TimeUnit.MILLISECONDS);
             worker.schedule(() -> {
@@ -366,20 +673,76 @@ public final class Processor<Id> {
 
     }
 
-    @SuppressWarnings({ "unchecked" })
     private <T> EntityStateMachine<T, Id> getStateMachine(Class<T> cls, Id id) {
-        return (EntityStateMachine<T, Id>) stateMachines //
-                .computeIfAbsent(new ClassId<T, Id>(cls, id), clsId -> {
-                    try {
-                        return (EntityStateMachine<T, Id>) behaviourFactory.apply(cls) //
-                                .create(id) //
-                                .withSearch(search) //
-                                .withClock(signallerClock) //
-                                .withPreTransition(preTransitionAction);
-                    } catch (Throwable e) {
-                        return rethrow(e);
-                    }
-                });
+        return getStateMachine(new ClassId<T, Id>(cls, id));
+    }
+
+    @SuppressWarnings({ "unchecked" })
+    private <T> EntityStateMachine<T, Id> getStateMachine(ClassId<T, Id> key) {
+        if (cache == null) {
+            return (EntityStateMachine<T, Id>) stateMachines //
+                    .computeIfAbsent(key, clsId -> createStateMachine(key));
+        } else {
+            return (EntityStateMachine<T, Id>) cache.computeIfAbsent(key, clsId -> createStateMachine(key));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> EntityStateMachine<T, Id> createStateMachine(ClassId<T, Id> key) {
+        try {
+            EntityBehaviour<T, Id> behaviour = (EntityBehaviour<T, Id>) behaviourFactory.apply(key.cls());
+            // rehydrate the entity if it was evicted from the cache
+            Optional<ObjectState<T>> stored = stateStore == null ? Optional.empty() : stateStore.read(key);
+            final EntityStateMachine<T, Id> m;
+            if (stored.isPresent()) {
+                m = behaviour.create(key.id(), stored.get().get().orElse(null), stored.get().state());
+            } else {
+                m = behaviour.create(key.id());
+            }
+            return m //
+                    .withSearch(search) //
+                    .withClock(signallerClock) //
+                    .withPreTransition(preTransitionAction);
+        } catch (Throwable e) {
+            return rethrow(e);
+        }
+    }
+
+    private void putStateMachine(ClassId<?, Id> key, EntityStateMachine<?, Id> machine) {
+        if (cache == null) {
+            stateMachines.put(key, machine);
+        } else {
+            cache.put(key, machine);
+        }
+    }
+
+    /**
+     * Returns the entities of class {@code cls} with the given ids that are
+     * present, keyed by id in the order of {@code ids}. Unlike
+     * {@link #getObject(Class, Object)} an id that is not known does not get an
+     * (empty) state machine and an evicted entity is read from the state store
+     * without being loaded back into the cache (see {@link #get(Class, Object)}).
+     * 
+     * @param cls
+     *            entity class
+     * @param ids
+     *            entity ids
+     * @param <T>
+     *            entity type
+     * @return present entities by id
+     */
+    public <T> Map<Id, T> getObjects(Class<T> cls, Collection<Id> ids) {
+        Map<Id, T> map = new LinkedHashMap<>();
+        for (Id id : ids) {
+            ObjectState<T> state = get(cls, id);
+            if (state != null) {
+                Optional<T> t = state.get();
+                if (t.isPresent()) {
+                    map.put(id, t.get());
+                }
+            }
+        }
+        return map;
     }
 
     public <T> Optional<T> getObject(Class<T> cls, Id id) {
@@ -390,28 +753,116 @@ public final class Processor<Id> {
         }
     }
 
+    /**
+     * Sends the signal for processing. If the ingress is full then the signal is
+     * handled according to the overflow policy (so may block, be dropped or cause
+     * a {@link SignalRejectedException}).
+     * 
+     * @param signal
+     *            signal to process
+     * @throws SignalRejectedException
+     *             if the ingress is full and the policy is
+     *             {@link OverflowPolicy#REJECT}
+     */
     public void signal(Signal<?, Id> signal) {
-        subject.onNext(signal);
+        if (!ingress.offer(signal, true) && ingress.policy() == OverflowPolicy.REJECT) {
+            throw new SignalRejectedException(signal);
+        }
     }
 
     public <T> void signal(Class<T> cls, Id id, Event<? super T> event) {
-        subject.onNext(Signal.create(cls, id, event));
+        signal(Signal.create(cls, id, event));
     }
 
     public <T> void signal(ClassId<T, Id> cid, Event<? super T> event) {
         signal(cid.cls(), cid.id(), event);
     }
 
+    /**
+     * Sends the signals for processing. The signals are routed to their
+     * partitions (or stripes) as a batch so each is woken once rather than once
+     * per signal. Signals to the same entity are processed in iteration order.
+     * 
+     * @param signals
+     *            signals to send
+     * @throws SignalRejectedException
+     *             if the overflow policy is {@link OverflowPolicy#REJECT} and a
+     *             signal was rejected (the first one rejected is reported, the
+     *             other signals have still been accepted)
+     */
+    public void signalAll(Iterable<? extends Signal<?, Id>> signals) {
+        Signal<?, Id> rejected = ingress.offerAll(signals, true);
+        if (rejected != null && ingress.policy() == OverflowPolicy.REJECT) {
+            throw new SignalRejectedException(rejected);
+        }
+    }
+
+    /**
+     * Sends the signals emitted by the given flowable for processing in batches
+     * of up to {@value #SIGNAL_ALL_BATCH_SIZE} (see
+     * {@link #signalAll(Iterable)}). Blocks until the flowable completes.
+     * 
+     * @param signals
+     *            signals to send
+     */
+    public void signalAll(Flowable<? extends Signal<?, Id>> signals) {
+        signals.buffer(SIGNAL_ALL_BATCH_SIZE).blockingForEach(this::signalAll);
+    }
+
     @SuppressWarnings("unchecked")
     public <T> ObjectState<T> get(Class<T> cls, Id id) {
-        return (EntityStateMachine<T, Id>) stateMachines.get(new ClassId<T, Id>(cls, id));
+        ClassId<T, Id> key = new ClassId<T, Id>(cls, id);
+        if (cache == null) {
+            return (EntityStateMachine<T, Id>) stateMachines.get(key);
+        } else {
+            EntityStateMachine<T, Id> m = (EntityStateMachine<T, Id>) cache.get(key);
+            if (m != null) {
+                return m;
+            } else {
+                // don't load an evicted entity back into the cache just to read it
+                return stateStore.read(key).orElse(null);
+            }
+        }
+    }
+
+    /**
+     * Sends the signal for processing if it can be accepted without waiting.
+     * 
+     * @param signal
+     *            signal to process
+     * @return true if the signal was accepted, false if it was dropped or
+     *         rejected because the ingress is full
+     */
+    public boolean offer(Signal<?, Id> signal) {
+        return ingress.offer(signal, false);
+    }
+
+    public <T> boolean offer(Class<T> cls, Id id, Event<? super T> event) {
+        return offer(Signal.create(cls, id, event));
+    }
+
+    public <T> boolean offer(ClassId<T, Id> cid, Event<? super T> event) {
+        return offer(cid.cls(), cid.id(), event);
+    }
+
+    /**
+     * Returns the number of signals waiting to enter processing.
+     * 
+     * @return number of waiting signals
+     */
+    public int waitingSignals() {
+        return ingress.size();
     }
 
     public void onCompleted() {
-        subject.onComplete();
+        ingress.complete();
     }
 
     public void cancelSignal(Class<?> fromClass, Id fromId, Class<?> toClass, Id toId) {
+        if (timingWheel != null) {
+            timingWheel.cancel(fromClass, fromId, toClass, toId);
+            return;
+        }
         @SuppressWarnings({ "unchecked", "rawtypes" })
         Disposable subscription = subscriptions
                 .remove(new ClassIdPair<Id>(new ClassId(fromClass, fromId), new ClassId(toClass, toId)));
@@ -420,6 +871,16 @@ public final class Processor<Id> {
         }
     }
 
+    /**
+     * Returns the number of delayed signals that have not yet fired or been
+     * cancelled.
+     * 
+     * @return number of pending delayed signals
+     */
+    public long pendingTimers() {
+        return timingWheel != null ? timingWheel.size() : subscriptions.size();
+    }
+
     public void cancelSignalToSelf(Class<?> cls, Id id) {
         cancelSignal(cls, id, cls, id);
     }
@@ -0,0 +1,24 @@
+package com.github.davidmoten.fsm.runtime.rx;
+
+import com.github.davidmoten.fsm.runtime.Signal;
+
+/**
+ * Thrown by {@link Processor#signal(Signal)} when the ingress is full and the
+ * overflow policy is {@link OverflowPolicy#REJECT}.
+ */
+public final class SignalRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = -2377480926524935542L;
+
+    private final Signal<?, ?> signal;
+
+    public SignalRejectedException(Signal<?, ?> signal) {
+        super("ingress capacity reached, rejected " + signal);
+        this.signal = signal;
+    }
+
+    public Signal<?, ?> signal() {
+        return signal;
+    }
+
+}
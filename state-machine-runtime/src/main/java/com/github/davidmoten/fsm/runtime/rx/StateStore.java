@@ -0,0 +1,42 @@
+package com.github.davidmoten.fsm.runtime.rx;
+
+import java.util.Optional;
+
+import com.github.davidmoten.fsm.runtime.ObjectState;
+
+/**
+ * Storage for entities that have been evicted (passivated) from the in-memory
+ * cache of a {@link Processor}. An evicted entity is reloaded through
+ * {@link #read(ClassId)} the next time it is signalled or searched for.
+ *
+ * @param <Id>
+ *            the identifier type of the entities
+ */
+public interface StateStore<Id> {
+
+    /**
+     * Called when an entity is evicted from the cache. Must store the entity and
+     * state so that a subsequent call to {@link #read(ClassId)} returns them.
+     *
+     * @param classId
+     *            the class and id of the entity
+     * @param state
+     *            the entity and its state at the time of eviction
+     * @param <T>
+     *            the entity type
+     */
+    <T> void write(ClassId<T, Id> classId, ObjectState<T> state);
+
+    /**
+     * Returns the entity and state last written for the given class and id or
+     * {@code Optional.empty()} if nothing has been written.
+     *
+     * @param classId
+     *            the class and id of the entity
+     * @param <T>
+     *            the entity type
+     * @return the stored entity and state if present
+     */
+    <T> Optional<ObjectState<T>> read(ClassId<T, Id> classId);
+
+}
@@ -0,0 +1,270 @@
+package com.github.davidmoten.fsm.runtime.rx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.davidmoten.fsm.runtime.Signal;
+
+/**
+ * Hierarchical timing wheel holding delayed signals for a {@link Processor}.
+ * Each level has 64 slots and a slot of level {@code n} spans {@code 64^n}
+ * ticks. A timer is placed in the lowest level that can hold its deadline and
+ * moves down a level each time the slot it is in comes round (cascading) until
+ * it reaches level 0 where it fires.
+ *
+ * <p>
+ * Timers are keyed by (from, to) so there is at most one pending timer for a
+ * pair and scheduling replaces the previous one. Insert and cancel are O(1).
+ * All methods are synchronized because timers are added from processing
+ * threads and fired from the signal scheduler.
+ */
+final class TimingWheel<Id> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    // enough levels to hold any non-negative long delta
+    private static final int LEVELS = (Long.SIZE + BITS - 1) / BITS;
+
+    private final long tickMs;
+    // slot sentinels per level, created on demand
+    private final Timer<Id>[][] wheels;
+    private final Map<Timer<Id>, Timer<Id>> timers = new HashMap<>();
+    // reused for lookups so that cancel does not allocate
+    private final Timer<Id> probe = new Timer<Id>();
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMs) {
+        this.tickMs = tickMs;
+        this.wheels = new Timer[LEVELS][];
+    }
+
+    long tickMs() {
+        return tickMs;
+    }
+
+    synchronized void start(long nowMs) {
+        currentTick = nowMs / tickMs;
+    }
+
+    /**
+     * Adds a timer for the signal (replacing any pending timer with the same
+     * from and to).
+     *
+     * @param from
+     *            the sender of the signal
+     * @param signal
+     *            the signal to fire at {@code signal.time()}
+     * @return false if the signal is already due and should be sent now
+     */
+    synchronized boolean schedule(ClassId<?, Id> from, Signal<?, Id> signal) {
+        long deadlineTick = ceilDiv(signal.time().get(), tickMs);
+        if (deadlineTick <= currentTick) {
+            cancel(from.cls(), from.id(), signal.cls(), signal.id());
+            return false;
+        }
+        Timer<Id> timer = new Timer<Id>(from, signal, deadlineTick);
+        Timer<Id> previous = timers.put(timer, timer);
+        if (previous != null) {
+            previous.unlink();
+        }
+        add(timer);
+        return true;
+    }
+
+    synchronized boolean cancel(Class<?> fromClass, Id fromId, Class<?> toClass, Id toId) {
+        probe.set(fromClass, fromId, toClass, toId);
+        Timer<Id> timer = timers.remove(probe);
+        probe.set(null, null, null, null);
+        if (timer == null) {
+            return false;
+        } else {
+            timer.unlink();
+            return true;
+        }
+    }
+
+    synchronized int size() {
+        return timers.size();
+    }
+
+    /**
+     * Moves the wheel forward to {@code nowMs} and returns the signals that are
+     * now due.
+     *
+     * @param nowMs
+     *            current time in ms
+     * @return signals that have fired
+     */
+    synchronized List<Signal<?, Id>> advance(long nowMs) {
+        long targetTick = nowMs / tickMs;
+        if (timers.isEmpty()) {
+            currentTick = Math.max(currentTick, targetTick);
+            return Collections.emptyList();
+        }
+        List<Signal<?, Id>> due = null;
+        while (currentTick < targetTick) {
+            currentTick++;
+            // cascade from the top so that timers moving into the current
+            // level 0 slot fire on this tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                    due = cascade(level, due);
+                }
+            }
+            due = fire(slot(0, (int) (currentTick & MASK)), due);
+            if (timers.isEmpty()) {
+                currentTick = targetTick;
+            }
+        }
+        return due == null ? Collections.emptyList() : due;
+    }
+
+    private List<Signal<?, Id>> cascade(int level, List<Signal<?, Id>> due) {
+        if (wheels[level] == null) {
+            return due;
+        }
+        Timer<Id> sentinel = slot(level, (int) ((currentTick >>> (BITS * level)) & MASK));
+        Timer<Id> t = sentinel.next;
+        while (t != sentinel) {
+            Timer<Id> next = t.next;
+            t.unlink();
+            if (t.deadlineTick <= currentTick) {
+                due = fired(t, due);
+            } else {
+                add(t);
+            }
+            t = next;
+        }
+        return due;
+    }
+
+    private List<Signal<?, Id>> fire(Timer<Id> sentinel, List<Signal<?, Id>> due) {
+        Timer<Id> t = sentinel.next;
+        while (t != sentinel) {
+            Timer<Id> next = t.next;
+            t.unlink();
+            due = fired(t, due);
+            t = next;
+        }
+        return due;
+    }
+
+    private List<Signal<?, Id>> fired(Timer<Id> t, List<Signal<?, Id>> due) {
+        timers.remove(t);
+        if (due == null) {
+            due = new ArrayList<>();
+        }
+        due.add(t.signal);
+        return due;
+    }
+
+    private void add(Timer<Id> timer) {
+        long delta = timer.deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        slot(level, (int) ((timer.deadlineTick >>> (BITS * level)) & MASK)).append(timer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Timer<Id> slot(int level, int index) {
+        Timer<Id>[] wheel = wheels[level];
+        if (wheel == null) {
+            wheel = new Timer[SLOTS];
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = new Timer<Id>();
+            }
+            wheels[level] = wheel;
+        }
+        return wheel[index];
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return -Math.floorDiv(-a, b);
+    }
+
+    /**
+     * A pending signal and a node in the circular doubly linked list of its
+     * slot. Equality is on (from, to) so the timer is its own map key. Slot
+     * sentinels are timers with no signal.
+     */
+    private static final class Timer<Id> {
+
+        private Class<?> fromClass;
+        private Id fromId;
+        private Class<?> toClass;
+        private Id toId;
+        final Signal<?, Id> signal;
+        final long deadlineTick;
+        Timer<Id> prev = this;
+        Timer<Id> next = this;
+
+        Timer() {
+            this.signal = null;
+            this.deadlineTick = 0;
+        }
+
+        Timer(ClassId<?, Id> from, Signal<?, Id> signal, long deadlineTick) {
+            this.fromClass = from.cls();
+            this.fromId = from.id();
+            this.toClass = signal.cls();
+            this.toId = signal.id();
+            this.signal = signal;
+            this.deadlineTick = deadlineTick;
+        }
+
+        void set(Class<?> fromClass, Id fromId, Class<?> toClass, Id toId) {
+            this.fromClass = fromClass;
+            this.fromId = fromId;
+            this.toClass = toClass;
+            this.toId = toId;
+        }
+
+        void append(Timer<Id> timer) {
+            timer.prev = prev;
+            timer.next = this;
+            prev.next = timer;
+            prev = timer;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = fromClass.hashCode();
+            result = 31 * result + fromId.hashCode();
+            result = 31 * result + toClass.hashCode();
+            result = 31 * result + toId.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Timer))
+                return false;
+            Timer<?> other = (Timer<?>) obj;
+            return fromClass.equals(other.fromClass) && fromId.equals(other.fromId)
+                    && toClass.equals(other.toClass) && toId.equals(other.toId);
+        }
+
+        @Override
+        public String toString() {
+            return "Timer [fromClass=" + fromClass + ", fromId=" + fromId + ", signal=" + signal + ", deadlineTick=" + deadlineTick + "]";
+        }
+
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.github.davidmoten.fsm;
 
+import static org.junit.Assert.assertEquals;
+
 import java.math.BigDecimal;
 
 import org.junit.Test;
@@ -22,7 +24,30 @@ public class AccountTest {
 
 	@Test
 	public void testAccount() throws InterruptedException {
-		AccountBehaviourBase<String> behaviour = new AccountBehaviourBase<String>() {
+		Processor<String> processor = Processor //
+				.behaviour(Account.class, createBehaviour()) //
+				.signalScheduler(Schedulers.computation())
+				.processingScheduler(Schedulers.trampoline()) //
+				.build();
+		checkTransfer(processor);
+	}
+
+	@Test
+	public void testAccountWithLocalDelivery() throws InterruptedException {
+		// one partition so the deposit to account 2 is delivered locally
+		Processor<String> processor = Processor //
+				.behaviour(Account.class, createBehaviour()) //
+				.signalScheduler(Schedulers.computation())
+				.processingScheduler(Schedulers.trampoline()) //
+				.partitions(1) //
+				.localDelivery(true) //
+				.build();
+		checkTransfer(processor);
+		assertEquals(BigDecimal.valueOf(90), processor.getObject(Account.class, "1").get().balance);
+	}
+
+	private static AccountBehaviourBase<String> createBehaviour() {
+		return new AccountBehaviourBase<String>() {
 
 			@Override
 			public AccountStateMachine<String> create(String id) {
@@ -52,12 +77,9 @@ public class AccountTest {
 			}
 
 		};
-		Processor<String> processor = Processor //
-				.behaviour(Account.class, behaviour) //
-				.signalScheduler(Schedulers.computation())
-				.processingScheduler(Schedulers.trampoline()) //
-				.build();
+	}
 
+	private static void checkTransfer(Processor<String> processor) {
 		TestSubscriber<Object> ts = TestSubscriber.create();
 		
 		processor.flowable() //
@@ -0,0 +1,81 @@
+package com.github.davidmoten.fsm.runtime.rx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.davidmoten.fsm.example.microwave.Microwave;
+import com.github.davidmoten.fsm.example.microwave.event.DoorClosed;
+import com.github.davidmoten.fsm.example.microwave.event.DoorOpened;
+import com.github.davidmoten.fsm.runtime.Signal;
+
+import io.reactivex.rxjava3.subscribers.TestSubscriber;
+
+public class IngressTest {
+
+    private static final int STRIPES = 4;
+
+    @Test
+    public void testDropOldestDropsOldestOverAllStripesAndKeepsInternalSignals() {
+        Ingress<String> ingress = new Ingress<String>(STRIPES, 2, 0, OverflowPolicy.DROP_OLDEST);
+        String a1 = idInStripe(0, 0);
+        String a2 = idInStripe(0, 1);
+        String b = idInStripe(1, 0);
+        String c = idInStripe(2, 0);
+        assertTrue(ingress.offer(opened(a1), false));
+        assertTrue(ingress.offer(opened(a2), false));
+        // internal signals don't count towards the capacity and aren't dropped
+        ingress.offerInternal(Signal.create(Microwave.class, a1, new DoorClosed()));
+        // stripe 0 is the full one but the new signals go to empty stripes
+        assertTrue(ingress.offer(opened(b), false));
+        assertTrue(ingress.offer(opened(c), false));
+        assertEquals(3, ingress.size());
+
+        TestSubscriber<Signal<?, String>> ts = TestSubscriber.create();
+        ingress.flowable().subscribe(ts);
+        ingress.complete();
+        ts.assertComplete();
+        List<String> received = new ArrayList<>();
+        for (Signal<?, String> signal : ts.values()) {
+            received.add(signal.id() + ":" + signal.event().getClass().getSimpleName());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(a1 + ":DoorClosed", b + ":DoorOpened", c + ":DoorOpened")),
+                new HashSet<>(received));
+        assertEquals(3, received.size());
+        assertEquals(0, ingress.size());
+    }
+
+    @Test
+    public void testUnboundedSizeCountsAllSignals() {
+        Ingress<String> ingress = new Ingress<String>(STRIPES, 0, 0, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ingress.offer(opened(String.valueOf(i)), false));
+        }
+        ingress.offerInternal(Signal.create(Microwave.class, "0", new DoorClosed()));
+        assertEquals(11, ingress.size());
+        TestSubscriber<Signal<?, String>> ts = TestSubscriber.create();
+        ingress.flowable().subscribe(ts);
+        ts.assertValueCount(11);
+        assertEquals(0, ingress.size());
+    }
+
+    private static Signal<Microwave, String> opened(String id) {
+        return Signal.create(Microwave.class, id, new DoorOpened());
+    }
+
+    private static String idInStripe(int stripe, int skip) {
+        for (int i = 0;; i++) {
+            String id = String.valueOf(i);
+            if (Ingress.stripeIndex(ClassId.hash(Microwave.class, id), STRIPES) == stripe && skip-- == 0) {
+                return id;
+            }
+        }
+    }
+
+}
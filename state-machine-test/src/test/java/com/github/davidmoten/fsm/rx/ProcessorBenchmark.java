@@ -0,0 +1,98 @@
+package com.github.davidmoten.fsm.rx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.davidmoten.fsm.example.generated.MicrowaveBehaviourBase;
+import com.github.davidmoten.fsm.example.generated.MicrowaveStateMachine;
+import com.github.davidmoten.fsm.example.microwave.Microwave;
+import com.github.davidmoten.fsm.example.microwave.event.DoorClosed;
+import com.github.davidmoten.fsm.example.microwave.event.DoorOpened;
+import com.github.davidmoten.fsm.runtime.rx.ClassId;
+import com.github.davidmoten.fsm.runtime.rx.Processor;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.schedulers.TestScheduler;
+
+/**
+ * Measures the cost of processing a signal through {@link Processor}. Run
+ * {@link #main(String[])} to report the allocation per signal
+ * ({@code gc.alloc.rate.norm}) as well as throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    private static final DoorOpened DOOR_OPENED = new DoorOpened();
+    private static final DoorClosed DOOR_CLOSED = new DoorClosed();
+
+    @Param({ "0", "4" })
+    public int partitions;
+
+    private Processor<String> processor;
+    private Disposable subscription;
+    private ClassId<Microwave, String> microwave;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        Processor.Builder<String> builder = Processor //
+                .behaviour(Microwave.class, new MicrowaveBehaviourBase<String>() {
+                    @Override
+                    public MicrowaveStateMachine<String> create(String id) {
+                        return MicrowaveStateMachine.create(Microwave.fromId(id), id, this,
+                                MicrowaveStateMachine.State.READY_TO_COOK);
+                    }
+                }) //
+                .processingScheduler(Schedulers.trampoline()) //
+                .signalScheduler(new TestScheduler());
+        if (partitions > 0) {
+            builder = builder.partitions(partitions);
+        }
+        processor = builder.build();
+        subscription = processor.flowable().subscribe(bh::consume);
+        microwave = ClassId.create(Microwave.class, "1");
+    }
+
+    @TearDown
+    public void tearDown() {
+        subscription.dispose();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void openAndCloseDoor() {
+        processor.signal(microwave, DOOR_OPENED);
+        processor.signal(microwave, DOOR_CLOSED);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder() //
+                .include(ProcessorBenchmark.class.getSimpleName()) //
+                .addProfiler(GCProfiler.class) //
+                .build()).run();
+    }
+
+}
@@ -2,14 +2,23 @@ package com.github.davidmoten.fsm.rx;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 
 import org.junit.Test;
 
@@ -18,13 +27,20 @@ import com.github.davidmoten.fsm.example.generated.MicrowaveBehaviourBase;
 import com.github.davidmoten.fsm.example.generated.MicrowaveStateMachine;
 import com.github.davidmoten.fsm.example.microwave.Microwave;
 import com.github.davidmoten.fsm.example.microwave.event.ButtonPressed;
+import com.github.davidmoten.fsm.example.microwave.event.DoorClosed;
 import com.github.davidmoten.fsm.example.microwave.event.DoorOpened;
 import com.github.davidmoten.fsm.example.microwave.event.TimerTimesOut;
 import com.github.davidmoten.fsm.runtime.EntityStateMachine;
+import com.github.davidmoten.fsm.runtime.ObjectState;
+import com.github.davidmoten.fsm.runtime.Signal;
 import com.github.davidmoten.fsm.runtime.Signaller;
 import com.github.davidmoten.fsm.runtime.rx.ClassId;
+import com.github.davidmoten.fsm.runtime.rx.OverflowPolicy;
 import com.github.davidmoten.fsm.runtime.rx.Processor;
+import com.github.davidmoten.fsm.runtime.rx.SignalRejectedException;
+import com.github.davidmoten.fsm.runtime.rx.StateStore;
 
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import io.reactivex.rxjava3.schedulers.TestScheduler;
 import io.reactivex.rxjava3.subscribers.TestSubscriber;
@@ -117,12 +133,402 @@ public class ProcessorTest {
         ts.assertNoErrors();
     }
 
+    @Test
+    public void testPartitioned() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b.partitions(4));
+
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+
+        ClassId<Microwave, String> microwave1 = ClassId.create(Microwave.class, "1");
+        ClassId<Microwave, String> microwave2 = ClassId.create(Microwave.class, "2");
+
+        processor.signal(microwave1, new ButtonPressed());
+        processor.signal(microwave2, new DoorOpened());
+        processor.signal(microwave2, new ButtonPressed());
+        ts.assertValueCount(3);
+        assertEquals(MicrowaveStateMachine.State.COOKING, processor.get(Microwave.class, "1").state());
+        assertEquals(MicrowaveStateMachine.State.DOOR_OPEN, processor.get(Microwave.class, "2").state());
+
+        // delayed signal to self arrives via the same partition
+        signalScheduler.advanceTimeBy(30, TimeUnit.SECONDS);
+        ts.assertValueCount(4);
+        assertEquals(MicrowaveStateMachine.State.COOKING_COMPLETE, processor.get(Microwave.class, "1").state());
+
+        processor.onCompleted();
+        ts.assertNoErrors();
+        ts.assertComplete();
+    }
+
+    @Test
+    public void testSignalAllPartitioned() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b.partitions(4));
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+        List<Signal<?, String>> signals = new ArrayList<>();
+        int n = 20;
+        for (int i = 0; i < n; i++) {
+            signals.add(Signal.create(Microwave.class, String.valueOf(i), new DoorOpened()));
+            signals.add(Signal.create(Microwave.class, String.valueOf(i), new DoorClosed()));
+        }
+        processor.signalAll(signals);
+        ts.assertValueCount(2 * n);
+        for (int i = 0; i < n; i++) {
+            assertEquals(MicrowaveStateMachine.State.READY_TO_COOK,
+                    processor.get(Microwave.class, String.valueOf(i)).state());
+        }
+        processor.signalAll(Flowable.just(Signal.create(Microwave.class, "0", new ButtonPressed())));
+        ts.assertValueCount(2 * n + 1);
+        processor.onCompleted();
+        ts.assertNoErrors();
+        ts.assertComplete();
+    }
+
+    @Test(expected = SignalRejectedException.class)
+    public void testSignalAllRejectsWhenFull() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b //
+                .ingressCapacity(2) //
+                .overflowPolicy(OverflowPolicy.REJECT));
+        processor.signalAll(Arrays.asList( //
+                Signal.create(Microwave.class, "1", new DoorOpened()), //
+                Signal.create(Microwave.class, "2", new DoorOpened()), //
+                Signal.create(Microwave.class, "3", new DoorOpened())));
+    }
+
+    @Test
+    public void testPartitionedPreservesOrderPerEntity() {
+        Processor<String> processor = Processor //
+                .behaviour(Microwave.class, createMicrowaveBehaviour()) //
+                .processingScheduler(Schedulers.computation()) //
+                .partitioned() //
+                .build();
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+        int n = 100;
+        for (int i = 0; i < n; i++) {
+            // DoorOpened then DoorClosed leaves each microwave READY_TO_COOK
+            // only if the signals are processed in order
+            processor.signal(Microwave.class, String.valueOf(i), new DoorOpened());
+            processor.signal(Microwave.class, String.valueOf(i), new DoorClosed());
+        }
+        processor.onCompleted();
+        ts.awaitDone(10, TimeUnit.SECONDS);
+        ts.assertNoErrors();
+        ts.assertValueCount(2 * n);
+        for (int i = 0; i < n; i++) {
+            assertEquals(MicrowaveStateMachine.State.READY_TO_COOK,
+                    processor.get(Microwave.class, String.valueOf(i)).state());
+        }
+    }
+
+    @Test
+    public void testPartitionedWithConcurrentProducers() throws InterruptedException {
+        Processor<String> processor = Processor.behaviour(Microwave.class, createMicrowaveBehaviour()) //
+                .processingScheduler(Schedulers.computation()) //
+                .partitions(4) //
+                .ingressCapacity(100) //
+                .build();
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+        int producers = 8;
+        int n = 1000;
+        CountDownLatch latch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            ClassId<Microwave, String> microwave = ClassId.create(Microwave.class, String.valueOf(p));
+            new Thread(() -> {
+                for (int i = 0; i < n; i++) {
+                    processor.signal(microwave, new DoorOpened());
+                    processor.signal(microwave, new DoorClosed());
+                }
+                latch.countDown();
+            }).start();
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        ts.awaitCount(producers * n * 2);
+        ts.assertValueCount(producers * n * 2);
+        for (int p = 0; p < producers; p++) {
+            assertEquals(MicrowaveStateMachine.State.READY_TO_COOK,
+                    processor.get(Microwave.class, String.valueOf(p)).state());
+        }
+        assertEquals(0, processor.waitingSignals());
+        processor.onCompleted();
+        ts.awaitDone(5, TimeUnit.SECONDS);
+        ts.assertComplete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartitionedDoesNotSupportEntityTransform() {
+        Processor.behaviour(Microwave.class, createMicrowaveBehaviour()) //
+                .entityTransform(g -> g) //
+                .partitions(2) //
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartitionedDoesNotSupportPreGroupBy() {
+        Processor.behaviour(Microwave.class, createMicrowaveBehaviour()) //
+                .preGroupBy(x -> x) //
+                .partitions(2) //
+                .build();
+    }
+
+    @Test
+    public void testTimingWheel() {
+        TestScheduler signalScheduler = new TestScheduler();
+        // 1ms ticks so the 30s timeout cascades down from the third level
+        Processor<String> processor = createProcessor(signalScheduler,
+                b -> b.timingWheel(1, TimeUnit.MILLISECONDS));
+
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+
+        ClassId<Microwave, String> microwave1 = ClassId.create(Microwave.class, "1");
+        ClassId<Microwave, String> microwave2 = ClassId.create(Microwave.class, "2");
+        processor.signal(microwave1, new ButtonPressed());
+        signalScheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        processor.signal(microwave2, new ButtonPressed());
+        assertEquals(2, processor.pendingTimers());
+
+        signalScheduler.advanceTimeBy(19999, TimeUnit.MILLISECONDS);
+        ts.assertValueCount(2);
+        signalScheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        ts.assertValueCount(3);
+        assertEquals(MicrowaveStateMachine.State.COOKING_COMPLETE,
+                processor.get(Microwave.class, "1").state());
+        assertEquals(1, processor.pendingTimers());
+
+        signalScheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        ts.assertValueCount(4);
+        assertEquals(MicrowaveStateMachine.State.COOKING_COMPLETE,
+                processor.get(Microwave.class, "2").state());
+        assertEquals(0, processor.pendingTimers());
+        processor.onCompleted();
+        ts.assertNoErrors();
+    }
+
+    @Test
+    public void testTimingWheelCancelSignal() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b.timingWheel());
+
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+
+        ClassId<Microwave, String> microwave = ClassId.create(Microwave.class, "1");
+        processor.signal(microwave, new ButtonPressed());
+        signalScheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+        assertEquals(1, processor.pendingTimers());
+        processor.cancelSignalToSelf(microwave);
+        assertEquals(0, processor.pendingTimers());
+
+        signalScheduler.advanceTimeBy(30, TimeUnit.SECONDS);
+        ts.assertValueCount(1);
+        assertEquals(MicrowaveStateMachine.State.COOKING, processor.get(Microwave.class, "1").state());
+        processor.onCompleted();
+        ts.assertNoErrors();
+    }
+
+    @Test(expected = SignalRejectedException.class)
+    public void testIngressRejectsWhenFull() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b //
+                .ingressCapacity(2) //
+                .overflowPolicy(OverflowPolicy.REJECT));
+        // not subscribed so nothing leaves the ingress
+        processor.signal(ClassId.create(Microwave.class, "1"), new DoorOpened());
+        processor.signal(ClassId.create(Microwave.class, "2"), new DoorOpened());
+        assertEquals(2, processor.waitingSignals());
+        assertFalse(processor.offer(ClassId.create(Microwave.class, "3"), new DoorOpened()));
+        processor.signal(ClassId.create(Microwave.class, "3"), new DoorOpened());
+    }
+
+    @Test
+    public void testIngressDropsOldestWhenFull() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b //
+                .ingressCapacity(1) //
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST));
+        processor.signal(ClassId.create(Microwave.class, "1"), new DoorOpened());
+        assertTrue(processor.offer(ClassId.create(Microwave.class, "2"), new DoorOpened()));
+        assertEquals(1, processor.waitingSignals());
+
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+        ts.assertValueCount(1);
+        assertEquals("2", ts.values().get(0).id());
+        assertEquals(0, processor.waitingSignals());
+    }
+
+    @Test
+    public void testIngressConflatesByEventClass() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b //
+                .entityCapacity(1) //
+                .overflowPolicy(OverflowPolicy.CONFLATE));
+        ClassId<Microwave, String> microwave = ClassId.create(Microwave.class, "1");
+        processor.signal(microwave, new ButtonPressed());
+        assertTrue(processor.offer(microwave, new ButtonPressed()));
+        // the entity is full and there is no DoorOpened to replace
+        assertFalse(processor.offer(microwave, new DoorOpened()));
+        assertTrue(processor.offer(ClassId.create(Microwave.class, "2"), new DoorOpened()));
+        assertEquals(2, processor.waitingSignals());
+
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+        ts.assertValueCount(2);
+        assertEquals(MicrowaveStateMachine.State.COOKING, processor.get(Microwave.class, "1").state());
+        assertEquals(MicrowaveStateMachine.State.DOOR_OPEN, processor.get(Microwave.class, "2").state());
+    }
+
+    @Test
+    public void testIngressBlocksWhenFull() throws InterruptedException {
+        TestScheduler signalScheduler = new TestScheduler();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b.ingressCapacity(1));
+        ClassId<Microwave, String> microwave = ClassId.create(Microwave.class, "1");
+        processor.signal(microwave, new DoorOpened());
+        assertFalse(processor.offer(microwave, new DoorClosed()));
+        CountDownLatch latch = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            processor.signal(microwave, new DoorClosed());
+            latch.countDown();
+        });
+        producer.start();
+        assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        producer.join();
+        ts.assertValueCount(2);
+        assertEquals(MicrowaveStateMachine.State.READY_TO_COOK, processor.get(Microwave.class, "1").state());
+    }
+
+    @Test
+    public void testEvictedEntityIsRestoredFromStateStore() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Map<ClassId<?, String>, ObjectState<?>> store = new ConcurrentHashMap<>();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b //
+                .stateStore(new StateStore<String>() {
+
+                    @Override
+                    public <T> void write(ClassId<T, String> classId, ObjectState<T> state) {
+                        store.put(classId, ObjectState.create(state.get().orElse(null), state.state()));
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public <T> Optional<ObjectState<T>> read(ClassId<T, String> classId) {
+                        return Optional.ofNullable((ObjectState<T>) store.get(classId));
+                    }
+                }) //
+                .maxCachedEntities(1));
+
+        TestSubscriber<EntityStateMachine<?, String>> ts = TestSubscriber.create();
+        processor.flowable().subscribe(ts);
+
+        ClassId<Microwave, String> microwave1 = ClassId.create(Microwave.class, "1");
+        ClassId<Microwave, String> microwave2 = ClassId.create(Microwave.class, "2");
+        processor.signal(microwave1, new DoorOpened());
+        assertTrue(store.isEmpty());
+
+        // only one entity is cached so microwave1 is evicted
+        processor.signal(microwave2, new DoorOpened());
+        assertEquals(MicrowaveStateMachine.State.DOOR_OPEN, store.get(microwave1).state());
+        assertEquals(MicrowaveStateMachine.State.DOOR_OPEN,
+                processor.get(Microwave.class, "1").state());
+
+        // microwave1 is restored from the store and continues from DOOR_OPEN
+        processor.signal(microwave1, new DoorClosed());
+        assertEquals(MicrowaveStateMachine.State.READY_TO_COOK,
+                processor.get(Microwave.class, "1").state());
+        assertEquals(MicrowaveStateMachine.State.DOOR_OPEN, store.get(microwave2).state());
+        // reads cached and evicted entities without creating a machine for an
+        // unknown id
+        assertEquals(Arrays.asList("2", "1"),
+                new ArrayList<>(processor.getObjects(Microwave.class, Arrays.asList("2", "3", "1")).keySet()));
+        assertNull(processor.get(Microwave.class, "3"));
+        ts.assertValueCount(3);
+        processor.onCompleted();
+        ts.assertNoErrors();
+    }
+
+    @Test
+    public void testCacheHoldsMaxCachedEntities() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Map<ClassId<?, String>, ObjectState<?>> store = new ConcurrentHashMap<>();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b //
+                .stateStore(new StateStore<String>() {
+
+                    @Override
+                    public <T> void write(ClassId<T, String> classId, ObjectState<T> state) {
+                        store.put(classId, state);
+                    }
+
+                    @Override
+                    public <T> Optional<ObjectState<T>> read(ClassId<T, String> classId) {
+                        return Optional.empty();
+                    }
+                }) //
+                .maxCachedEntities(20));
+        processor.flowable().subscribe();
+        for (int i = 1; i <= 20; i++) {
+            processor.signal(ClassId.create(Microwave.class, String.valueOf(i)), new DoorOpened());
+        }
+        // a small bound is not split into segments that hash skew overflows
+        assertTrue(store.isEmpty());
+        processor.signal(ClassId.create(Microwave.class, "21"), new DoorOpened());
+        assertEquals(1, store.size());
+        processor.onCompleted();
+    }
+
+    @Test
+    public void testIdleEntityIsEvicted() {
+        TestScheduler signalScheduler = new TestScheduler();
+        Map<ClassId<?, String>, ObjectState<?>> store = new ConcurrentHashMap<>();
+        Processor<String> processor = createProcessor(signalScheduler, b -> b //
+                .stateStore(new StateStore<String>() {
+
+                    @Override
+                    public <T> void write(ClassId<T, String> classId, ObjectState<T> state) {
+                        store.put(classId, state);
+                    }
+
+                    @Override
+                    public <T> Optional<ObjectState<T>> read(ClassId<T, String> classId) {
+                        return Optional.empty();
+                    }
+                }) //
+                .expireIdleEntitiesAfter(1, TimeUnit.MINUTES));
+        processor.flowable().subscribe();
+        processor.signal(ClassId.create(Microwave.class, "1"), new DoorOpened());
+        signalScheduler.advanceTimeBy(59, TimeUnit.SECONDS);
+        assertTrue(store.isEmpty());
+        signalScheduler.advanceTimeBy(2, TimeUnit.MINUTES);
+        assertEquals(1, store.size());
+        processor.onCompleted();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCacheBoundRequiresStateStore() {
+        Processor.behaviour(Microwave.class, createMicrowaveBehaviour()) //
+                .maxCachedEntities(10) //
+                .build();
+    }
+
     private static Processor<String> createProcessor(TestScheduler signalScheduler) {
+        return createProcessor(signalScheduler, b -> b);
+    }
+
+    private static Processor<String> createProcessor(TestScheduler signalScheduler,
+            UnaryOperator<Processor.Builder<String>> options) {
         MicrowaveBehaviour<String> behaviour = createMicrowaveBehaviour();
 
         // build a processor
-        Processor<String> processor = Processor //
-                .behaviour(Microwave.class, behaviour) //
+        Processor<String> processor = options.apply(Processor //
+                .behaviour(Microwave.class, behaviour)) //
                 .processingScheduler(Schedulers.trampoline()) //
                 .signalScheduler(signalScheduler) //
                 .preTransition((m, event, state) -> System.out.println("[preTransition] "